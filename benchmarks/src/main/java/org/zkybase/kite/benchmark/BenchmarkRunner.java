@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>
+ * Runs the Kite benchmarks at 1, 2, 4, ... threads up to the number of available processors, with the GC profiler
+ * enabled so that allocation rates are reported alongside throughput and average time. Results for each thread count
+ * are also written to <code>kite-benchmarks-&lt;threads&gt;t.json</code>.
+ * </p>
+ * <p>
+ * Usage: <code>java -jar target/benchmarks.jar [regex] [maxThreads]</code>. The optional regex selects benchmarks
+ * (e.g. <code>Rejection</code>); the default runs everything. For ad hoc runs, the standard JMH command line is
+ * available through <code>java -cp target/benchmarks.jar org.openjdk.jmh.Main</code>.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public final class BenchmarkRunner {
+	
+	private BenchmarkRunner() { }
+	
+	public static void main(String[] args) throws RunnerException {
+		String include = (args.length > 0 ? args[0] : "org\\.zkybase\\.kite\\.benchmark\\..*");
+		int maxThreads = (args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+		
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			run(include, threads);
+			if (threads < maxThreads && threads * 2 > maxThreads) { run(include, maxThreads); }
+		}
+	}
+	
+	private static void run(String include, int threads) throws RunnerException {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+			.include(include)
+			.threads(threads)
+			.addProfiler(GCProfiler.class)
+			.resultFormat(ResultFormatType.JSON)
+			.result("kite-benchmarks-" + threads + "t.json");
+		new Runner(options.build()).run();
+	}
+}
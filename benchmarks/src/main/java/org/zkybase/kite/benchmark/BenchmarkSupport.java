@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.zkybase.kite.GuardCallback;
+
+/**
+ * Shared fixtures for the Kite benchmarks.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public final class BenchmarkSupport {
+	static final String RESULT = "Winterlong";
+	
+	// Kite's own log4j.xml logs guard activity at debug level, which would dominate the measurements.
+	static final String LOG4J_CONFIG = "-Dlog4j.configuration=benchmark-log4j.xml";
+	
+	static final GuardCallback<String> ACTION = new GuardCallback<String>() {
+		public String doInGuard() throws Exception { return RESULT; }
+	};
+	
+	private BenchmarkSupport() { }
+	
+	/**
+	 * Authenticates the calling thread, since the rate-limiting throttle keys its counts by principal. Each benchmark
+	 * thread gets its own principal so that rate limiting is measured without cross-thread key sharing.
+	 */
+	static void authenticateCurrentThread() {
+		String principal = "bench-" + Thread.currentThread().getId();
+		SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken(principal, ""));
+	}
+	
+	static void clearAuthentication() { SecurityContextHolder.clearContext(); }
+	
+	/**
+	 * Per-thread state that authenticates the benchmark thread for the rate-limiting throttle.
+	 */
+	@State(Scope.Thread)
+	public static class PrincipalState {
+		
+		@Setup
+		public void setUp() { BenchmarkSupport.authenticateCurrentThread(); }
+		
+		@TearDown
+		public void tearDown() { BenchmarkSupport.clearAuthentication(); }
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.benchmark;
+
+import static org.zkybase.kite.benchmark.BenchmarkSupport.ACTION;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.benchmark.BenchmarkSupport.PrincipalState;
+import org.zkybase.kite.guard.CircuitBreakerTemplate;
+import org.zkybase.kite.guard.ConcurrencyThrottleTemplate;
+import org.zkybase.kite.guard.RateLimitingThrottleTemplate;
+
+/**
+ * <p>
+ * Measures the success-path cost of calling guard templates directly, with no proxy involved. The guards are shared
+ * by all benchmark threads, so running with more than one thread measures contention on the guards' shared state.
+ * </p>
+ * <p>
+ * Compare each guard against {@link #baseline()}, which invokes the callback without any guard.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkSupport.LOG4J_CONFIG)
+public class GuardBenchmark {
+	private CircuitBreakerTemplate breaker;
+	private ConcurrencyThrottleTemplate throttle;
+	private RateLimitingThrottleTemplate rateLimiter;
+	private GuardCallback<String> stackedAction;
+	
+	@Setup
+	public void setUp() {
+		this.breaker = new CircuitBreakerTemplate();
+		breaker.setBeanName("benchBreaker");
+		
+		this.throttle = new ConcurrencyThrottleTemplate(Integer.MAX_VALUE);
+		throttle.setBeanName("benchThrottle");
+		
+		this.rateLimiter = new RateLimitingThrottleTemplate(Integer.MAX_VALUE);
+		rateLimiter.setBeanName("benchRateLimiter");
+		
+		// Same order as the README example: throttle, then rate limiter, then breaker.
+		final GuardCallback<String> breakerAction = new GuardCallback<String>() {
+			public String doInGuard() throws Exception { return breaker.execute(ACTION); }
+		};
+		final GuardCallback<String> rateLimiterAction = new GuardCallback<String>() {
+			public String doInGuard() throws Exception { return rateLimiter.execute(breakerAction); }
+		};
+		this.stackedAction = new GuardCallback<String>() {
+			public String doInGuard() throws Exception { return throttle.execute(rateLimiterAction); }
+		};
+	}
+	
+	@Benchmark
+	public String baseline() throws Exception { return ACTION.doInGuard(); }
+	
+	@Benchmark
+	public String circuitBreaker() throws Exception { return breaker.execute(ACTION); }
+	
+	@Benchmark
+	public String concurrencyThrottle() throws Exception { return throttle.execute(ACTION); }
+	
+	@Benchmark
+	public String rateLimitingThrottle(PrincipalState principal) throws Exception {
+		return rateLimiter.execute(ACTION);
+	}
+	
+	@Benchmark
+	public String stackedTemplates(PrincipalState principal) throws Exception { return stackedAction.doInGuard(); }
+}
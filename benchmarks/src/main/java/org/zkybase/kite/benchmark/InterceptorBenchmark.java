@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.zkybase.kite.GuardedBy;
+import org.zkybase.kite.benchmark.BenchmarkSupport.PrincipalState;
+import org.zkybase.kite.guard.CircuitBreakerTemplate;
+import org.zkybase.kite.guard.ConcurrencyThrottleTemplate;
+import org.zkybase.kite.guard.RateLimitingThrottleTemplate;
+import org.zkybase.kite.interceptor.AnnotationGuardListSource;
+import org.zkybase.kite.interceptor.GuardListInterceptor;
+import org.zkybase.kite.interceptor.GuardListSourcePointcut;
+
+/**
+ * <p>
+ * Measures the JDK proxy path through {@link GuardListInterceptor}, wired the same way
+ * <code>&lt;kite:annotation-config&gt;</code> wires it, against direct calls on the target.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkSupport.LOG4J_CONFIG)
+public class InterceptorBenchmark {
+	private MessageService target;
+	private MessageService proxy;
+	
+	@Setup
+	public void setUp() {
+		CircuitBreakerTemplate breaker = new CircuitBreakerTemplate();
+		breaker.setBeanName("messageServiceBreaker");
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(Integer.MAX_VALUE);
+		throttle.setBeanName("messageServiceThrottle");
+		RateLimitingThrottleTemplate rateLimiter = new RateLimitingThrottleTemplate(Integer.MAX_VALUE);
+		rateLimiter.setBeanName("messageServiceRateLimiter");
+		
+		StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+		beanFactory.addBean("messageServiceBreaker", breaker);
+		beanFactory.addBean("messageServiceThrottle", throttle);
+		beanFactory.addBean("messageServiceRateLimiter", rateLimiter);
+		
+		AnnotationGuardListSource source = new AnnotationGuardListSource();
+		source.setBeanFactory(beanFactory);
+		
+		GuardListInterceptor interceptor = new GuardListInterceptor();
+		interceptor.setSource(source);
+		
+		GuardListSourcePointcut pointcut = new GuardListSourcePointcut();
+		pointcut.setSource(source);
+		
+		this.target = new MessageServiceImpl();
+		ProxyFactory proxyFactory = new ProxyFactory(target);
+		proxyFactory.addInterface(MessageService.class);
+		proxyFactory.addAdvisor(new DefaultPointcutAdvisor(pointcut, interceptor));
+		this.proxy = (MessageService) proxyFactory.getProxy();
+	}
+	
+	@Benchmark
+	public String directCall() { return target.getMotdStacked(); }
+	
+	@Benchmark
+	public String proxyUnguarded() { return proxy.getMotdUnguarded(); }
+	
+	@Benchmark
+	public String proxySingleGuard() { return proxy.getMotdSingleGuard(); }
+	
+	@Benchmark
+	public String proxyStackedGuards(PrincipalState principal) { return proxy.getMotdStacked(); }
+	
+	public interface MessageService {
+		
+		String getMotdUnguarded();
+		
+		String getMotdSingleGuard();
+		
+		String getMotdStacked();
+	}
+	
+	public static class MessageServiceImpl implements MessageService {
+		
+		public String getMotdUnguarded() { return BenchmarkSupport.RESULT; }
+		
+		@GuardedBy("messageServiceBreaker")
+		public String getMotdSingleGuard() { return BenchmarkSupport.RESULT; }
+		
+		@GuardedBy({
+			"messageServiceThrottle",
+			"messageServiceRateLimiter",
+			"messageServiceBreaker"
+		})
+		public String getMotdStacked() { return BenchmarkSupport.RESULT; }
+	}
+}
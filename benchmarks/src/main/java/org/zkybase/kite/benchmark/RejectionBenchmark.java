@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.benchmark;
+
+import static org.zkybase.kite.benchmark.BenchmarkSupport.ACTION;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zkybase.kite.Guard;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.GuardException;
+import org.zkybase.kite.guard.CircuitBreakerTemplate;
+import org.zkybase.kite.guard.ConcurrencyThrottleTemplate;
+import org.zkybase.kite.guard.RateLimitingThrottleTemplate;
+
+/**
+ * <p>
+ * Measures the cost of rejected calls: an open circuit breaker, an exhausted concurrency throttle and an exhausted
+ * rate limiter. During incidents the rejection path carries most of the traffic, so its cost (in particular exception
+ * construction) matters as much as the success path.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkSupport.LOG4J_CONFIG)
+public class RejectionBenchmark {
+	private CircuitBreakerTemplate openBreaker;
+	private ConcurrencyThrottleTemplate exhaustedThrottle;
+	private RateLimitingThrottleTemplate exhaustedRateLimiter;
+	
+	private CountDownLatch permitHeld;
+	private CountDownLatch releasePermit;
+	private Thread permitHolder;
+	
+	@Setup
+	public void setUp() throws Exception {
+		this.openBreaker = new CircuitBreakerTemplate();
+		openBreaker.setBeanName("benchOpenBreaker");
+		openBreaker.tripWithoutAutoReset();
+		
+		this.exhaustedRateLimiter = new RateLimitingThrottleTemplate(1);
+		exhaustedRateLimiter.setBeanName("benchExhaustedRateLimiter");
+		
+		this.exhaustedThrottle = new ConcurrencyThrottleTemplate(1);
+		exhaustedThrottle.setBeanName("benchExhaustedThrottle");
+		holdOnlyPermit();
+	}
+	
+	@TearDown
+	public void tearDown() throws Exception {
+		releasePermit.countDown();
+		permitHolder.join();
+	}
+	
+	@Benchmark
+	public Object openCircuitBreaker() { return reject(openBreaker, ACTION); }
+	
+	@Benchmark
+	public Object exhaustedConcurrencyThrottle() { return reject(exhaustedThrottle, ACTION); }
+	
+	@Benchmark
+	public Object exhaustedRateLimitingThrottle(ExhaustedPrincipalState principal) {
+		return reject(exhaustedRateLimiter, ACTION);
+	}
+	
+	private Object reject(Guard guard, GuardCallback<String> action) {
+		try {
+			return guard.execute(action);
+		} catch (GuardException e) {
+			return e;
+		} catch (Exception e) {
+			throw new IllegalStateException("Unexpected exception", e);
+		}
+	}
+	
+	// Occupies the throttle's single permit from a background thread for the whole trial.
+	private void holdOnlyPermit() throws InterruptedException {
+		this.permitHeld = new CountDownLatch(1);
+		this.releasePermit = new CountDownLatch(1);
+		this.permitHolder = new Thread(new Runnable() {
+			public void run() {
+				try {
+					exhaustedThrottle.execute(new GuardCallback<Object>() {
+						public Object doInGuard() throws Exception {
+							permitHeld.countDown();
+							releasePermit.await();
+							return null;
+						}
+					});
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}, "PermitHolder");
+		permitHolder.setDaemon(true);
+		permitHolder.start();
+		permitHeld.await();
+	}
+	
+	/**
+	 * Per-thread state that authenticates the benchmark thread and uses up its single rate-limit allowance.
+	 */
+	@State(Scope.Thread)
+	public static class ExhaustedPrincipalState {
+		
+		@Setup
+		public void setUp(RejectionBenchmark benchmark) throws Exception {
+			BenchmarkSupport.authenticateCurrentThread();
+			try {
+				benchmark.exhaustedRateLimiter.execute(ACTION);
+			} catch (GuardException e) {
+				// Already exhausted by an earlier trial on this thread
+			}
+		}
+		
+		@TearDown
+		public void tearDown() { BenchmarkSupport.clearAuthentication(); }
+	}
+}
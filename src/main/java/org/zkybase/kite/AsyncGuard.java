@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * <p>
+ * {@link Guard} that can also protect asynchronous actions, which return a {@link CompletionStage} instead of a
+ * result. An asynchronous guard admits the action as usual, but holds whatever it holds for the call, such as a
+ * concurrency permit, and records the call's outcome only when the stage completes, rather than as soon as the stage
+ * is returned. Nothing blocks while the stage is pending.
+ * </p>
+ * <p>
+ * The guard list interceptor uses this contract for methods declared to return {@link CompletionStage} or
+ * {@link java.util.concurrent.CompletableFuture CompletableFuture}. Guards in the list that don't implement it still
+ * run, synchronously, around the call that creates the stage.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public interface AsyncGuard extends Guard {
+	
+	/**
+	 * Executes the given asynchronous action inside the guard. Rejections are thrown immediately, as with
+	 * {@link #execute(GuardCallback)}; failures of the action itself are reported through the returned stage.
+	 * 
+	 * @param action action returning the stage to guard
+	 * @return stage completing with the action's outcome once the guard has recorded it
+	 * @throws Exception if the guard rejects the action, or the action fails before returning a stage
+	 */
+	<T> CompletionStage<T> executeAsync(GuardCallback<? extends CompletionStage<T>> action) throws Exception;
+}
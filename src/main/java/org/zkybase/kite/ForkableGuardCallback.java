@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite;
+
+/**
+ * <p>
+ * {@link GuardCallback} that can hand out independent copies of itself. Guards that run the callback on another thread,
+ * or run it more than once concurrently, should execute a fork rather than the callback itself, since the callback
+ * may carry per-call state that isn't safe to share between threads.
+ * </p>
+ * <p>
+ * Callbacks created by the guard list interceptor always implement this interface.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public interface ForkableGuardCallback<T> extends GuardCallback<T> {
+	
+	/**
+	 * Returns a copy of this callback that may be executed on any thread, concurrently with this callback and with
+	 * other forks.
+	 * 
+	 * @return independent copy of this callback
+	 */
+	GuardCallback<T> fork();
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite;
+
+/**
+ * <p>
+ * Permit held by a {@link LeasableGuard} for work that outlives a single method call, such as reading a stream. The
+ * guard treats everything from {@link LeasableGuard#acquire(GuardCallback) acquisition} to {@link #close()} as one
+ * call: a concurrency throttle counts it against its limit until then, and a circuit breaker records its outcome
+ * then.
+ * </p>
+ * <p>
+ * A lease may hold several permits, as handed out by {@link LeasableGuard#acquire(int, GuardCallback)} to bulk
+ * callers. Each permit stands for one unit of work, such as one item in a batch.
+ * </p>
+ * <p>
+ * Leases are meant for try-with-resources blocks. Closing a lease more than once has no further effect.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public interface GuardLease extends AutoCloseable {
+	
+	/**
+	 * Returns the number of permits the lease still holds.
+	 * 
+	 * @return permits held
+	 */
+	int getPermits();
+	
+	/**
+	 * Marks one permit's work as failed, so that guards recording outcomes count it as a failure when the lease is
+	 * closed. Work not marked as failed counts as a success. For a lease holding several permits, call this once per
+	 * failed unit of work; the outcomes are recorded with the most recent failure.
+	 * 
+	 * @param failure exception that made the work fail
+	 */
+	void recordFailure(Exception failure);
+	
+	/**
+	 * Returns permits that won't be used after all, without recording any outcome for them.
+	 * 
+	 * @param permits number of permits to return; at most {@link #getPermits()} are returned
+	 * @throws IllegalArgumentException if permits &lt; 0
+	 */
+	void release(int permits);
+	
+	/**
+	 * Returns the remaining permits to the guard, recording the outcome of the work they covered.
+	 */
+	@Override
+	void close();
+}
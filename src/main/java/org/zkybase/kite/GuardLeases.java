@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notEmpty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Static helpers for working with {@link GuardLease}s.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public final class GuardLeases {
+	
+	private GuardLeases() { }
+	
+	/**
+	 * <p>
+	 * Acquires up to the given number of permits from each guard in turn, for bulk callers that would otherwise pass
+	 * every item of a batch through the guards separately. Each guard is asked for as many permits as the guards
+	 * before it admitted, and guards that admitted more than a later one return the surplus, so the returned lease
+	 * holds the same number of permits from every guard: the most all of them admit together.
+	 * </p>
+	 * <p>
+	 * Closing the returned lease closes the underlying leases in reverse order; failures recorded against it are
+	 * recorded against each of them.
+	 * </p>
+	 * 
+	 * @param guards guards to acquire permits from, in order
+	 * @param permits number of permits wanted
+	 * @param context callback describing the leased work, for guards that resolve keys
+	 * @return lease holding between 1 and <code>permits</code> permits from every guard
+	 * @throws Exception if a guard admits no permits; permits already taken from earlier guards are returned
+	 */
+	public static GuardLease acquireAll(List<? extends LeasableGuard> guards, int permits, GuardCallback<?> context)
+			throws Exception {
+		
+		notEmpty(guards, "guards can't be empty");
+		isTrue(permits >= 1, "permits must be >= 1");
+		
+		List<GuardLease> leases = new ArrayList<GuardLease>(guards.size());
+		int granted = permits;
+		try {
+			for (LeasableGuard guard : guards) {
+				GuardLease lease = guard.acquire(granted, context);
+				int leaseGranted = lease.getPermits();
+				if (leaseGranted < granted) {
+					for (GuardLease earlier : leases) { earlier.release(granted - leaseGranted); }
+					granted = leaseGranted;
+				}
+				leases.add(lease);
+			}
+		} catch (Exception e) {
+			for (int i = leases.size() - 1; i >= 0; i--) {
+				GuardLease lease = leases.get(i);
+				lease.release(lease.getPermits());
+				lease.close();
+			}
+			throw e;
+		}
+		return new CompositeLease(leases);
+	}
+	
+	/**
+	 * Lease over the leases of several guards, each holding the same number of permits.
+	 */
+	private static final class CompositeLease implements GuardLease {
+		private final GuardLease[] leases;
+		
+		public CompositeLease(List<GuardLease> leases) { this.leases = leases.toArray(new GuardLease[leases.size()]); }
+		
+		@Override
+		public int getPermits() { return leases[0].getPermits(); }
+		
+		@Override
+		public void recordFailure(Exception failure) {
+			for (GuardLease lease : leases) { lease.recordFailure(failure); }
+		}
+		
+		@Override
+		public void release(int count) {
+			for (GuardLease lease : leases) { lease.release(count); }
+		}
+		
+		@Override
+		public void close() {
+			for (int i = leases.length - 1; i >= 0; i--) { leases[i].close(); }
+		}
+	}
+}
@@ -33,6 +33,16 @@ import java.lang.annotation.Target;
  * in some way, perhaps by having a fixed order for the guards, perhaps by having circuit breakers ignore client
  * exceptions, or some combination of the two.
  * </p>
+ * <p>
+ * A method may name a {@link #fallback() fallback} on the same bean, which is invoked in place of the guarded method
+ * when a guard rejects the call or the call fails. For example:
+ * </p>
+ * <pre>
+ * &#64;GuardedBy(value = { "messageServiceBreaker" }, fallback = "getCachedMotd")
+ * public String getMotd() { ... }
+ * 
+ * public String getCachedMotd(Exception e) { ... }
+ * </pre>
  *  
  * @author Willie Wheeler (willie.wheeler@gmail.com)
  * @since 1.0
@@ -42,5 +52,24 @@ import java.lang.annotation.Target;
 @Documented
 public @interface GuardedBy {
 
+	/**
+	 * Names of the guard beans to apply, outermost first. May be omitted when the annotation only names a
+	 * {@link #fallback()}.
+	 */
 	String[] value() default "";
+	
+	/**
+	 * Name of a method on the same bean to invoke when the guarded call throws one of the {@link #fallbackOn()}
+	 * exceptions. The fallback takes either the same parameters as the guarded method, or those parameters followed by
+	 * a single exception parameter, which receives the failure; its return type must be assignable to the guarded
+	 * method's. The fallback is resolved when the proxy is created, and a missing fallback fails the proxy creation.
+	 * Defaults to no fallback.
+	 */
+	String fallback() default "";
+	
+	/**
+	 * Exception types that trigger the {@link #fallback()}. Anything else propagates to the caller. Defaults to all
+	 * exceptions, which covers both guard rejections and failures of the method itself.
+	 */
+	Class<? extends Throwable>[] fallbackOn() default { Exception.class };
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite;
+
+import java.lang.reflect.Method;
+
+/**
+ * <p>
+ * {@link GuardCallback} that also describes the method invocation it stands for. Guards can use this to make
+ * per-invocation decisions, such as deriving a rate limiting key from the method arguments.
+ * </p>
+ * <p>
+ * Callbacks created by the guard list interceptor always implement this interface. Callbacks passed directly to a
+ * guard template may implement it as well.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public interface InvocationGuardCallback<T> extends GuardCallback<T> {
+	
+	/**
+	 * @return invoked method
+	 */
+	Method getMethod();
+	
+	/**
+	 * @return invocation arguments, never null
+	 */
+	Object[] getArguments();
+	
+	/**
+	 * @return target object, or null for static invocations
+	 */
+	Object getTarget();
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite;
+
+/**
+ * <p>
+ * {@link Guard} that can hand out its permit as a {@link GuardLease} instead of wrapping a callback, for work whose
+ * extent isn't a single synchronous call:
+ * </p>
+ * <pre>
+ * try (GuardLease lease = throttle.acquire()) {
+ *     export(out);
+ * }
+ * </pre>
+ * <p>
+ * Bulk callers can take several permits in one operation with {@link #acquire(int, GuardCallback)}, which costs
+ * about as much as taking one; {@link GuardLeases#acquireAll(java.util.List, int, GuardCallback)} does the same
+ * across several guards.
+ * </p>
+ * <p>
+ * The guard list interceptor uses leases for methods returning streams, readers, writers or other closeable
+ * resources, holding the permit until the caller closes the returned resource.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public interface LeasableGuard extends Guard {
+	
+	/**
+	 * Acquires a lease, or rejects it exactly as {@link #execute(GuardCallback)} would reject a call.
+	 * 
+	 * @return lease, to be closed once the work is done
+	 * @throws Exception if the guard rejects the lease
+	 */
+	GuardLease acquire() throws Exception;
+	
+	/**
+	 * Acquires a lease for the given work. Guards that key their state, such as rate limiters, resolve the key from
+	 * the callback; the callback isn't executed.
+	 * 
+	 * @param context callback describing the leased work
+	 * @return lease, to be closed once the work is done
+	 * @throws Exception if the guard rejects the lease
+	 */
+	GuardLease acquire(GuardCallback<?> context) throws Exception;
+	
+	/**
+	 * Acquires up to the given number of permits in a single operation. The guard admits as many as it can right now
+	 * and never waits for more, so the lease may hold fewer permits than requested; check
+	 * {@link GuardLease#getPermits()}. If it can't admit any, it rejects the lease as {@link #acquire()} would.
+	 * 
+	 * @param permits number of permits wanted
+	 * @param context callback describing the leased work
+	 * @return lease holding between 1 and <code>permits</code> permits
+	 * @throws IllegalArgumentException if permits &lt; 1
+	 * @throws Exception if the guard can't admit any permits
+	 */
+	GuardLease acquire(int permits, GuardCallback<?> context) throws Exception;
+}
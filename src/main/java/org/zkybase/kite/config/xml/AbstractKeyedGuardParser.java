@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.config.xml;
+
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.AbstractSingleBeanDefinitionParser;
+import org.springframework.beans.factory.xml.ParserContext;
+import org.w3c.dom.Element;
+import org.zkybase.kite.key.ExpressionKeyResolver;
+
+
+/**
+ * Base class for parsers of guards that key their state by a <code>KeyResolver</code>. Handles the mutually exclusive
+ * <code>keyResolver</code> and <code>keyExpression</code> attributes.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+abstract class AbstractKeyedGuardParser extends AbstractSingleBeanDefinitionParser {
+	
+	/**
+	 * Sets the <code>keyResolver</code> property from the element's <code>keyResolver</code> or
+	 * <code>keyExpression</code> attribute, if either is present.
+	 * 
+	 * @param elem guard element
+	 * @param parserCtx parser context
+	 * @param builder guard bean definition builder
+	 */
+	protected void parseKeyResolver(Element elem, ParserContext parserCtx, BeanDefinitionBuilder builder) {
+		if (elem.hasAttribute("keyResolver") && elem.hasAttribute("keyExpression")) {
+			parserCtx.getReaderContext().error("Only one of 'keyResolver' and 'keyExpression' may be given", elem);
+		} else if (elem.hasAttribute("keyResolver")) {
+			builder.addPropertyReference("keyResolver", elem.getAttribute("keyResolver"));
+		} else if (elem.hasAttribute("keyExpression")) {
+			BeanDefinitionBuilder resolverBuilder =
+				BeanDefinitionBuilder.genericBeanDefinition(ExpressionKeyResolver.class);
+			resolverBuilder.addConstructorArgValue(elem.getAttribute("keyExpression"));
+			builder.addPropertyValue("keyResolver", resolverBuilder.getBeanDefinition());
+		}
+	}
+}
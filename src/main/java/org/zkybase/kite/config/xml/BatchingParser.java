@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.config.xml;
+
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.xml.ParserContext;
+import org.springframework.util.StringUtils;
+import org.w3c.dom.Element;
+import org.zkybase.kite.guard.BatchingTemplate;
+
+
+/**
+ * Parses <code>&lt;kite:batching&gt;</code> elements in Spring application context configuration files. The
+ * <code>guards</code> attribute is a comma-separated list of guard bean names.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+class BatchingParser extends AbstractKeyedGuardParser {
+	private static final String[] OPTIONAL_PROPERTIES = { "maxBatchSize", "maxDelay" };
+	
+	@Override
+	protected Class<?> getBeanClass(Element elem) {
+		return BatchingTemplate.class;
+	}
+	
+	@Override
+	protected void doParse(Element elem, ParserContext parserCtx, BeanDefinitionBuilder builder) {
+		builder.addPropertyReference("batchHandler", elem.getAttribute("batchHandler"));
+		for (String property : OPTIONAL_PROPERTIES) {
+			if (elem.hasAttribute(property)) {
+				builder.addPropertyValue(property, elem.getAttribute(property));
+			}
+		}
+		parseKeyResolver(elem, parserCtx, builder);
+		
+		if (elem.hasAttribute("guards")) {
+			ManagedList<RuntimeBeanReference> guards = new ManagedList<RuntimeBeanReference>();
+			guards.setSource(parserCtx.extractSource(elem));
+			for (String guardName : StringUtils.tokenizeToStringArray(elem.getAttribute("guards"), ",")) {
+				guards.add(new RuntimeBeanReference(guardName));
+			}
+			builder.addPropertyValue("guards", guards);
+		}
+	}
+}
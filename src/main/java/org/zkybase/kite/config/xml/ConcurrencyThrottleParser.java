@@ -28,6 +28,8 @@ import org.zkybase.kite.guard.ConcurrencyThrottleTemplate;
  * @since 1.0
  */
 class ConcurrencyThrottleParser extends AbstractSingleBeanDefinitionParser {
+	private static final String[] OPTIONAL_PROPERTIES =
+		{ "adaptive", "minLimit", "maxLimit", "maxQueueLength", "maxWaitTime", "queueOrder" };
 	
 	@Override
 	protected Class<?> getBeanClass(Element elem) {
@@ -38,5 +40,10 @@ class ConcurrencyThrottleParser extends AbstractSingleBeanDefinitionParser {
 	protected void doParse(Element elem, BeanDefinitionBuilder builder) {
 		// FIXME Hm, would like to set the bean definition's source, but the builder.setSource() method is deprecated...
 		builder.addConstructorArgValue(elem.getAttribute("limit"));
+		for (String property : OPTIONAL_PROPERTIES) {
+			if (elem.hasAttribute(property)) {
+				builder.addPropertyValue(property, elem.getAttribute(property));
+			}
+		}
 	}
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.config.xml;
+
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.AbstractSingleBeanDefinitionParser;
+import org.w3c.dom.Element;
+import org.zkybase.kite.guard.HedgingTemplate;
+
+
+/**
+ * Parses <code>&lt;kite:hedging&gt;</code> elements in Spring application context configuration files.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+class HedgingParser extends AbstractSingleBeanDefinitionParser {
+	private static final String[] OPTIONAL_PROPERTIES = { "hedgeDelay", "hedgePercentile", "maxHedgePercent" };
+	
+	@Override
+	protected Class<?> getBeanClass(Element elem) {
+		return HedgingTemplate.class;
+	}
+	
+	@Override
+	protected void doParse(Element elem, BeanDefinitionBuilder builder) {
+		for (String property : OPTIONAL_PROPERTIES) {
+			if (elem.hasAttribute(property)) {
+				builder.addPropertyValue(property, elem.getAttribute(property));
+			}
+		}
+		if (elem.hasAttribute("executor")) {
+			builder.addPropertyReference("executor", elem.getAttribute("executor"));
+		}
+	}
+}
@@ -40,5 +40,13 @@ public class KiteNamespaceHandler extends NamespaceHandlerSupport {
 		registerBeanDefinitionParser("circuit-breaker", new CircuitBreakerParser());
 		registerBeanDefinitionParser("concurrency-throttle", new ConcurrencyThrottleParser());
 		registerBeanDefinitionParser("rate-limiting-throttle", new RateLimitingThrottleParser());
+		registerBeanDefinitionParser("bulkhead", new BulkheadParser());
+		registerBeanDefinitionParser("timeout", new TimeoutParser());
+		registerBeanDefinitionParser("sla-throttle", new SlaThrottleParser());
+		registerBeanDefinitionParser("retry", new RetryParser());
+		registerBeanDefinitionParser("single-flight", new SingleFlightParser());
+		registerBeanDefinitionParser("batching", new BatchingParser());
+		registerBeanDefinitionParser("hedging", new HedgingParser());
+		registerBeanDefinitionParser("response-cache", new ResponseCacheParser());
 	}
 }
@@ -15,19 +15,34 @@
  */
 package org.zkybase.kite.config.xml;
 
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
-import org.springframework.beans.factory.xml.AbstractSingleBeanDefinitionParser;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.xml.ParserContext;
+import org.springframework.util.xml.DomUtils;
 import org.w3c.dom.Element;
+import org.zkybase.kite.guard.RateLimit;
 import org.zkybase.kite.guard.RateLimitingThrottleTemplate;
 
 
 /**
+ * <p>
  * Parses <code>&lt;kite:rate-limiting-throttle&gt;</code> elements in Spring application context configuration files.
+ * </p>
+ * <p>
+ * The element's own <code>limit</code>, <code>period</code> and <code>burst</code> attributes define the primary rate
+ * limit window. Nested <code>&lt;kite:window&gt;</code> elements define additional windows, all enforced by the same
+ * throttle. The optional <code>keyResolver</code> and <code>keyExpression</code> attributes set how requests are
+ * keyed, and the optional <code>maxKeys</code> and <code>stateStore</code> attributes control where per-key
+ * state is kept; <code>stateStore</code> wins if both are given.
+ * </p>
  * 
  * @author Willie Wheeler (willie.wheeler@gmail.com)
  * @since 1.0
  */
-class RateLimitingThrottleParser extends AbstractSingleBeanDefinitionParser {
+class RateLimitingThrottleParser extends AbstractKeyedGuardParser {
+	private static final String DEFAULT_PERIOD = "3600000";
 	
 	@Override
 	protected Class<?> getBeanClass(Element elem) {
@@ -35,8 +50,41 @@ class RateLimitingThrottleParser extends AbstractSingleBeanDefinitionParser {
 	}
 	
 	@Override
-	protected void doParse(Element elem, BeanDefinitionBuilder builder) {
+	protected void doParse(Element elem, ParserContext parserCtx, BeanDefinitionBuilder builder) {
 		// FIXME Hm, would like to set the bean definition's source, but the builder.setSource() method is deprecated...
+		ManagedList<BeanDefinition> limits = new ManagedList<BeanDefinition>();
+		limits.setSource(parserCtx.extractSource(elem));
+		
+		if (elem.hasAttribute("limit")) {
+			limits.add(parseRateLimit(elem, parserCtx));
+		}
+		for (Element windowElem : DomUtils.getChildElementsByTagName(elem, "window")) {
+			limits.add(parseRateLimit(windowElem, parserCtx));
+		}
+		
+		if (limits.isEmpty()) {
+			parserCtx.getReaderContext().error("Either 'limit' or at least one <window> is required", elem);
+		}
+		builder.addConstructorArgValue(limits);
+		
+		parseKeyResolver(elem, parserCtx, builder);
+		
+		if (elem.hasAttribute("stateStore")) {
+			builder.addPropertyReference("stateStore", elem.getAttribute("stateStore"));
+		} else if (elem.hasAttribute("maxKeys")) {
+			builder.addPropertyValue("maxKeys", elem.getAttribute("maxKeys"));
+		}
+	}
+	
+	private BeanDefinition parseRateLimit(Element elem, ParserContext parserCtx) {
+		BeanDefinitionBuilder builder = BeanDefinitionBuilder.genericBeanDefinition(RateLimit.class);
 		builder.addConstructorArgValue(elem.getAttribute("limit"));
+		builder.addConstructorArgValue(elem.hasAttribute("period") ? elem.getAttribute("period") : DEFAULT_PERIOD);
+		if (elem.hasAttribute("burst")) {
+			builder.addConstructorArgValue(elem.getAttribute("burst"));
+		}
+		AbstractBeanDefinition def = builder.getBeanDefinition();
+		def.setSource(parserCtx.extractSource(elem));
+		return def;
 	}
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.config.xml;
+
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.xml.AbstractSingleBeanDefinitionParser;
+import org.springframework.util.StringUtils;
+import org.w3c.dom.Element;
+import org.zkybase.kite.guard.RetryTemplate;
+
+
+/**
+ * Parses <code>&lt;kite:retry&gt;</code> elements in Spring application context configuration files.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+class RetryParser extends AbstractSingleBeanDefinitionParser {
+	private static final String[] OPTIONAL_PROPERTIES = {
+		"maxAttempts", "initialBackoff", "maxBackoff", "backoffMultiplier", "retryBudgetPercent", "retryBudgetCapacity"
+	};
+	private static final String[] EXCEPTION_LIST_PROPERTIES = { "retryableExceptions", "nonRetryableExceptions" };
+	
+	@Override
+	protected Class<?> getBeanClass(Element elem) {
+		return RetryTemplate.class;
+	}
+	
+	@Override
+	protected void doParse(Element elem, BeanDefinitionBuilder builder) {
+		for (String property : OPTIONAL_PROPERTIES) {
+			if (elem.hasAttribute(property)) {
+				builder.addPropertyValue(property, elem.getAttribute(property));
+			}
+		}
+		
+		// Exception lists are comma-separated class names, which Spring converts to classes
+		for (String property : EXCEPTION_LIST_PROPERTIES) {
+			if (elem.hasAttribute(property)) {
+				ManagedList<String> classNames = new ManagedList<String>();
+				for (String className : StringUtils.tokenizeToStringArray(elem.getAttribute(property), ",")) {
+					classNames.add(className);
+				}
+				builder.addPropertyValue(property, classNames);
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.exception;
+
+/**
+ * Runtime exception indicating that a call protected by a bulkhead was rejected because all of the bulkhead's threads
+ * were busy and its queue was full.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@SuppressWarnings("serial")
+public class BulkheadFullException extends GuardException {
+	private int maxThreads;
+	private int queueCapacity;
+
+	public BulkheadFullException(int maxThreads, int queueCapacity) {
+		super("Bulkhead full: " + maxThreads + " threads busy, queue capacity " + queueCapacity);
+		this.maxThreads = maxThreads;
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getMaxThreads() { return maxThreads; }
+
+	public int getQueueCapacity() { return queueCapacity; }
+}
@@ -30,4 +30,12 @@ public class GuardException extends NestedRuntimeException {
 	public GuardException(String msg) {
 		super(msg);
 	}
+
+	/**
+	 * @param msg
+	 * @param cause
+	 */
+	public GuardException(String msg, Throwable cause) {
+		super(msg, cause);
+	}
 }
@@ -25,11 +25,23 @@ package org.zkybase.kite.exception;
 @SuppressWarnings("serial")
 public class RateLimitExceededException extends GuardException {
 	private int limit;
+	private long period;
 	
 	public RateLimitExceededException(int limit) {
 		super("Rate limit is " + limit);
 		this.limit = limit;
 	}
 	
+	public RateLimitExceededException(int limit, long period) {
+		super("Rate limit is " + limit + " per " + period + " ms");
+		this.limit = limit;
+		this.period = period;
+	}
+	
 	public int getLimit() { return limit; }
+	
+	/**
+	 * @return period in milliseconds of the exceeded rate limit, or 0 if unknown
+	 */
+	public long getPeriod() { return period; }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.springframework.util.Assert.isTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.GuardLease;
+
+/**
+ * Base class for the leases handed out by the guards in this package. Tracks the permits held and the failures
+ * recorded, makes {@link #close()} idempotent, and leaves subclasses to return permits to their guard.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+abstract class AbstractGuardLease implements GuardLease {
+	
+	/**
+	 * Context for leases acquired without one. Key resolvers that need the method invocation won't find it here.
+	 */
+	static final GuardCallback<Object> NO_CONTEXT = new GuardCallback<Object>() {
+		public Object doInGuard() { throw new UnsupportedOperationException("Lease contexts can't be executed"); }
+	};
+	
+	private final AtomicInteger permits;
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile Exception failure;
+	
+	protected AbstractGuardLease(int permits) { this.permits = new AtomicInteger(permits); }
+	
+	@Override
+	public int getPermits() { return permits.get(); }
+	
+	@Override
+	public void recordFailure(Exception failure) {
+		this.failure = failure;
+		failures.incrementAndGet();
+	}
+	
+	@Override
+	public void release(int count) {
+		isTrue(count >= 0, "permits must be >= 0");
+		while (true) {
+			int curr = permits.get();
+			int taken = Math.min(curr, count);
+			if (taken == 0) { return; }
+			if (permits.compareAndSet(curr, curr - taken)) {
+				releaseUnused(taken);
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public void close() {
+		int remaining = permits.getAndSet(0);
+		if (remaining > 0) { complete(remaining, Math.min(failures.get(), remaining), failure); }
+	}
+	
+	/**
+	 * Returns permits that weren't used, without recording outcomes.
+	 * 
+	 * @param count number of permits
+	 */
+	protected abstract void releaseUnused(int count);
+	
+	/**
+	 * Returns the remaining permits when the lease is closed, recording their outcomes. Called at most once.
+	 * 
+	 * @param count number of permits
+	 * @param failed how many of them failed
+	 * @param failure most recent failure, or <code>null</code> if none failed
+	 */
+	protected abstract void complete(int count, int failed, Exception failure);
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Strategy interface for the bulk call behind a {@link BatchingTemplate}. The template gathers the items of many
+ * individual calls and hands them to the handler in one batch.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public interface BatchHandler<I, R> {
+	
+	/**
+	 * Handles a batch of items, typically with a single call to a bulk API.
+	 * 
+	 * @param items items from the individual calls, in arrival order; may contain duplicates
+	 * @return one result per item, in the same order
+	 * @throws Exception if the batch fails, in which case every call in the batch fails with the same exception
+	 */
+	List<R> handleBatch(List<I> items) throws Exception;
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.Guard;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.key.ArgumentKeyResolver;
+import org.zkybase.kite.key.KeyResolver;
+
+/**
+ * <p>
+ * Guard that merges individual calls into bulk calls. Each call contributes one item, resolved by the
+ * {@link #setKeyResolver(KeyResolver) key resolver} (by default the first method argument), to the current batch. A
+ * batch closes once it holds {@link #setMaxBatchSize(int) maxBatchSize} items or {@link #setMaxDelay(long) maxDelay}
+ * ms after it opened, whichever comes first, and its items go to the {@link BatchHandler} in a single call. Each
+ * caller then receives the result for its own item, or the exception if the batch failed.
+ * </p>
+ * <p>
+ * The batching guard answers calls from the handler, so it ends the guard list: guards after it and the guarded
+ * method itself don't run. Guards that should apply to the bulk call, such as throttles and rate limiters, go in the
+ * {@link #setGuards(List) guards} property instead, where each batch counts as one call. Since a batch is no single
+ * method invocation, those guards can't key their state by method arguments.
+ * </p>
+ * <p>
+ * There's no background thread. The call that opens a batch leads it: it waits for the batch to fill or for the delay
+ * to pass, then runs the handler, while the other calls in the batch wait for the outcome. Adding to a batch is a
+ * couple of atomic operations. Expect the latency of each call to grow by up to <code>maxDelay</code> in exchange for
+ * far fewer backend requests.
+ * </p>
+ * <p>
+ * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@ManagedResource
+public class BatchingTemplate extends AbstractGuard {
+	private static final Guard[] NO_GUARDS = new Guard[0];
+	
+	// Stands in for null items, since an empty slot means the item hasn't been published yet
+	private static final Object NULL_ITEM = new Object();
+	private static Logger log = LoggerFactory.getLogger(BatchingTemplate.class);
+	
+	// Configuration
+	private volatile BatchHandler<Object, ?> batchHandler;
+	private volatile KeyResolver keyResolver = new ArgumentKeyResolver(0);
+	private volatile int maxBatchSize = 100;
+	private volatile long maxDelay = 10L;
+	private volatile Guard[] guards = NO_GUARDS;
+	
+	// State
+	private final AtomicReference<Batch> currentBatch = new AtomicReference<Batch>();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong itemCount = new AtomicLong();
+	
+	public BatchHandler<?, ?> getBatchHandler() { return batchHandler; }
+	
+	/**
+	 * @param batchHandler handler for the bulk calls
+	 */
+	@SuppressWarnings("unchecked")
+	public void setBatchHandler(BatchHandler<?, ?> batchHandler) {
+		Assert.notNull(batchHandler, "batchHandler can't be null");
+		this.batchHandler = (BatchHandler<Object, ?>) batchHandler;
+	}
+	
+	public KeyResolver getKeyResolver() { return keyResolver; }
+	
+	/**
+	 * @param keyResolver resolver for the item each call contributes to its batch; defaults to the first method
+	 * argument
+	 */
+	public void setKeyResolver(KeyResolver keyResolver) {
+		Assert.notNull(keyResolver, "keyResolver can't be null");
+		this.keyResolver = keyResolver;
+	}
+	
+	@ManagedAttribute(description = "Maximum number of items per batch")
+	public int getMaxBatchSize() { return maxBatchSize; }
+	
+	/**
+	 * @param maxBatchSize maximum number of items per batch; defaults to 100
+	 * @throws IllegalArgumentException if maxBatchSize &lt; 1
+	 */
+	@ManagedAttribute(description = "Maximum number of items per batch")
+	public void setMaxBatchSize(int maxBatchSize) {
+		Assert.isTrue(maxBatchSize >= 1, "maxBatchSize must be >= 1");
+		this.maxBatchSize = maxBatchSize;
+	}
+	
+	@ManagedAttribute(description = "Maximum delay in ms between a batch opening and its dispatch")
+	public long getMaxDelay() { return maxDelay; }
+	
+	/**
+	 * @param maxDelay maximum delay in ms between a batch opening and its dispatch; defaults to 10
+	 * @throws IllegalArgumentException if maxDelay &lt; 0
+	 */
+	@ManagedAttribute(description = "Maximum delay in ms between a batch opening and its dispatch")
+	public void setMaxDelay(long maxDelay) {
+		Assert.isTrue(maxDelay >= 0L, "maxDelay must be >= 0");
+		this.maxDelay = maxDelay;
+	}
+	
+	public List<Guard> getGuards() {
+		List<Guard> guardList = new ArrayList<Guard>();
+		for (Guard guard : guards) { guardList.add(guard); }
+		return guardList;
+	}
+	
+	/**
+	 * @param guards guards applied to each bulk call, outermost first; defaults to none
+	 */
+	public void setGuards(List<Guard> guards) {
+		Assert.notNull(guards, "guards can't be null");
+		this.guards = guards.toArray(new Guard[guards.size()]);
+	}
+	
+	@ManagedAttribute(description = "Number of batches dispatched")
+	public long getBatchCount() { return batchCount.get(); }
+	
+	@ManagedAttribute(description = "Number of items dispatched in batches")
+	public long getItemCount() { return itemCount.get(); }
+	
+	@ManagedAttribute(description = "Average number of items per batch")
+	public double getAverageBatchSize() {
+		long batches = batchCount.get();
+		return (batches == 0L ? 0.0 : itemCount.get() / (double) batches);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public <T> T execute(GuardCallback<T> action) throws Exception {
+		Assert.state(batchHandler != null, "batchHandler is required");
+		Object item = keyResolver.resolveKey(action);
+		Object slotItem = (item == null ? NULL_ITEM : item);
+		
+		while (true) {
+			Batch batch = currentBatch.get();
+			if (batch == null) {
+				Batch newBatch = new Batch(Thread.currentThread(), maxBatchSize, slotItem);
+				if (currentBatch.compareAndSet(null, newBatch)) { return (T) lead(newBatch); }
+				continue;
+			}
+			
+			int index = batch.claimed.getAndIncrement();
+			if (index < batch.capacity) {
+				batch.items.set(index, slotItem);
+				if (index == batch.capacity - 1) {
+					currentBatch.compareAndSet(batch, null);
+					LockSupport.unpark(batch.leader);
+				}
+				return (T) batch.await(index);
+			}
+			
+			// The batch is full or closed, so make way for a new one
+			currentBatch.compareAndSet(batch, null);
+		}
+	}
+	
+	private Object lead(Batch batch) throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+		while (batch.claimed.get() < batch.capacity && !Thread.currentThread().isInterrupted()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0L) { break; }
+			LockSupport.parkNanos(this, remaining);
+		}
+		
+		// Closing the batch turns away late arrivals, but items claimed before the close may still be in the middle of
+		// being published
+		int size = Math.min(batch.claimed.getAndSet(batch.capacity), batch.capacity);
+		currentBatch.compareAndSet(batch, null);
+		List<Object> items = new ArrayList<Object>(size);
+		for (int i = 0; i < size; i++) {
+			Object item;
+			while ((item = batch.items.get(i)) == null) { Thread.yield(); }
+			items.add(item == NULL_ITEM ? null : item);
+		}
+		
+		batchCount.incrementAndGet();
+		itemCount.addAndGet(size);
+		log.debug("Dispatching batch of {} item(s)", size);
+		try {
+			List<?> results = dispatch(items);
+			if (results == null || results.size() != size) {
+				throw new IllegalStateException("Batch handler returned " + (results == null ? "null" : results.size() +
+					" results") + " for " + size + " items");
+			}
+			batch.succeed(results);
+		} catch (Exception e) {
+			batch.fail(e);
+		} catch (Error e) {
+			batch.fail(e);
+		}
+		return batch.await(0);
+	}
+	
+	// Runs the handler inside the configured guards, so each batch counts as one call
+	private List<?> dispatch(final List<Object> items) throws Exception {
+		final BatchHandler<Object, ?> handler = batchHandler;
+		GuardCallback<List<?>> call = new GuardCallback<List<?>>() {
+			public List<?> doInGuard() throws Exception { return handler.handleBatch(items); }
+		};
+		Guard[] currGuards = guards;
+		for (int i = currGuards.length - 1; i >= 0; i--) {
+			final Guard guard = currGuards[i];
+			final GuardCallback<List<?>> inner = call;
+			call = new GuardCallback<List<?>>() {
+				public List<?> doInGuard() throws Exception { return guard.execute(inner); }
+			};
+		}
+		return call.doInGuard();
+	}
+	
+	/**
+	 * A batch being filled or dispatched. Slot 0 belongs to the leader from the start; other callers claim slots with
+	 * an atomic increment and publish their items into them. The latch publishes the outcome.
+	 */
+	private static final class Batch {
+		private final Thread leader;
+		private final int capacity;
+		private final AtomicReferenceArray<Object> items;
+		private final AtomicInteger claimed = new AtomicInteger(1);
+		private final CountDownLatch done = new CountDownLatch(1);
+		private List<?> results;
+		private Throwable failure;
+		
+		public Batch(Thread leader, int capacity, Object leaderItem) {
+			this.leader = leader;
+			this.capacity = capacity;
+			this.items = new AtomicReferenceArray<Object>(capacity);
+			items.set(0, leaderItem);
+		}
+		
+		public void succeed(List<?> results) {
+			this.results = results;
+			done.countDown();
+		}
+		
+		public void fail(Throwable failure) {
+			this.failure = failure;
+			done.countDown();
+		}
+		
+		public Object await(int index) throws Exception {
+			done.await();
+			if (failure == null) { return results.get(index); }
+			if (failure instanceof Exception) { throw (Exception) failure; }
+			throw (Error) failure;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Default {@link RateLimitStateStore}, holding up to a fixed number of keys in a concurrent map of primitive arrival
+ * time arrays.
+ * </p>
+ * <p>
+ * When a new key would push the store past its capacity, one thread runs an eviction sweep while other threads carry
+ * on, so the store can briefly overshoot its capacity by about the number of concurrent callers. The sweep first
+ * removes idle keys, whose allowance has been fully replenished and which therefore carry no information. If that
+ * isn't enough to get back under 90% of capacity, it samples the remaining keys' latest arrival times and evicts the
+ * keys below the cutoff, which approximates evicting the least recently used keys.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class BoundedRateLimitStateStore implements RateLimitStateStore {
+	public static final int DEFAULT_CAPACITY = 100000;
+	
+	private final int capacity;
+	private final ConcurrentMap<Object, AtomicLongArray> records;
+	private final SampledEviction<AtomicLongArray> eviction;
+	
+	/**
+	 * Creates a store holding up to {@link #DEFAULT_CAPACITY} keys.
+	 */
+	public BoundedRateLimitStateStore() { this(DEFAULT_CAPACITY); }
+	
+	/**
+	 * @param capacity maximum number of keys
+	 * @throws IllegalArgumentException if capacity &lt; 1
+	 */
+	public BoundedRateLimitStateStore(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be >= 1");
+		}
+		this.capacity = capacity;
+		this.records = new ConcurrentHashMap<Object, AtomicLongArray>(Math.min(capacity, 1024));
+		
+		// Keys whose allowance has been fully replenished carry no information
+		this.eviction = new SampledEviction<AtomicLongArray>(records) {
+			protected long lastAccess(AtomicLongArray times) { return latest(times); }
+			
+			protected boolean isExpired(AtomicLongArray times, long now) { return latest(times) <= now; }
+		};
+	}
+	
+	public int getCapacity() { return capacity; }
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.guard.RateLimitStateStore#getArrivalTimes(java.lang.Object, int, long)
+	 */
+	@Override
+	public AtomicLongArray getArrivalTimes(Object key, int windows, long now) {
+		AtomicLongArray times = records.get(key);
+		if (times == null) {
+			if (records.size() >= capacity) { eviction.evict(capacity, now); }
+			AtomicLongArray newTimes = new AtomicLongArray(windows);
+			times = records.putIfAbsent(key, newTimes);
+			if (times == null) { times = newTimes; }
+		}
+		return times;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.guard.RateLimitStateStore#size()
+	 */
+	@Override
+	public int size() { return records.size(); }
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.guard.RateLimitStateStore#getEvictionCount()
+	 */
+	@Override
+	public long getEvictionCount() { return eviction.getEvictionCount(); }
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.guard.RateLimitStateStore#clear()
+	 */
+	@Override
+	public void clear() { records.clear(); }
+	
+	private static long latest(AtomicLongArray times) {
+		long latest = Long.MIN_VALUE;
+		for (int i = 0; i < times.length(); i++) {
+			latest = Math.max(latest, times.get(i));
+		}
+		return latest;
+	}
+}
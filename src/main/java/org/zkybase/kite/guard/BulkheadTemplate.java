@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.ForkableGuardCallback;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.BulkheadFullException;
+import org.zkybase.kite.exception.GuardTimeoutException;
+
+/**
+ * <p>
+ * Guard that runs the protected action on its own bounded thread pool, so that a slow dependency ties up the
+ * bulkhead's threads rather than the caller's. Give each dependency its own bulkhead and one degraded backend can't
+ * exhaust the request threads of the application calling it.
+ * </p>
+ * <p>
+ * The pool has up to <code>maxThreads</code> threads, which time out after <code>keepAliveTime</code> ms of idleness,
+ * and a queue holding up to <code>queueCapacity</code> waiting calls. The default capacity, 0, hands calls directly to
+ * a thread. Calls arriving when every thread is busy and the queue is full fail immediately with a
+ * {@link BulkheadFullException}. If <code>timeout</code> is set, the caller waits at most that many ms for the result;
+ * the call is then cancelled (its thread is interrupted) and the caller gets a {@link GuardTimeoutException}.
+ * </p>
+ * <p>
+ * With <code>virtualThreads</code> set, the pool's threads are virtual threads. This needs Java 21 or later. The bounds
+ * still apply, so the bulkhead still caps concurrent calls to the dependency.
+ * </p>
+ * <p>
+ * The action runs on a different thread, so thread-bound state such as the Spring Security context isn't visible to it
+ * or to guards after this one in a guard list. Put guards that rely on such state, like the rate-limiting throttle,
+ * ahead of the bulkhead.
+ * </p>
+ * <p>
+ * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@ManagedResource
+public class BulkheadTemplate extends AbstractGuard implements DisposableBean {
+	private static Logger log = LoggerFactory.getLogger(BulkheadTemplate.class);
+	
+	// Configuration
+	private int maxThreads = 10;
+	private int queueCapacity = 0;
+	private long keepAliveTime = 60000L;
+	private long timeout = 0L;
+	private boolean virtualThreads = false;
+	
+	private final AtomicReference<ThreadPoolExecutor> executor = new AtomicReference<ThreadPoolExecutor>();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	
+	@ManagedAttribute(description = "Maximum number of threads")
+	public int getMaxThreads() { return maxThreads; }
+	
+	/**
+	 * @param maxThreads maximum number of threads; defaults to 10
+	 * @throws IllegalArgumentException if maxThreads &lt; 1
+	 */
+	public void setMaxThreads(int maxThreads) {
+		if (maxThreads < 1) {
+			throw new IllegalArgumentException("maxThreads must be >= 1");
+		}
+		this.maxThreads = maxThreads;
+	}
+	
+	@ManagedAttribute(description = "Maximum number of calls waiting for a thread")
+	public int getQueueCapacity() { return queueCapacity; }
+	
+	/**
+	 * @param queueCapacity maximum number of calls waiting for a thread; defaults to 0
+	 * @throws IllegalArgumentException if queueCapacity &lt; 0
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 0) {
+			throw new IllegalArgumentException("queueCapacity must be >= 0");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+	
+	@ManagedAttribute(description = "Time in ms an idle thread is kept")
+	public long getKeepAliveTime() { return keepAliveTime; }
+	
+	/**
+	 * @param keepAliveTime time in ms an idle thread is kept before it terminates; defaults to 60000
+	 * @throws IllegalArgumentException if keepAliveTime &lt; 1
+	 */
+	public void setKeepAliveTime(long keepAliveTime) {
+		if (keepAliveTime < 1L) {
+			throw new IllegalArgumentException("keepAliveTime must be >= 1");
+		}
+		this.keepAliveTime = keepAliveTime;
+	}
+	
+	@ManagedAttribute(description = "Time in ms the caller waits for a result; 0 waits indefinitely")
+	public long getTimeout() { return timeout; }
+	
+	/**
+	 * @param timeout time in ms the caller waits for a result before the call is cancelled. The default, 0, waits
+	 * indefinitely.
+	 * @throws IllegalArgumentException if timeout &lt; 0
+	 */
+	@ManagedAttribute(description = "Time in ms the caller waits for a result; 0 waits indefinitely")
+	public void setTimeout(long timeout) {
+		if (timeout < 0L) {
+			throw new IllegalArgumentException("timeout must be >= 0");
+		}
+		this.timeout = timeout;
+	}
+	
+	@ManagedAttribute(description = "Whether calls run on virtual threads")
+	public boolean isVirtualThreads() { return virtualThreads; }
+	
+	/**
+	 * @param virtualThreads whether calls run on virtual threads; defaults to false
+	 * @throws IllegalStateException if virtual threads are requested but the JVM doesn't support them
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !VirtualThreads.isSupported()) {
+			throw new IllegalStateException("Virtual threads require Java 21 or later");
+		}
+		this.virtualThreads = virtualThreads;
+	}
+	
+	@ManagedAttribute(description = "Number of threads currently running calls")
+	public int getActiveCount() {
+		ThreadPoolExecutor currExecutor = executor.get();
+		return (currExecutor == null ? 0 : currExecutor.getActiveCount());
+	}
+	
+	@ManagedAttribute(description = "Number of calls waiting for a thread")
+	public int getQueueSize() {
+		ThreadPoolExecutor currExecutor = executor.get();
+		return (currExecutor == null ? 0 : currExecutor.getQueue().size());
+	}
+	
+	@ManagedAttribute(description = "Number of calls rejected because the bulkhead was full")
+	public long getRejectedCount() { return rejectedCount.get(); }
+	
+	public <T> T execute(GuardCallback<T> action) throws Exception {
+		final GuardCallback<T> task = fork(action);
+		final Future<T> future;
+		try {
+			future = getExecutor().submit(new Callable<T>() {
+				public T call() throws Exception { return task.doInGuard(); }
+			});
+		} catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			log.warn("Request rejected: bulkhead {} is full", getName());
+			throw new BulkheadFullException(maxThreads, queueCapacity);
+		}
+		
+		try {
+			return (timeout > 0L ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) { throw (Exception) cause; }
+			if (cause instanceof Error) { throw (Error) cause; }
+			throw new RuntimeException(cause);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			log.warn("Request timed out: bulkhead {} waited {} ms", getName(), timeout);
+			throw new GuardTimeoutException(timeout);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Shuts down the thread pool, interrupting running calls.
+	 */
+	@Override
+	public void destroy() {
+		ThreadPoolExecutor currExecutor = executor.getAndSet(null);
+		if (currExecutor != null) {
+			currExecutor.shutdownNow();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> GuardCallback<T> fork(GuardCallback<T> action) {
+		return (action instanceof ForkableGuardCallback ? ((ForkableGuardCallback<T>) action).fork() : action);
+	}
+	
+	// The pool is created on first use, after the configuration is complete.
+	private ThreadPoolExecutor getExecutor() {
+		ThreadPoolExecutor currExecutor = executor.get();
+		if (currExecutor == null) {
+			ThreadPoolExecutor newExecutor = createExecutor();
+			if (executor.compareAndSet(null, newExecutor)) {
+				currExecutor = newExecutor;
+			} else {
+				newExecutor.shutdown();
+				currExecutor = executor.get();
+			}
+		}
+		return currExecutor;
+	}
+	
+	private ThreadPoolExecutor createExecutor() {
+		BlockingQueue<Runnable> queue = (queueCapacity == 0 ?
+			new SynchronousQueue<Runnable>() :
+			new ArrayBlockingQueue<Runnable>(queueCapacity));
+		String prefix = (getName() != null ? getName() : "kite-bulkhead") + "-";
+		ThreadFactory threadFactory =
+			(virtualThreads ? VirtualThreads.newThreadFactory(prefix) : new DaemonThreadFactory(prefix));
+		ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(
+			maxThreads, maxThreads, keepAliveTime, TimeUnit.MILLISECONDS, queue, threadFactory);
+		newExecutor.allowCoreThreadTimeOut(true);
+		return newExecutor;
+	}
+}
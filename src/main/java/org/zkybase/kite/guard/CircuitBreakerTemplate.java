@@ -20,7 +20,11 @@ import static org.springframework.util.Assert.notNull;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,7 +32,10 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.AsyncGuard;
 import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.GuardLease;
+import org.zkybase.kite.LeasableGuard;
 import org.zkybase.kite.exception.CircuitOpenException;
 
 /**
@@ -57,6 +64,24 @@ import org.zkybase.kite.exception.CircuitOpenException;
  * href="http://www.pragprog.com/titles/mnee/release-it">Release It!</a> (Pragmatic).
  * </p>
  * <p>
+ * By default the breaker trips after a configurable number of consecutive exceptions. Alternatively it can trip on
+ * failure rate: setting a {@link #setFailureRateThreshold(float) failure rate threshold} makes the breaker track call
+ * outcomes over a sliding window, either the last <em>n</em> calls or the last <em>n</em> seconds, and trip once the
+ * percentage of failed calls in the window reaches the threshold. No rate is computed until the window holds a
+ * {@link #setMinimumNumberOfCalls(int) minimum number of calls}, so a handful of early failures can't trip the breaker.
+ * </p>
+ * <p>
+ * Dependencies often degrade by slowing down rather than failing. Setting a
+ * {@link #setSlowCallDurationThreshold(long) slow call duration threshold} makes the breaker time each call (one
+ * <code>System.nanoTime()</code> pair, no allocation) and record calls over the threshold in the sliding window; the
+ * breaker trips once the percentage of slow calls reaches the {@link #setSlowCallRateThreshold(float) slow call rate
+ * threshold}, whether or not the calls succeed. A slow probe re-trips a half-open breaker.
+ * </p>
+ * <p>
+ * Asynchronous actions are judged by the stage they return: the breaker records the outcome when the stage completes,
+ * so a call that returns a future promptly but fails later still counts as a failure.
+ * </p>
+ * <p>
  * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts. You can, for
  * example, use JMX to trip and reset breakers manually.
  * </p>
@@ -65,21 +90,40 @@ import org.zkybase.kite.exception.CircuitOpenException;
  * @since 1.0
  */
 @ManagedResource
-public class CircuitBreakerTemplate extends AbstractGuard {
+public class CircuitBreakerTemplate extends AbstractGuard implements AsyncGuard, LeasableGuard {
 	public enum State { CLOSED, OPEN, HALF_OPEN };
+	public enum SlidingWindowType { COUNT_BASED, TIME_BASED };
 
 	private static final long NO_SCHEDULED_RETRY = Long.MAX_VALUE;
+	
+	// The breaker's state, half-open probe count and retry time are packed into a single word so that every state
+	// transition is one compare-and-set: [state: 2 bits][probes in flight: 16 bits][retry time in ms: 46 bits].
+	private static final State[] STATES = State.values();
+	private static final int STATE_SHIFT = 62;
+	private static final int PROBE_SHIFT = 46;
+	private static final long PROBE_MASK = 0xFFFFL;
+	private static final long ONE_PROBE = 1L << PROBE_SHIFT;
+	private static final long RETRY_MASK = (1L << PROBE_SHIFT) - 1L;
+	private static final long CLOSED_WORD = word(State.CLOSED, 0, RETRY_MASK);
 	private static Logger log = LoggerFactory.getLogger(CircuitBreakerTemplate.class);
 	
 	// Configuration
 	private int exceptionThreshold = 5;
 	private long timeout = 30000L;
 	private List<Class<? extends Exception>> handledExceptions = new ArrayList<Class<? extends Exception>>();
+	private float failureRateThreshold = 0.0f;
+	private SlidingWindowType slidingWindowType = SlidingWindowType.COUNT_BASED;
+	private int slidingWindowSize = 100;
+	private int minimumNumberOfCalls = 10;
+	private int halfOpenMaxCalls = 1;
+	private long slowCallDurationThreshold = 0L;
+	private long slowCallDurationThresholdNanos = 0L;
+	private float slowCallRateThreshold = 100.0f;
 
 	// Volatile state
-	private volatile State state = State.CLOSED;
+	private final AtomicLong stateWord = new AtomicLong(CLOSED_WORD);
 	private final AtomicInteger exceptionCount = new AtomicInteger();
-	private volatile long retryTime = NO_SCHEDULED_RETRY;
+	private volatile SlidingWindow window;
 	
 	public CircuitBreakerTemplate() { handledExceptions.add(Exception.class); }
 
@@ -97,7 +141,8 @@ public class CircuitBreakerTemplate extends AbstractGuard {
 	/**
 	 * <p>
 	 * Sets the exception threshold for this breaker. Once the threshold is
-	 * reached, the breaker trips.
+	 * reached, the breaker trips. The threshold doesn't apply when a failure
+	 * rate threshold is set.
 	 * </p>
 	 * <p>
 	 * The default exception threshold is 5.
@@ -153,34 +198,246 @@ public class CircuitBreakerTemplate extends AbstractGuard {
 		notNull(exceptions, "handledExceptions can't be null");
 		this.handledExceptions = exceptions;
 	}
+	
+	/**
+	 * <p>
+	 * Returns the failure rate threshold as a percentage, or 0 if the breaker trips on consecutive exceptions instead.
+	 * </p>
+	 * 
+	 * @return failure rate threshold percentage
+	 */
+	@ManagedAttribute(description = "Breaker trips when failure percentage in window reaches threshold (0 = disabled)")
+	public float getFailureRateThreshold() { return failureRateThreshold; }
+	
+	/**
+	 * <p>
+	 * Sets the failure rate threshold as a percentage. A positive threshold switches the breaker from consecutive
+	 * exception counting to failure rate tracking over a sliding window; 0 switches it back.
+	 * </p>
+	 * <p>
+	 * The default is 0 (disabled).
+	 * </p>
+	 * 
+	 * @param threshold failure percentage causing the breaker to trip
+	 * @throws IllegalArgumentException if threshold &lt; 0 or threshold &gt; 100
+	 */
+	@ManagedAttribute(
+		description = "Breaker trips when failure percentage in window reaches threshold (0 = disabled)",
+		defaultValue = "0")
+	public void setFailureRateThreshold(float threshold) {
+		isTrue(threshold >= 0.0f && threshold <= 100.0f, "failureRateThreshold must be between 0 and 100");
+		this.failureRateThreshold = threshold;
+		rebuildWindow();
+	}
+	
+	@ManagedAttribute(description = "Whether the sliding window counts calls or seconds")
+	public SlidingWindowType getSlidingWindowType() { return slidingWindowType; }
+	
+	/**
+	 * <p>
+	 * Sets the sliding window type. A {@link SlidingWindowType#COUNT_BASED} window covers the last
+	 * <code>slidingWindowSize</code> calls; a {@link SlidingWindowType#TIME_BASED} window covers the last
+	 * <code>slidingWindowSize</code> seconds.
+	 * </p>
+	 * <p>
+	 * The default is {@link SlidingWindowType#COUNT_BASED}.
+	 * </p>
+	 * 
+	 * @param type sliding window type
+	 */
+	public void setSlidingWindowType(SlidingWindowType type) {
+		notNull(type, "slidingWindowType can't be null");
+		this.slidingWindowType = type;
+		rebuildWindow();
+	}
+	
+	@ManagedAttribute(description = "Sliding window size, in calls or seconds depending on window type")
+	public int getSlidingWindowSize() { return slidingWindowSize; }
+	
+	/**
+	 * <p>
+	 * Sets the sliding window size, in calls or in seconds depending on the window type.
+	 * </p>
+	 * <p>
+	 * The default is 100.
+	 * </p>
+	 * 
+	 * @param size sliding window size
+	 * @throws IllegalArgumentException if size &lt; 1
+	 */
+	@ManagedAttribute(
+		description = "Sliding window size, in calls or seconds depending on window type",
+		defaultValue = "100")
+	public void setSlidingWindowSize(int size) {
+		isTrue(size >= 1, "slidingWindowSize must be >= 1");
+		this.slidingWindowSize = size;
+		rebuildWindow();
+	}
+	
+	@ManagedAttribute(description = "Calls required in window before failure rate is evaluated")
+	public int getMinimumNumberOfCalls() { return minimumNumberOfCalls; }
+	
+	/**
+	 * <p>
+	 * Sets the number of calls the sliding window must hold before the failure rate is evaluated.
+	 * </p>
+	 * <p>
+	 * The default is 10.
+	 * </p>
+	 * 
+	 * @param minimumNumberOfCalls minimum number of calls
+	 * @throws IllegalArgumentException if minimumNumberOfCalls &lt; 1
+	 */
+	@ManagedAttribute(
+		description = "Calls required in window before failure rate is evaluated",
+		defaultValue = "10")
+	public void setMinimumNumberOfCalls(int minimumNumberOfCalls) {
+		isTrue(minimumNumberOfCalls >= 1, "minimumNumberOfCalls must be >= 1");
+		this.minimumNumberOfCalls = minimumNumberOfCalls;
+	}
+	
+	@ManagedAttribute(description = "Probe calls admitted at a time while half-open")
+	public int getHalfOpenMaxCalls() { return halfOpenMaxCalls; }
+	
+	/**
+	 * <p>
+	 * Sets the number of probe calls a half-open breaker admits at a time. Calls
+	 * beyond this number fail fast with a {@link CircuitOpenException}, which
+	 * keeps a recovering service from being flooded as soon as the timeout
+	 * expires.
+	 * </p>
+	 * <p>
+	 * The default is 1.
+	 * </p>
+	 * 
+	 * @param halfOpenMaxCalls number of concurrent probe calls
+	 * @throws IllegalArgumentException
+	 *             if halfOpenMaxCalls &lt; 1 or halfOpenMaxCalls &gt; 65535
+	 */
+	@ManagedAttribute(
+		description = "Probe calls admitted at a time while half-open",
+		defaultValue = "1")
+	public void setHalfOpenMaxCalls(int halfOpenMaxCalls) {
+		isTrue(halfOpenMaxCalls >= 1 && halfOpenMaxCalls <= PROBE_MASK, "halfOpenMaxCalls must be between 1 and 65535");
+		this.halfOpenMaxCalls = halfOpenMaxCalls;
+	}
+	
+	@ManagedAttribute(description = "Calls taking longer than this many ms count as slow (0 = disabled)")
+	public long getSlowCallDurationThreshold() { return slowCallDurationThreshold; }
+	
+	/**
+	 * <p>
+	 * Sets the duration in ms above which a call counts as slow. A positive threshold turns on slow call tracking over
+	 * the sliding window; 0 turns it off.
+	 * </p>
+	 * <p>
+	 * The default is 0 (disabled).
+	 * </p>
+	 * 
+	 * @param threshold slow call duration threshold in ms
+	 * @throws IllegalArgumentException if threshold &lt; 0
+	 */
+	@ManagedAttribute(
+		description = "Calls taking longer than this many ms count as slow (0 = disabled)",
+		defaultValue = "0")
+	public void setSlowCallDurationThreshold(long threshold) {
+		isTrue(threshold >= 0L, "slowCallDurationThreshold must be >= 0");
+		this.slowCallDurationThreshold = threshold;
+		this.slowCallDurationThresholdNanos = TimeUnit.MILLISECONDS.toNanos(threshold);
+		rebuildWindow();
+	}
+	
+	@ManagedAttribute(description = "Breaker trips when slow call percentage in window reaches threshold")
+	public float getSlowCallRateThreshold() { return slowCallRateThreshold; }
+	
+	/**
+	 * <p>
+	 * Sets the slow call rate threshold as a percentage. Only applies when a slow call duration threshold is set.
+	 * </p>
+	 * <p>
+	 * The default is 100, which trips the breaker once every call in the window is slow.
+	 * </p>
+	 * 
+	 * @param threshold slow call percentage causing the breaker to trip
+	 * @throws IllegalArgumentException if threshold &lt;= 0 or threshold &gt; 100
+	 */
+	@ManagedAttribute(
+		description = "Breaker trips when slow call percentage in window reaches threshold",
+		defaultValue = "100")
+	public void setSlowCallRateThreshold(float threshold) {
+		isTrue(threshold > 0.0f && threshold <= 100.0f, "slowCallRateThreshold must be between 0 (exclusive) and 100");
+		this.slowCallRateThreshold = threshold;
+	}
+	
+	/**
+	 * <p>
+	 * Returns the slow call percentage over the sliding window, or -1 if slow call tracking is disabled or the window
+	 * doesn't hold enough calls yet.
+	 * </p>
+	 * 
+	 * @return slow call percentage over the sliding window
+	 */
+	@ManagedAttribute(description = "Slow call percentage in sliding window (-1 = not enough calls or disabled)")
+	public float getSlowCallRate() {
+		SlidingWindow currWindow = window;
+		return (currWindow != null && slowCallDurationThreshold > 0L ?
+			currWindow.getSlowCallRate(minimumNumberOfCalls) : -1.0f);
+	}
+	
+	/**
+	 * <p>
+	 * Returns the failure percentage over the sliding window, or -1 if failure rate tracking is disabled or the window
+	 * doesn't hold enough calls yet.
+	 * </p>
+	 * 
+	 * @return failure percentage over the sliding window
+	 */
+	@ManagedAttribute(description = "Failure percentage in sliding window (-1 = not enough calls or disabled)")
+	public float getFailureRate() {
+		SlidingWindow currWindow = window;
+		return (currWindow != null && failureRateThreshold > 0.0f ?
+			currWindow.getFailureRate(minimumNumberOfCalls) : -1.0f);
+	}
+	
+	private void rebuildWindow() {
+		if (failureRateThreshold <= 0.0f && slowCallDurationThreshold <= 0L) {
+			this.window = null;
+		} else if (slidingWindowType == SlidingWindowType.TIME_BASED) {
+			this.window = new TimeBasedSlidingWindow(slidingWindowSize);
+		} else {
+			this.window = new CountBasedSlidingWindow(slidingWindowSize);
+		}
+	}
 
 	/**
 	 * <p>
 	 * Returns the breaker's state, which is {@link State#CLOSED},
-	 * {@link State#OPEN} or {@link State#HALF_OPEN}.
+	 * {@link State#OPEN} or {@link State#HALF_OPEN}. An open breaker whose
+	 * timeout has expired goes half-open as a side effect of this call.
 	 * </p>
 	 * 
 	 * @return breaker's state
 	 */
 	@ManagedAttribute(description = "Breaker state (closed, open, half-open)")
-	public State getState() {
-		if (state == State.OPEN) {
-			if (System.currentTimeMillis() >= retryTime) {
-				log.info("Setting circuit breaker half-open: {}", getName());
-				this.state = State.HALF_OPEN;
-			}
-		}
-		return state;
-	}
+	public State getState() { return stateOf(currentWord()); }
 	
 	// For testing
-	void setState(State state) { this.state = state; }
-
+	void setState(State state) { stateWord.set(word(state, 0, NO_SCHEDULED_RETRY)); }
+	
 	@ManagedAttribute(description = "Number of exceptions since last reset")
 	public int getExceptionCount() { return exceptionCount.get(); }
 	
 	@ManagedAttribute(description = "Breaker will retry circuit at or after this time")
-	public long getRetryTime() { return retryTime; }
+	public long getRetryTime() {
+		long retryTime = retryTimeOf(stateWord.get());
+		return (retryTime == RETRY_MASK ? NO_SCHEDULED_RETRY : retryTime);
+	}
+	
+	@ManagedAttribute(description = "Number of probe calls currently admitted by the half-open breaker")
+	public int getHalfOpenCallsInFlight() {
+		long word = stateWord.get();
+		return (stateOf(word) == State.HALF_OPEN ? probesOf(word) : 0);
+	}
 
 	/**
 	 * <p>
@@ -202,8 +459,8 @@ public class CircuitBreakerTemplate extends AbstractGuard {
 	@ManagedOperation(description = "Resets the breaker")
 	public void reset() {
 		log.info("Resetting circuit breaker: {}", getName());
-		this.state = State.CLOSED;
-		this.exceptionCount.set(0);
+		stateWord.set(CLOSED_WORD);
+		clearStatistics();
 	}
 
 	/**
@@ -220,17 +477,36 @@ public class CircuitBreakerTemplate extends AbstractGuard {
 	
 	private void trip(boolean autoReset) {
 		log.warn("Tripping breaker {}, autoReset={}", getName(), autoReset);
-		this.state = State.OPEN;
-
-		// FIXME Don't want races to mosh explicit tripWithoutAutoReset() requests...
-		this.retryTime = (autoReset ?
-			System.currentTimeMillis() + timeout : NO_SCHEDULED_RETRY);
+		stateWord.set(openWord(autoReset));
+	}
+	
+	// Trips the breaker only if it's still in the state the caller observed, so that an automatic trip can't overwrite
+	// a concurrent manual reset or tripWithoutAutoReset().
+	private void tripFrom(State expected) {
+		while (true) {
+			long word = stateWord.get();
+			if (stateOf(word) != expected) { return; }
+			if (stateWord.compareAndSet(word, openWord(true))) {
+				log.warn("Tripping breaker {}, autoReset=true", getName());
+				return;
+			}
+		}
+	}
+	
+	private long openWord(boolean autoReset) {
+		return word(State.OPEN, 0, autoReset ? System.currentTimeMillis() + timeout : RETRY_MASK);
 	}
 
 	/**
 	 * <p>
 	 * Executes the specified action inside the circuit breaker.
 	 * </p>
+	 * <p>
+	 * While the breaker is half-open, only {@link #getHalfOpenMaxCalls()} probe
+	 * calls are admitted at a time; other calls fail fast with a
+	 * {@link CircuitOpenException} until a probe either closes or re-trips the
+	 * breaker.
+	 * </p>
 	 * 
 	 * @param <T>
 	 *            action return type
@@ -238,48 +514,316 @@ public class CircuitBreakerTemplate extends AbstractGuard {
 	 *            action to execute
 	 * @return result of the action
 	 * @throws CircuitOpenException
-	 *             if the breaker is in the open state
+	 *             if the breaker is in the open state, or is half-open with
+	 *             all probe slots taken
 	 * @throws Exception
 	 *             exception thrown by the action, if any
 	 */
 	public <T> T execute(GuardCallback<T> action) throws Exception {
-		final State currState = getState();
-		switch (currState) {
-
-		case CLOSED:
-			try {
-				T value = action.doInGuard();
-				this.exceptionCount.set(0);
-				return value;
-			} catch (Exception e) {
-				if (isHandledException(e.getClass()) && exceptionCount.incrementAndGet() >= exceptionThreshold) {
-					trip();
+		final boolean probe = admit();
+		final SlidingWindow currWindow = window;
+		final long slowNanos = slowCallDurationThresholdNanos;
+		final long start = (slowNanos > 0L ? System.nanoTime() : 0L);
+		try {
+			T value = action.doInGuard();
+			onSuccess(probe, currWindow, start, slowNanos);
+			return value;
+		} catch (Exception e) {
+			onFailure(probe, e, currWindow, start, slowNanos);
+			throw e;
+		} catch (Error e) {
+			if (probe) { releaseProbe(); }
+			throw e;
+		}
+	}
+	
+	/**
+	 * <p>
+	 * Executes the specified asynchronous action inside the circuit breaker. Admission works as for
+	 * {@link #execute(GuardCallback)}, but the call's outcome, including its duration for slow call tracking, is
+	 * recorded when the returned stage completes. A half-open breaker keeps the probe slot until then.
+	 * </p>
+	 * 
+	 * @throws CircuitOpenException
+	 *             if the breaker is in the open state, or is half-open with
+	 *             all probe slots taken
+	 */
+	public <T> CompletionStage<T> executeAsync(GuardCallback<? extends CompletionStage<T>> action) throws Exception {
+		final boolean probe = admit();
+		final SlidingWindow currWindow = window;
+		final long slowNanos = slowCallDurationThresholdNanos;
+		final long start = (slowNanos > 0L ? System.nanoTime() : 0L);
+		CompletionStage<T> stage;
+		try {
+			stage = action.doInGuard();
+		} catch (Exception e) {
+			onFailure(probe, e, currWindow, start, slowNanos);
+			throw e;
+		} catch (Error e) {
+			if (probe) { releaseProbe(); }
+			throw e;
+		}
+		if (stage == null) {
+			onSuccess(probe, currWindow, start, slowNanos);
+			return null;
+		}
+		return stage.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T value, Throwable failure) {
+				if (failure == null) {
+					onSuccess(probe, currWindow, start, slowNanos);
+					return;
 				}
+				Throwable cause = CompletionStages.unwrap(failure);
+				if (cause instanceof Exception) {
+					onFailure(probe, (Exception) cause, currWindow, start, slowNanos);
+				} else if (probe) {
+					releaseProbe();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * <p>
+	 * Admits leased work as it would a call, recording the work's outcome when the lease is closed. A half-open
+	 * breaker keeps the probe slot until then.
+	 * </p>
+	 * 
+	 * @throws CircuitOpenException
+	 *             if the breaker is in the open state, or is half-open with
+	 *             all probe slots taken
+	 */
+	public GuardLease acquire() throws Exception { return new Lease(admit(), 1); }
+	
+	public GuardLease acquire(GuardCallback<?> context) throws Exception { return acquire(); }
+	
+	/**
+	 * <p>
+	 * Admits several units of leased work with a single state check. A closed breaker admits them all; a half-open
+	 * breaker admits as many as it has free probe slots. Each permit's outcome is recorded when the lease is closed.
+	 * </p>
+	 * 
+	 * @throws CircuitOpenException
+	 *             if the breaker is in the open state, or is half-open with
+	 *             all probe slots taken
+	 */
+	public GuardLease acquire(int permits, GuardCallback<?> context) throws Exception {
+		isTrue(permits >= 1, "permits must be >= 1");
+		while (true) {
+			final long word = currentWord();
+			final State currState = stateOf(word);
+			switch (currState) {
+			
+			case CLOSED:
+				return new Lease(false, permits);
+				
+			case OPEN:
+				throw new CircuitOpenException();
+				
+			case HALF_OPEN:
+				int probes = Math.min(permits, halfOpenMaxCalls - probesOf(word));
+				if (probes <= 0) { throw new CircuitOpenException(); }
+				if (stateWord.compareAndSet(word, word + probes * ONE_PROBE)) { return new Lease(true, probes); }
+				
+				// Lost a race with another probe or a state change; start over.
+				break;
 				
-				// In any event, throw the exception.
-				throw e;
+			default:
+				// This shouldn't happen...
+				throw new IllegalStateException("Unknown state: " + currState);
 			}
-
-		case OPEN:
-			throw new CircuitOpenException();
-
-		case HALF_OPEN:
-			try {
-				T value = action.doInGuard();
-				reset();
-				return value;
-			} catch (Exception e) {
-				if (isHandledException(e.getClass())) { trip(); }
-				throw e;
+		}
+	}
+	
+	// Returns whether the call is admitted as a half-open probe, or throws if the breaker rejects it.
+	boolean admit() {
+		while (true) {
+			final long word = currentWord();
+			final State currState = stateOf(word);
+			switch (currState) {
+			
+			case CLOSED:
+				return false;
+				
+			case OPEN:
+				throw new CircuitOpenException();
+				
+			case HALF_OPEN:
+				if (probesOf(word) >= halfOpenMaxCalls) { throw new CircuitOpenException(); }
+				if (stateWord.compareAndSet(word, word + ONE_PROBE)) { return true; }
+				
+				// Lost a race with another probe or a state change; start over.
+				break;
+				
+			default:
+				// This shouldn't happen...
+				throw new IllegalStateException("Unknown state: " + currState);
 			}
-
-		default:
-			// This shouldn't happen...
-			throw new IllegalStateException("Unknown state: " + currState);
 		}
 	}
+	
+	/**
+	 * Records the outcome of a call admitted by {@link #admit()} without timing it, for calls such as stream
+	 * subscriptions whose duration says nothing about the health of the service. A <code>null</code> failure records
+	 * a success. Errors always count as failures, whatever the handled exceptions.
+	 * 
+	 * @param probe whether the call was admitted as a half-open probe
+	 * @param failure failure, if any
+	 */
+	void recordOutcome(boolean probe, Throwable failure) {
+		if (failure == null) {
+			onSuccess(probe, window, 0L, 0L);
+		} else {
+			onFailure(probe, failure, window, 0L, 0L);
+		}
+	}
+	
+	private void onSuccess(boolean probe, SlidingWindow currWindow, long start, long slowNanos) {
+		if (probe) {
+			if (isSlow(start, slowNanos)) {
+				log.warn("Slow probe re-tripping breaker {}", getName());
+				tripFrom(State.HALF_OPEN);
+			} else if (closeFromHalfOpen()) {
+				log.info("Resetting circuit breaker: {}", getName());
+				clearStatistics();
+			}
+			return;
+		}
+		
+		this.exceptionCount.set(0);
+		if (currWindow != null) {
+			boolean slow = isSlow(start, slowNanos);
+			currWindow.record(false, slow);
+			if (slow) { checkSlowCallRate(currWindow); }
+		}
+	}
+	
+	private void onFailure(boolean probe, Throwable e, SlidingWindow currWindow, long start, long slowNanos) {
+		if (probe) {
+			if (isHandled(e)) {
+				tripFrom(State.HALF_OPEN);
+			} else {
+				releaseProbe();
+			}
+			return;
+		}
+		
+		boolean slow = isSlow(start, slowNanos);
+		if (isHandled(e)) {
+			int count = exceptionCount.incrementAndGet();
+			if (currWindow != null) { currWindow.record(true, slow); }
+			if (failureRateThreshold > 0.0f) {
+				if (currWindow != null && currWindow.getFailureRate(minimumNumberOfCalls) >= failureRateThreshold) {
+					tripFrom(State.CLOSED);
+				}
+			} else if (count >= exceptionThreshold) {
+				tripFrom(State.CLOSED);
+			}
+		} else if (currWindow != null) {
+			currWindow.record(false, slow);
+		}
+		if (slow && currWindow != null) { checkSlowCallRate(currWindow); }
+	}
+	
+	private static boolean isSlow(long start, long slowNanos) {
+		return slowNanos > 0L && System.nanoTime() - start > slowNanos;
+	}
+	
+	private void checkSlowCallRate(SlidingWindow currWindow) {
+		if (currWindow.getSlowCallRate(minimumNumberOfCalls) >= slowCallRateThreshold) {
+			log.warn("Slow call rate threshold {}% reached for breaker {}", slowCallRateThreshold, getName());
+			tripFrom(State.CLOSED);
+		}
+	}
+	
+	private boolean closeFromHalfOpen() {
+		while (true) {
+			long word = stateWord.get();
+			if (stateOf(word) != State.HALF_OPEN) { return false; }
+			if (stateWord.compareAndSet(word, CLOSED_WORD)) { return true; }
+		}
+	}
+	
+	void releaseProbe() {
+		while (true) {
+			long word = stateWord.get();
+			if (stateOf(word) != State.HALF_OPEN || probesOf(word) == 0) { return; }
+			if (stateWord.compareAndSet(word, word - ONE_PROBE)) { return; }
+		}
+	}
+	
+	private void clearStatistics() {
+		this.exceptionCount.set(0);
+		SlidingWindow currWindow = window;
+		if (currWindow != null) { currWindow.reset(); }
+	}
+	
+	// Returns the current state word, first moving an open breaker to half-open if its retry time has passed.
+	private long currentWord() {
+		long word = stateWord.get();
+		if (stateOf(word) == State.OPEN && System.currentTimeMillis() >= retryTimeOf(word)) {
+			long halfOpen = word(State.HALF_OPEN, 0, RETRY_MASK);
+			if (stateWord.compareAndSet(word, halfOpen)) {
+				log.info("Setting circuit breaker half-open: {}", getName());
+				return halfOpen;
+			}
+			return stateWord.get();
+		}
+		return word;
+	}
+	
+	
+	/**
+	 * Lease on one or more calls, admitted either as half-open probes or through the closed breaker.
+	 */
+	private final class Lease extends AbstractGuardLease {
+		private final boolean probe;
+		
+		public Lease(boolean probe, int permits) {
+			super(permits);
+			this.probe = probe;
+		}
+		
+		@Override
+		protected void releaseUnused(int count) {
+			if (!probe) { return; }
+			for (int i = 0; i < count; i++) { releaseProbe(); }
+		}
+		
+		// The order of outcomes within the lease is unknown, so failures go where they count: before the successes for
+		// probes, where one failure re-trips the breaker, and after them otherwise, so they aren't reset by successes.
+		@Override
+		protected void complete(int count, int failed, Exception failure) {
+			if (probe) {
+				for (int i = 0; i < failed; i++) { recordOutcome(true, failure); }
+				for (int i = failed; i < count; i++) { recordOutcome(true, null); }
+			} else {
+				for (int i = failed; i < count; i++) { recordOutcome(false, null); }
+				for (int i = 0; i < failed; i++) { recordOutcome(false, failure); }
+			}
+		}
+	}
+	
+	
+	// ====================================================================
+	// State word encoding
+	// ====================================================================
+	
+	private static long word(State state, int probes, long retryTime) {
+		return ((long) state.ordinal() << STATE_SHIFT) | ((long) probes << PROBE_SHIFT) | (retryTime & RETRY_MASK);
+	}
+	
+	private static State stateOf(long word) { return STATES[(int) (word >>> STATE_SHIFT)]; }
+	
+	private static int probesOf(long word) { return (int) ((word >>> PROBE_SHIFT) & PROBE_MASK); }
+	
+	private static long retryTimeOf(long word) { return word & RETRY_MASK; }
 
 	// Check the exception against the list of handled exceptions.
+	private boolean isHandled(Throwable failure) {
+		return !(failure instanceof Exception) || isHandledException(((Exception) failure).getClass());
+	}
+	
 	private boolean isHandledException(Class<? extends Exception> exceptionClass) {
 		for (Class<? extends Exception> handledExceptionClass : handledExceptions) {
 			if (handledExceptionClass.isAssignableFrom(exceptionClass)) {
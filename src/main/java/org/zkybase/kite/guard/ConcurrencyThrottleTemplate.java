@@ -15,14 +15,24 @@
  */
 package org.zkybase.kite.guard;
 
-import java.util.concurrent.Semaphore;
+import static org.springframework.util.Assert.notNull;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.AsyncGuard;
 import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.GuardLease;
+import org.zkybase.kite.LeasableGuard;
 import org.zkybase.kite.exception.ConcurrencyLimitExceededException;
 
 /**
@@ -30,7 +40,26 @@ import org.zkybase.kite.exception.ConcurrencyLimitExceededException;
  * Guard that fails with an exception when a concurrency threshold is exceeded.
  * </p>
  * <p>
- * Implementation is based on a counting semaphore.
+ * Implementation is based on an atomic in-flight counter checked against the limit by compare-and-set.
+ * </p>
+ * <p>
+ * By default the limit is fixed. In adaptive mode it starts at the configured limit and then follows observed latency
+ * between <code>minLimit</code> and <code>maxLimit</code>: it shrinks when calls slow down and grows when latency is
+ * stable and the limit is actually being used. The adjustment uses a latency gradient in the spirit of TCP Vegas; see
+ * {@link GradientLimit} for details.
+ * </p>
+ * <p>
+ * By default requests over the limit are rejected immediately. Setting <code>maxQueueLength</code> lets up to that many
+ * requests wait up to <code>maxWaitTime</code> ms for a permit instead, which absorbs short bursts. Waiters are served
+ * first-in first-out by default; {@link QueueOrder#LIFO} serves the newest waiter first, which keeps latency down for
+ * most requests under sustained overload at the expense of the oldest ones timing out. A released permit is handed
+ * directly to the next waiter, and waiting threads park via {@link LockSupport} rather than monitors, so the queue
+ * doesn't pin virtual threads.
+ * </p>
+ * <p>
+ * For asynchronous actions, the permit is held until the returned stage completes, so the limit applies to the work
+ * in progress rather than to the calls that start it. Work that isn't bounded by a call at all, such as reading a
+ * stream, can hold a permit as a {@link GuardLease}.
  * </p>
  * <p>
  * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
@@ -40,16 +69,27 @@ import org.zkybase.kite.exception.ConcurrencyLimitExceededException;
  * @since 1.0
  */
 @ManagedResource
-public class ConcurrencyThrottleTemplate extends AbstractGuard {
+public class ConcurrencyThrottleTemplate extends AbstractGuard implements AsyncGuard, LeasableGuard {
+	public enum QueueOrder { FIFO, LIFO };
+	
+	private static final int DEFAULT_MAX_LIMIT = 1000;
 	private static Logger log = LoggerFactory.getLogger(ConcurrencyThrottleTemplate.class);
 	
 	private final int limit;
-	private final Semaphore semaphore;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final GradientLimit gradientLimit;
+	private volatile boolean adaptive;
+	
+	private volatile int maxQueueLength = 0;
+	private volatile long maxWaitTime = 100L;
+	private volatile QueueOrder queueOrder = QueueOrder.FIFO;
+	private final AtomicInteger queueLength = new AtomicInteger();
+	private final ConcurrentLinkedDeque<Waiter> waiters = new ConcurrentLinkedDeque<Waiter>();
 
 	/**
 	 * Creates a concurrency throttle with the given limit. The throttle rejects requests in excess of the limit.
 	 * 
-	 * @param limit concurrency limit
+	 * @param limit concurrency limit; in adaptive mode, the initial limit
 	 * @throws IllegalArgumentException if limit &lt; 1
 	 */
 	public ConcurrencyThrottleTemplate(int limit) {
@@ -57,22 +97,335 @@ public class ConcurrencyThrottleTemplate extends AbstractGuard {
 			throw new IllegalArgumentException("limit must be >= 1");
 		}
 		this.limit = limit;
-		this.semaphore = new Semaphore(limit, true);
+		this.gradientLimit = new GradientLimit(limit, 1, Math.max(limit, DEFAULT_MAX_LIMIT));
 	}
 	
 	@ManagedAttribute(description = "Concurrency limit, after which requests are rejected")
-	public int getLimit() { return limit; }
+	public int getLimit() { return (adaptive ? gradientLimit.getLimit() : limit); }
+	
+	@ManagedAttribute(description = "Whether the limit adapts to observed latency")
+	public boolean isAdaptive() { return adaptive; }
+	
+	/**
+	 * Turns adaptive mode on or off. Adaptive mode starts from the limit passed to the constructor.
+	 * 
+	 * @param adaptive whether the limit adapts to observed latency
+	 */
+	@ManagedAttribute(description = "Whether the limit adapts to observed latency")
+	public void setAdaptive(boolean adaptive) { this.adaptive = adaptive; }
+	
+	@ManagedAttribute(description = "Lowest limit adaptive mode may choose")
+	public int getMinLimit() { return gradientLimit.getMinLimit(); }
+	
+	/**
+	 * @param minLimit lowest limit adaptive mode may choose; defaults to 1
+	 * @throws IllegalArgumentException if minLimit &lt; 1
+	 */
+	@ManagedAttribute(description = "Lowest limit adaptive mode may choose")
+	public void setMinLimit(int minLimit) {
+		if (minLimit < 1) {
+			throw new IllegalArgumentException("minLimit must be >= 1");
+		}
+		gradientLimit.setMinLimit(minLimit);
+	}
+	
+	@ManagedAttribute(description = "Highest limit adaptive mode may choose")
+	public int getMaxLimit() { return gradientLimit.getMaxLimit(); }
+	
+	/**
+	 * @param maxLimit highest limit adaptive mode may choose; defaults to the greater of 1000 and the initial limit
+	 * @throws IllegalArgumentException if maxLimit &lt; 1
+	 */
+	@ManagedAttribute(description = "Highest limit adaptive mode may choose")
+	public void setMaxLimit(int maxLimit) {
+		if (maxLimit < 1) {
+			throw new IllegalArgumentException("maxLimit must be >= 1");
+		}
+		gradientLimit.setMaxLimit(maxLimit);
+	}
+	
+	@ManagedAttribute(description = "Maximum number of requests waiting for a permit; 0 rejects immediately")
+	public int getMaxQueueLength() { return maxQueueLength; }
+	
+	/**
+	 * @param maxQueueLength maximum number of requests allowed to wait for a permit. The default, 0, rejects requests
+	 * over the limit immediately.
+	 * @throws IllegalArgumentException if maxQueueLength &lt; 0
+	 */
+	@ManagedAttribute(description = "Maximum number of requests waiting for a permit; 0 rejects immediately")
+	public void setMaxQueueLength(int maxQueueLength) {
+		if (maxQueueLength < 0) {
+			throw new IllegalArgumentException("maxQueueLength must be >= 0");
+		}
+		this.maxQueueLength = maxQueueLength;
+	}
+	
+	@ManagedAttribute(description = "Maximum time in ms a queued request waits for a permit")
+	public long getMaxWaitTime() { return maxWaitTime; }
+	
+	/**
+	 * @param maxWaitTime maximum time in ms a queued request waits for a permit before being rejected; defaults to 100
+	 * @throws IllegalArgumentException if maxWaitTime &lt; 1
+	 */
+	@ManagedAttribute(description = "Maximum time in ms a queued request waits for a permit")
+	public void setMaxWaitTime(long maxWaitTime) {
+		if (maxWaitTime < 1L) {
+			throw new IllegalArgumentException("maxWaitTime must be >= 1");
+		}
+		this.maxWaitTime = maxWaitTime;
+	}
+	
+	@ManagedAttribute(description = "Order in which queued requests are served")
+	public QueueOrder getQueueOrder() { return queueOrder; }
+	
+	/**
+	 * @param queueOrder order in which queued requests are served; defaults to {@link QueueOrder#FIFO}
+	 */
+	public void setQueueOrder(QueueOrder queueOrder) {
+		notNull(queueOrder, "queueOrder can't be null");
+		this.queueOrder = queueOrder;
+	}
+	
+	@ManagedAttribute(description = "Number of requests currently waiting for a permit")
+	public int getQueueLength() { return queueLength.get(); }
+	
+	@ManagedAttribute(description = "Number of requests currently executing")
+	public int getInFlight() { return inFlight.get(); }
+	
+	@ManagedAttribute(description = "Short-term average response time in ms (adaptive mode)")
+	public double getShortTermRtt() { return toMillis(gradientLimit.getShortRtt()); }
+	
+	@ManagedAttribute(description = "Long-term average response time in ms (adaptive mode)")
+	public double getLongTermRtt() { return toMillis(gradientLimit.getLongRtt()); }
 	
 	public <T> T execute(GuardCallback<T> action) throws Exception {
-		if (semaphore.tryAcquire()) {
-			try {
-				return action.doInGuard();
-			} finally {
-				semaphore.release();
+		final int currInFlight = acquire(true);
+		final boolean timed = adaptive;
+		final long start = (timed ? System.nanoTime() : 0L);
+		try {
+			return action.doInGuard();
+		} finally {
+			release(currInFlight, timed, start);
+		}
+	}
+	
+	/**
+	 * <p>
+	 * Executes an asynchronous action, holding its permit until the returned stage completes. Since waiting for a
+	 * permit would block the calling thread, asynchronous requests over the limit are rejected immediately, whatever
+	 * the <code>maxQueueLength</code>.
+	 * </p>
+	 * 
+	 * @throws ConcurrencyLimitExceededException if the concurrency limit has been reached
+	 */
+	public <T> CompletionStage<T> executeAsync(GuardCallback<? extends CompletionStage<T>> action) throws Exception {
+		final int currInFlight = acquire(false);
+		final boolean timed = adaptive;
+		final long start = (timed ? System.nanoTime() : 0L);
+		CompletionStage<T> stage = null;
+		try {
+			stage = action.doInGuard();
+		} finally {
+			if (stage == null) { release(currInFlight, timed, start); }
+		}
+		if (stage == null) { return null; }
+		return stage.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T value, Throwable failure) { release(currInFlight, timed, start); }
+		});
+	}
+	
+	/**
+	 * Acquires a permit, queueing for it like a call would, and holds it until the lease is closed. Leases don't feed
+	 * the adaptive limit, since how long a lease is held says little about the service's latency.
+	 * 
+	 * @throws ConcurrencyLimitExceededException if the concurrency limit has been reached
+	 */
+	public GuardLease acquire() throws Exception {
+		acquire(true);
+		return new Lease(1);
+	}
+	
+	public GuardLease acquire(GuardCallback<?> context) throws Exception { return acquire(); }
+	
+	/**
+	 * Acquires as many of the given number of permits as are free, with a single compare-and-set. Bulk requests don't
+	 * queue, and get nothing while single requests are queued.
+	 * 
+	 * @throws ConcurrencyLimitExceededException if no permit is free
+	 */
+	public GuardLease acquire(int permits, GuardCallback<?> context) throws Exception {
+		if (permits < 1) {
+			throw new IllegalArgumentException("permits must be >= 1");
+		}
+		final int currLimit = getLimit();
+		int granted = (queueLength.get() == 0 ? tryAcquireUpTo(currLimit, permits) : 0);
+		if (granted == 0) {
+			log.warn("Request rejected: concurrency limit {} exceeded", currLimit);
+			throw new ConcurrencyLimitExceededException(currLimit);
+		}
+		return new Lease(granted);
+	}
+	
+	private int tryAcquireUpTo(int currLimit, int permits) {
+		while (true) {
+			int curr = inFlight.get();
+			int granted = Math.min(currLimit - curr, permits);
+			if (granted <= 0) { return 0; }
+			if (inFlight.compareAndSet(curr, curr + granted)) { return granted; }
+		}
+	}
+	
+	// Returns several permits with one atomic update, unless there are waiters to hand them to.
+	private void releasePermits(int count) {
+		if (count == 1 || !waiters.isEmpty()) {
+			for (int i = 0; i < count; i++) { release(); }
+			return;
+		}
+		inFlight.addAndGet(-count);
+		
+		// Covers waiters that queued after the check above but before the update.
+		if (!waiters.isEmpty()) { grantSparePermits(); }
+	}
+	
+	// Returns the number of calls in flight once admitted, queueing if allowed.
+	int acquire(boolean mayWait) throws Exception {
+		final int currLimit = getLimit();
+		int currInFlight = (queueLength.get() == 0 ? tryAcquire(currLimit) : -1);
+		if (currInFlight < 0) {
+			if (!mayWait || !enqueue()) {
+				log.warn("Request rejected: concurrency limit {} exceeded", currLimit);
+				throw new ConcurrencyLimitExceededException(currLimit);
 			}
-		} else {
-			log.warn("Request rejected: concurrency limit {} exceeded", limit);
-			throw new ConcurrencyLimitExceededException(limit);
+			currInFlight = inFlight.get();
+		}
+		return currInFlight;
+	}
+	
+	void release(int currInFlight, boolean timed, long start) {
+		release();
+		if (timed) {
+			gradientLimit.onSample(System.nanoTime() - start, currInFlight);
+			if (queueLength.get() > 0) { grantSparePermits(); }
+		}
+	}
+	
+	// Returns the new number of calls in flight, or -1 if the limit has been reached.
+	private int tryAcquire(int currLimit) {
+		while (true) {
+			int curr = inFlight.get();
+			if (curr >= currLimit) { return -1; }
+			if (inFlight.compareAndSet(curr, curr + 1)) { return curr + 1; }
+		}
+	}
+	
+	// Hands the permit to the next waiter, unless the limit has shrunk below the calls in flight. Cancelled waiters
+	// are skipped.
+	private void release() {
+		Waiter waiter;
+		while (inFlight.get() <= getLimit() && (waiter = waiters.pollFirst()) != null) {
+			if (waiter.grant()) { return; }
+		}
+		inFlight.decrementAndGet();
+	}
+	
+	// Hands permits freed up by a growing limit to waiters, which would otherwise sit out their wait.
+	private void grantSparePermits() {
+		while (!waiters.isEmpty() && tryAcquire(getLimit()) >= 0) {
+			release();
+		}
+	}
+	
+	// Waits for a permit, returning false if the queue is full or the wait times out.
+	private boolean enqueue() throws InterruptedException {
+		if (!reserveQueueSlot()) { return false; }
+		
+		final Waiter waiter = new Waiter(Thread.currentThread());
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitTime);
+		try {
+			if (queueOrder == QueueOrder.LIFO) {
+				waiters.offerFirst(waiter);
+			} else {
+				waiters.offerLast(waiter);
+			}
+			
+			while (true) {
+				if (waiter.isGranted()) { return true; }
+				
+				// Covers permits freed before we were queued, as well as a limit that has since grown.
+				if (tryAcquire(getLimit()) >= 0) {
+					if (!cancel(waiter)) { release(); }
+					return true;
+				}
+				
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0L) {
+					log.debug("Timed out after waiting {} ms for a permit", maxWaitTime);
+					return !cancel(waiter);
+				}
+				LockSupport.parkNanos(this, remaining);
+				
+				if (Thread.interrupted()) {
+					if (!cancel(waiter)) { release(); }
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			queueLength.decrementAndGet();
+		}
+	}
+	
+	private boolean reserveQueueSlot() {
+		while (true) {
+			int curr = queueLength.get();
+			if (curr >= maxQueueLength) { return false; }
+			if (queueLength.compareAndSet(curr, curr + 1)) { return true; }
+		}
+	}
+	
+	// Returns false if the waiter was granted a permit before it could be cancelled.
+	private boolean cancel(Waiter waiter) {
+		if (!waiter.cancel()) { return false; }
+		waiters.removeFirstOccurrence(waiter);
+		return true;
+	}
+	
+	private static double toMillis(double nanos) { return nanos / TimeUnit.MILLISECONDS.toNanos(1L); }
+	
+	/**
+	 * Lease on one or more permits.
+	 */
+	private final class Lease extends AbstractGuardLease {
+		
+		public Lease(int permits) { super(permits); }
+		
+		@Override
+		protected void releaseUnused(int count) { releasePermits(count); }
+		
+		@Override
+		protected void complete(int count, int failed, Exception failure) { releasePermits(count); }
+	}
+	
+	/**
+	 * Queued request. A waiter is granted a permit or cancelled exactly once, whichever compare-and-set wins.
+	 */
+	private static final class Waiter {
+		private static final int WAITING = 0;
+		private static final int GRANTED = 1;
+		private static final int CANCELLED = 2;
+		
+		private final Thread thread;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		
+		public Waiter(Thread thread) { this.thread = thread; }
+		
+		public boolean isGranted() { return state.get() == GRANTED; }
+		
+		public boolean grant() {
+			if (!state.compareAndSet(WAITING, GRANTED)) { return false; }
+			LockSupport.unpark(thread);
+			return true;
 		}
+		
+		public boolean cancel() { return state.compareAndSet(WAITING, CANCELLED); }
 	}
 }
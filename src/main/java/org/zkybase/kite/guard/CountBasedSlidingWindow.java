@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Sliding window over the last <em>n</em> calls, implemented as a lock-free ring buffer of outcomes. Each recorded
+ * outcome claims the next slot with a single atomic increment, swaps its outcome flags into the slot, and adjusts the
+ * running failure and slow call counts by the difference between the new and the evicted outcome.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+class CountBasedSlidingWindow extends SlidingWindow {
+	static final int FAILURE = 1;
+	static final int SLOW = 2;
+	
+	private final int size;
+	private final AtomicIntegerArray outcomes;
+	private final AtomicLong cursor = new AtomicLong();
+	private final AtomicInteger failureCount = new AtomicInteger();
+	private final AtomicInteger slowCount = new AtomicInteger();
+	
+	/**
+	 * @param size number of calls in the window
+	 * @throws IllegalArgumentException if size &lt; 1
+	 */
+	CountBasedSlidingWindow(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be >= 1");
+		}
+		this.size = size;
+		this.outcomes = new AtomicIntegerArray(size);
+	}
+	
+	@Override
+	void record(boolean failure, boolean slow) {
+		int outcome = (failure ? FAILURE : 0) | (slow ? SLOW : 0);
+		int slot = (int) (cursor.getAndIncrement() % size);
+		int evicted = outcomes.getAndSet(slot, outcome);
+		if (outcome == evicted) { return; }
+		
+		int failureDelta = (outcome & FAILURE) - (evicted & FAILURE);
+		if (failureDelta != 0) { failureCount.addAndGet(failureDelta); }
+		int slowDelta = ((outcome & SLOW) - (evicted & SLOW)) / SLOW;
+		if (slowDelta != 0) { slowCount.addAndGet(slowDelta); }
+	}
+	
+	@Override
+	float getFailureRate(int minimumCalls) {
+		long calls = Math.min(cursor.get(), size);
+		return rate(failureCount.get(), calls, minimumCalls);
+	}
+	
+	@Override
+	float getSlowCallRate(int minimumCalls) {
+		long calls = Math.min(cursor.get(), size);
+		return rate(slowCount.get(), calls, minimumCalls);
+	}
+	
+	@Override
+	void reset() {
+		cursor.set(0L);
+		for (int i = 0; i < size; i++) { outcomes.set(i, 0); }
+		failureCount.set(0);
+		slowCount.set(0);
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Gradient-based adaptive concurrency limit, used by {@link ConcurrencyThrottleTemplate}.
+ * </p>
+ * <p>
+ * The limit tracks two exponentially weighted moving averages of the round trip time (RTT): a short-term average over
+ * roughly the last 10 samples and a long-term average over roughly the last 600. Their ratio is the gradient. A
+ * gradient near 1 means latency is stable, so the limit grows by about its square root, which leaves room for a small
+ * queue; a rising short-term RTT pushes the gradient towards 0.5 and the limit shrinks in proportion. Each update is
+ * smoothed, and the limit doesn't grow while fewer than half of the permits are in use, since an underused limit says
+ * nothing about downstream capacity.
+ * </p>
+ * <p>
+ * Both averages are doubles stored as raw bits in atomic longs and updated by compare-and-set. Only one thread at a
+ * time recomputes the limit; a thread that finds another one doing so just skips the step, so samples never wait.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+final class GradientLimit {
+	private static final double SHORT_ALPHA = 2.0 / (10 + 1);
+	private static final double LONG_ALPHA = 2.0 / (600 + 1);
+	private static final double SMOOTHING = 0.2;
+	private static final double MIN_GRADIENT = 0.5;
+	private static final double MAX_DRIFT = 2.0;
+	private static final double DRIFT_DECAY = 0.95;
+	
+	private final AtomicLong shortRtt = new AtomicLong();
+	private final AtomicLong longRtt = new AtomicLong();
+	private final AtomicBoolean updating = new AtomicBoolean();
+	
+	private volatile int minLimit;
+	private volatile int maxLimit;
+	
+	// Written only by the thread holding the updating flag
+	private volatile double estimate;
+	private volatile int limit;
+	
+	public GradientLimit(int initialLimit, int minLimit, int maxLimit) {
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.estimate = clamp(initialLimit);
+		this.limit = (int) estimate;
+	}
+	
+	public int getLimit() { return limit; }
+	
+	public int getMinLimit() { return minLimit; }
+	
+	public void setMinLimit(int minLimit) { this.minLimit = minLimit; }
+	
+	public int getMaxLimit() { return maxLimit; }
+	
+	public void setMaxLimit(int maxLimit) { this.maxLimit = maxLimit; }
+	
+	/**
+	 * @return short-term RTT average in nanoseconds, or 0 if there are no samples yet
+	 */
+	public double getShortRtt() { return Double.longBitsToDouble(shortRtt.get()); }
+	
+	/**
+	 * @return long-term RTT average in nanoseconds, or 0 if there are no samples yet
+	 */
+	public double getLongRtt() { return Double.longBitsToDouble(longRtt.get()); }
+	
+	/**
+	 * Records a completed call and adjusts the limit.
+	 * 
+	 * @param rttNanos call duration in nanoseconds
+	 * @param inFlight number of calls in flight when the call started, including itself
+	 */
+	public void onSample(long rttNanos, int inFlight) {
+		final double sample = Math.max(1L, rttNanos);
+		final double shortTerm = updateAverage(shortRtt, sample, SHORT_ALPHA);
+		double longTerm = updateAverage(longRtt, sample, LONG_ALPHA);
+		
+		if (!updating.compareAndSet(false, true)) { return; }
+		try {
+			// After a sustained drop in latency the long-term average lags far behind; pull it down faster so the
+			// limit can recover.
+			if (longTerm / shortTerm > MAX_DRIFT) {
+				longTerm = decay(longRtt, DRIFT_DECAY);
+			}
+			
+			final double current = estimate;
+			final double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, longTerm / shortTerm));
+			double next = current * gradient + Math.sqrt(current);
+			if (next > current && inFlight < current / 2) { return; }
+			
+			next = clamp(current * (1.0 - SMOOTHING) + next * SMOOTHING);
+			this.estimate = next;
+			this.limit = (int) next;
+		} finally {
+			updating.set(false);
+		}
+	}
+	
+	private double clamp(double value) {
+		return Math.max(minLimit, Math.min(maxLimit, value));
+	}
+	
+	private static double updateAverage(AtomicLong bits, double sample, double alpha) {
+		while (true) {
+			long prevBits = bits.get();
+			double prev = Double.longBitsToDouble(prevBits);
+			double next = (prevBits == 0L ? sample : prev + alpha * (sample - prev));
+			if (bits.compareAndSet(prevBits, Double.doubleToRawLongBits(next))) { return next; }
+		}
+	}
+	
+	private static double decay(AtomicLong bits, double factor) {
+		while (true) {
+			long prevBits = bits.get();
+			double next = Double.longBitsToDouble(prevBits) * factor;
+			if (bits.compareAndSet(prevBits, Double.doubleToRawLongBits(next))) { return next; }
+		}
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.springframework.util.Assert.noNullElements;
+import static org.springframework.util.Assert.notEmpty;
+import static org.springframework.util.Assert.notNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zkybase.kite.Guard;
+import org.zkybase.kite.GuardCallback;
+
+/**
+ * <p>
+ * Adapter that applies guards to a {@link Flow.Publisher}, so reactive integration points can be protected like
+ * method calls. Each subscription is treated as one call spanning the subscription's lifetime:
+ * </p>
+ * <ul>
+ * <li>A {@link ConcurrencyThrottleTemplate} takes a permit when the subscriber subscribes and holds it until the
+ * stream completes, fails or is cancelled, so the limit bounds the number of open streams. Subscriptions over the limit
+ * are rejected immediately rather than queued.</li>
+ * <li>A {@link CircuitBreakerTemplate} admits or rejects the subscription, and records its outcome from
+ * <code>onComplete</code> or <code>onError</code>, where an {@link Error} always counts as a failure. Cancelled
+ * subscriptions aren't counted either way.</li>
+ * <li>A {@link RateLimitingThrottleTemplate} meters the subscriber's demand: each element requested through
+ * {@link Flow.Subscription#request(long)} counts as one request against the rate limit, and demand the limit doesn't
+ * admit yet is passed upstream later, as the allowance replenishes. The key is resolved when the subscriber
+ * subscribes. The deferred demand is passed upstream from an executor, the common fork-join pool by default, so a
+ * synchronous publisher delivers those elements on the executor's threads.</li>
+ * </ul>
+ * <p>
+ * Nothing is buffered: the upstream publisher never gets more demand than the guards admit, so backpressure comes
+ * from the guards. Guards are applied in list order, and a subscription rejected by any of them gets an
+ * <code>onSubscribe</code> followed by an <code>onError</code> carrying the rejection, as the Reactive Streams rules
+ * require. Other guard types aren't supported.
+ * </p>
+ * <p>
+ * {@link Flow} needs Java 9 or later. This class is only loaded when used, so the rest of Kite still runs on
+ * Java 8.
+ * </p>
+ * 
+ * @param <T> element type
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class GuardedPublisher<T> implements Flow.Publisher<T> {
+	private static final long MIN_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+	private static Logger log = LoggerFactory.getLogger(GuardedPublisher.class);
+	
+	// Passed to key resolvers, which see a subscription rather than a method invocation.
+	private static final GuardCallback<Object> SUBSCRIPTION_CALLBACK = new GuardCallback<Object>() {
+		public Object doInGuard() { throw new UnsupportedOperationException("Subscriptions can't be executed"); }
+	};
+	
+	private final Flow.Publisher<T> source;
+	private final Guard[] guards;
+	private final RateLimitingThrottleTemplate[] rateLimiters;
+	private final HashedWheelTimer timer = HashedWheelTimer.getSharedInstance();
+	private final Executor executor;
+	
+	/**
+	 * @param source publisher to guard
+	 * @param guards guards to apply, in order
+	 * @throws IllegalArgumentException if a guard isn't a concurrency throttle, circuit breaker or rate limiter
+	 */
+	public GuardedPublisher(Flow.Publisher<T> source, List<? extends Guard> guards) {
+		this(source, guards, DefaultExecutor.INSTANCE);
+	}
+	
+	/**
+	 * @param source publisher to guard
+	 * @param guards guards to apply, in order
+	 * @param executor executor that passes demand held back by rate limits upstream once they admit it
+	 * @throws IllegalArgumentException if a guard isn't a concurrency throttle, circuit breaker or rate limiter
+	 */
+	public GuardedPublisher(Flow.Publisher<T> source, List<? extends Guard> guards, Executor executor) {
+		notNull(source, "source can't be null");
+		notNull(executor, "executor can't be null");
+		notEmpty(guards, "guards can't be empty");
+		noNullElements(guards.toArray(), "guards can't contain null elements");
+		
+		List<RateLimitingThrottleTemplate> limiters = new ArrayList<RateLimitingThrottleTemplate>();
+		for (Guard guard : guards) {
+			if (guard instanceof RateLimitingThrottleTemplate) {
+				limiters.add((RateLimitingThrottleTemplate) guard);
+			} else if (!(guard instanceof ConcurrencyThrottleTemplate || guard instanceof CircuitBreakerTemplate)) {
+				throw new IllegalArgumentException("Guard not supported on publishers: " + guard.getClass().getName());
+			}
+		}
+		this.source = source;
+		this.guards = guards.toArray(new Guard[guards.size()]);
+		this.rateLimiters = limiters.toArray(new RateLimitingThrottleTemplate[limiters.size()]);
+		this.executor = executor;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber)
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		notNull(subscriber, "subscriber can't be null");
+		
+		GuardedSubscriber guarded = new GuardedSubscriber(subscriber);
+		try {
+			guarded.admit();
+		} catch (Exception e) {
+			log.debug("Subscription rejected: {}", e.toString());
+			subscriber.onSubscribe(RejectedSubscription.INSTANCE);
+			subscriber.onError(e);
+			return;
+		}
+		source.subscribe(guarded);
+	}
+	
+	/**
+	 * Sits between the upstream publisher and the downstream subscriber, serving as the downstream subscriber's
+	 * subscription. Demand subject to rate limits is accumulated in <code>pending</code> and passed upstream by
+	 * {@link #drain()}, which runs on one thread at a time and reschedules itself while the limits hold demand back.
+	 * Rescheduled drains run on the executor, since the timer thread also delivers every timeout in the JVM and a
+	 * synchronous upstream runs subscriber code inside <code>request</code>.
+	 */
+	private final class GuardedSubscriber implements Flow.Subscriber<T>, Flow.Subscription {
+		private final Flow.Subscriber<? super T> downstream;
+		
+		// Admission state, in guard order: the in-flight count for throttles, the probe flag for breakers
+		private final int[] throttleTickets = new int[guards.length];
+		private final boolean[] breakerProbes = new boolean[guards.length];
+		private final Object[] rateLimitKeys = new Object[rateLimiters.length];
+		private int admitted;
+		
+		private final AtomicBoolean finished = new AtomicBoolean();
+		private final AtomicLong pending = new AtomicLong();
+		private final AtomicInteger drainers = new AtomicInteger();
+		private final AtomicBoolean retryScheduled = new AtomicBoolean();
+		private volatile Flow.Subscription upstream;
+		private volatile HashedWheelTimer.Timeout retry;
+		
+		private final Runnable drainTask = new Runnable() {
+			public void run() { drain(); }
+		};
+		
+		public GuardedSubscriber(Flow.Subscriber<? super T> downstream) { this.downstream = downstream; }
+		
+		// Admits the subscription through each guard in turn, releasing what earlier guards granted if a later one
+		// rejects it.
+		public void admit() throws Exception {
+			try {
+				for (int i = 0, k = 0; i < guards.length; i++) {
+					Guard guard = guards[i];
+					if (guard instanceof ConcurrencyThrottleTemplate) {
+						throttleTickets[i] = ((ConcurrencyThrottleTemplate) guard).acquire(false);
+					} else if (guard instanceof CircuitBreakerTemplate) {
+						breakerProbes[i] = ((CircuitBreakerTemplate) guard).admit();
+					} else {
+						rateLimitKeys[k++] = ((RateLimitingThrottleTemplate) guard).resolveKey(SUBSCRIPTION_CALLBACK);
+					}
+					this.admitted = i + 1;
+				}
+			} catch (Exception e) {
+				release(e);
+				throw e;
+			}
+		}
+		
+		// Releases throttle permits and records the outcome with breakers, in reverse guard order. A null failure
+		// records a success, and errors count as failures; only cancellation releases breaker probes without recording
+		// anything.
+		private void release(Throwable failure, boolean cancelled) {
+			for (int i = admitted - 1; i >= 0; i--) {
+				Guard guard = guards[i];
+				if (guard instanceof ConcurrencyThrottleTemplate) {
+					((ConcurrencyThrottleTemplate) guard).release(throttleTickets[i], false, 0L);
+				} else if (guard instanceof CircuitBreakerTemplate) {
+					CircuitBreakerTemplate breaker = (CircuitBreakerTemplate) guard;
+					if (!cancelled) {
+						breaker.recordOutcome(breakerProbes[i], failure);
+					} else if (breakerProbes[i]) {
+						breaker.releaseProbe();
+					}
+				}
+			}
+		}
+		
+		private void release(Throwable failure) { release(failure, false); }
+		
+		private boolean finish() {
+			if (!finished.compareAndSet(false, true)) { return false; }
+			HashedWheelTimer.Timeout currRetry = retry;
+			if (currRetry != null) { currRetry.cancel(); }
+			return true;
+		}
+		
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			if (upstream != null) {
+				subscription.cancel();
+				return;
+			}
+			this.upstream = subscription;
+			downstream.onSubscribe(this);
+		}
+		
+		@Override
+		public void onNext(T item) { downstream.onNext(item); }
+		
+		@Override
+		public void onError(Throwable throwable) {
+			if (finish()) { release(CompletionStages.unwrap(throwable)); }
+			downstream.onError(throwable);
+		}
+		
+		@Override
+		public void onComplete() {
+			if (finish()) { release(null); }
+			downstream.onComplete();
+		}
+		
+		@Override
+		public void request(long n) {
+			if (n <= 0L) {
+				cancel();
+				downstream.onError(new IllegalArgumentException("Non-positive request: " + n));
+				return;
+			}
+			if (rateLimiters.length == 0) {
+				upstream.request(n);
+				return;
+			}
+			
+			while (true) {
+				long curr = pending.get();
+				long next = curr + n;
+				if (next < 0L) { next = Long.MAX_VALUE; }
+				if (pending.compareAndSet(curr, next)) { break; }
+			}
+			drain();
+		}
+		
+		@Override
+		public void cancel() {
+			if (finish()) { release(null, true); }
+			upstream.cancel();
+		}
+		
+		private void drain() {
+			if (drainers.getAndIncrement() != 0) { return; }
+			int missed = 1;
+			do {
+				long wanted = pending.get();
+				if (wanted > 0L && !finished.get()) {
+					long granted = acquireUpTo(wanted);
+					if (granted > 0L) {
+						pending.addAndGet(-granted);
+						upstream.request(granted);
+					}
+					if (granted < wanted) { scheduleRetry(); }
+				}
+				missed = drainers.addAndGet(-missed);
+			} while (missed != 0);
+		}
+		
+		// Returns the demand every rate limiter admits now, refunding limiters that admitted more than a later one.
+		private long acquireUpTo(long wanted) {
+			long granted = wanted;
+			for (int i = 0; i < rateLimiters.length && granted > 0L; i++) {
+				long limiterGranted = rateLimiters[i].acquireUpTo(rateLimitKeys[i], granted);
+				if (limiterGranted < granted) {
+					for (int j = 0; j < i; j++) { rateLimiters[j].refund(rateLimitKeys[j], granted - limiterGranted); }
+					granted = limiterGranted;
+				}
+			}
+			return granted;
+		}
+		
+		private void scheduleRetry() {
+			if (!retryScheduled.compareAndSet(false, true)) { return; }
+			long delay = MIN_RETRY_NANOS;
+			for (int i = 0; i < rateLimiters.length; i++) {
+				delay = Math.max(delay, rateLimiters[i].nanosUntilPermit(rateLimitKeys[i]));
+			}
+			this.retry = timer.newTimeout(new Runnable() {
+				public void run() {
+					retryScheduled.set(false);
+					try {
+						executor.execute(drainTask);
+					} catch (RejectedExecutionException e) {
+						log.warn("Executor rejected deferred demand; retrying later: {}", e.toString());
+						scheduleRetry();
+					}
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+			if (finished.get()) { retry.cancel(); }
+		}
+	}
+	
+	/**
+	 * Executor used by publishers that don't have their own, created on first use. As in
+	 * {@link java.util.concurrent.CompletableFuture}, the common pool is only used when it has more than one thread.
+	 */
+	private static final class DefaultExecutor {
+		static final Executor INSTANCE = (ForkJoinPool.getCommonPoolParallelism() > 1 ?
+			ForkJoinPool.commonPool() : Executors.newCachedThreadPool(new DaemonThreadFactory("kite-publisher-")));
+	}
+	
+	/**
+	 * Subscription handed to subscribers that are rejected before subscribing upstream.
+	 */
+	private static final class RejectedSubscription implements Flow.Subscription {
+		static final RejectedSubscription INSTANCE = new RejectedSubscription();
+		
+		@Override
+		public void request(long n) { }
+		
+		@Override
+		public void cancel() { }
+	}
+}
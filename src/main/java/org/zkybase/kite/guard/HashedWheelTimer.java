@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Approximate timer for large numbers of short-lived timeouts, most of which are cancelled before they expire.
+ * </p>
+ * <p>
+ * Timeouts are hashed into a wheel of buckets, one per tick. A single worker thread advances the wheel once per tick
+ * and runs the tasks whose deadlines have passed, so a timeout fires up to one tick late. Scheduling and cancelling
+ * are lock-free and O(1): new and cancelled timeouts go through concurrent queues that the worker drains at each tick,
+ * and only the worker touches the buckets.
+ * </p>
+ * <p>
+ * Tasks run on the worker thread and must be short.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+final class HashedWheelTimer {
+	private static final long DEFAULT_TICK_MILLIS = 10L;
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+	private static Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+	
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long startTime;
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Thread worker;
+	private volatile boolean running = true;
+	
+	// Worker state
+	private long tick;
+	
+	/**
+	 * @return timer shared by all guards, started on first use
+	 */
+	public static HashedWheelTimer getSharedInstance() { return SharedInstanceHolder.INSTANCE; }
+	
+	/**
+	 * @param tickDuration tick duration
+	 * @param unit tick duration unit
+	 * @param wheelSize number of buckets, rounded up to a power of two
+	 * @param threadName worker thread name
+	 */
+	public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize, String threadName) {
+		if (tickDuration < 1L) {
+			throw new IllegalArgumentException("tickDuration must be >= 1");
+		}
+		if (wheelSize < 1 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("wheelSize must be between 1 and 2^30");
+		}
+		int size = Integer.highestOneBit(wheelSize - 1) << 1;
+		if (size < 1) { size = 1; }
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) { wheel[i] = new Bucket(); }
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		
+		this.worker = new Thread(new Runnable() {
+			public void run() { runWorker(); }
+		}, threadName);
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * Schedules a task.
+	 * 
+	 * @param task task to run when the timeout expires
+	 * @param delay delay
+	 * @param unit delay unit
+	 * @return handle for cancelling the timeout
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		if (!running) {
+			throw new IllegalStateException("Timer has been stopped");
+		}
+		Timeout timeout = new Timeout(this, task, System.nanoTime() + unit.toNanos(delay) - startTime);
+		pendingTimeouts.add(timeout);
+		return timeout;
+	}
+	
+	/**
+	 * Stops the worker thread. Pending timeouts never fire.
+	 */
+	public void stop() {
+		this.running = false;
+		worker.interrupt();
+	}
+	
+	private void runWorker() {
+		while (running) {
+			long deadline = waitForNextTick();
+			if (deadline < 0L) { break; }
+			
+			Bucket bucket = wheel[(int) (tick & mask)];
+			removeCancelled();
+			transferPending();
+			bucket.expire(deadline);
+			tick++;
+		}
+	}
+	
+	// Returns the current time relative to the start time, or -1 if stopped while waiting.
+	private long waitForNextTick() {
+		long deadline = tickNanos * (tick + 1);
+		while (true) {
+			long now = System.nanoTime() - startTime;
+			long sleepMillis = (deadline - now + 999999L) / 1000000L;
+			if (sleepMillis <= 0L) { return now; }
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				if (!running) { return -1L; }
+			}
+		}
+	}
+	
+	private void transferPending() {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = pendingTimeouts.poll();
+			if (timeout == null) { return; }
+			if (timeout.isCancelled()) { continue; }
+			
+			long calculated = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (calculated - tick) / wheel.length;
+			
+			// Deadlines already in the past go into the current bucket.
+			long ticks = Math.max(calculated, tick);
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+	
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelledTimeouts.poll()) != null) {
+			if (timeout.bucket != null) { timeout.bucket.remove(timeout); }
+		}
+	}
+	
+	/**
+	 * Handle for a scheduled task.
+	 */
+	static final class Timeout {
+		private static final int INIT = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+		
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;
+		private volatile int state = INIT;
+		
+		// Worker state
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+		
+		Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * @return true if the timeout was cancelled, false if it had already expired or been cancelled
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, INIT, CANCELLED)) { return false; }
+			timer.cancelledTimeouts.add(this);
+			return true;
+		}
+		
+		public boolean isCancelled() { return state == CANCELLED; }
+		
+		public boolean isExpired() { return state == EXPIRED; }
+		
+		void expire() {
+			if (!STATE.compareAndSet(this, INIT, EXPIRED)) { return; }
+			try {
+				task.run();
+			} catch (Throwable t) {
+				log.warn("Timer task threw an exception", t);
+			}
+		}
+	}
+	
+	/**
+	 * Doubly linked list of timeouts, touched only by the worker thread.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+		
+		public void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+		
+		public void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0L && timeout.deadline <= deadline) {
+					remove(timeout);
+					timeout.expire();
+				} else if (timeout.isCancelled()) {
+					remove(timeout);
+				} else if (timeout.remainingRounds > 0L) {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+		
+		public void remove(Timeout timeout) {
+			if (timeout.bucket != this) { return; }
+			if (timeout.prev != null) { timeout.prev.next = timeout.next; } else { head = timeout.next; }
+			if (timeout.next != null) { timeout.next.prev = timeout.prev; } else { tail = timeout.prev; }
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+	}
+	
+	private static final class SharedInstanceHolder {
+		static final HashedWheelTimer INSTANCE =
+			new HashedWheelTimer(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE, "kite-timer");
+	}
+}
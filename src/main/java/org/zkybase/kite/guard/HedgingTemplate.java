@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.ForkableGuardCallback;
+import org.zkybase.kite.GuardCallback;
+
+/**
+ * <p>
+ * Guard that cuts tail latency by hedging slow calls. Each call runs on an executor; if it hasn't finished after the
+ * hedge delay, a second execution starts, and the caller gets whichever succeeds first while the other is cancelled
+ * (interrupted). A call fails only if every execution fails, in which case the caller gets the first failure.
+ * </p>
+ * <p>
+ * The hedge delay is either fixed ({@link #setHedgeDelay(long) hedgeDelay}) or, by default, the observed latency at
+ * {@link #setHedgePercentile(double) hedgePercentile} (p95 by default) over the last ten seconds, so that only the
+ * slowest few percent of calls are hedged. The percentile is recomputed every 100 ms rather than on every call. Until
+ * enough calls have been seen to estimate it, calls aren't hedged and run directly on the caller's thread.
+ * </p>
+ * <p>
+ * Hedges are limited by a budget so that hedging can't double the load during an outage, when every call is slow.
+ * Every call earns {@link #setMaxHedgePercent(float) maxHedgePercent} hundredths of a hedge and every hedge spends a
+ * whole one, so hedges can't exceed that percentage of calls; up to ten unused hedges are banked.
+ * </p>
+ * <p>
+ * Executions run on a shared executor, which uses virtual threads when the JVM supports them (Java 21 or later), or on
+ * the {@link #setExecutor(ExecutorService) executor} you provide. Callbacks from the guard list interceptor are
+ * {@link ForkableGuardCallback#fork() forked} for each execution. Since executions change threads, put guards that
+ * depend on thread-bound state ahead of the hedging guard, and only hedge idempotent calls.
+ * </p>
+ * <p>
+ * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@ManagedResource
+public class HedgingTemplate extends AbstractGuard {
+	private static final int MINIMUM_NUMBER_OF_CALLS = 100;
+	private static final long DELAY_REFRESH_INTERVAL = 100L;
+	private static Logger log = LoggerFactory.getLogger(HedgingTemplate.class);
+	
+	// Configuration
+	private volatile long hedgeDelay = 0L;
+	private volatile double hedgePercentile = 95.0;
+	private volatile float maxHedgePercent = 10.0f;
+	private volatile ExecutorService executor;
+	
+	// State
+	private final LatencyHistogram histogram = new LatencyHistogram(10, 1000L);
+	private final AtomicLong nextDelayRefresh = new AtomicLong(Long.MIN_VALUE);
+	private volatile long percentileDelayNanos = -1L;
+	private final TokenBudget hedgeBudget = new TokenBudget(10);
+	private final AtomicLong hedgeCount = new AtomicLong();
+	private final AtomicLong hedgeWinCount = new AtomicLong();
+	private final AtomicLong budgetExhaustedCount = new AtomicLong();
+	
+	@ManagedAttribute(description = "Fixed delay in ms before hedging (0 = use hedge percentile)")
+	public long getHedgeDelay() { return hedgeDelay; }
+	
+	/**
+	 * @param hedgeDelay fixed delay in ms before a call is hedged, or 0 to use the observed latency at the hedge
+	 * percentile; defaults to 0
+	 * @throws IllegalArgumentException if hedgeDelay &lt; 0
+	 */
+	@ManagedAttribute(description = "Fixed delay in ms before hedging (0 = use hedge percentile)")
+	public void setHedgeDelay(long hedgeDelay) {
+		Assert.isTrue(hedgeDelay >= 0L, "hedgeDelay must be >= 0");
+		this.hedgeDelay = hedgeDelay;
+	}
+	
+	@ManagedAttribute(description = "Latency percentile after which calls are hedged")
+	public double getHedgePercentile() { return hedgePercentile; }
+	
+	/**
+	 * @param hedgePercentile latency percentile after which calls are hedged, when there's no fixed delay; defaults to
+	 * 95
+	 * @throws IllegalArgumentException if hedgePercentile isn't in the range (0, 100)
+	 */
+	@ManagedAttribute(description = "Latency percentile after which calls are hedged")
+	public void setHedgePercentile(double hedgePercentile) {
+		Assert.isTrue(hedgePercentile > 0.0 && hedgePercentile < 100.0, "hedgePercentile must be > 0 and < 100");
+		this.hedgePercentile = hedgePercentile;
+		nextDelayRefresh.set(Long.MIN_VALUE);
+	}
+	
+	@ManagedAttribute(description = "Maximum percentage of calls that are hedged")
+	public float getMaxHedgePercent() { return maxHedgePercent; }
+	
+	/**
+	 * @param maxHedgePercent maximum percentage of calls that are hedged; defaults to 10
+	 * @throws IllegalArgumentException if maxHedgePercent isn't 0 or in the range [0.0001, 100]
+	 */
+	@ManagedAttribute(description = "Maximum percentage of calls that are hedged")
+	public void setMaxHedgePercent(float maxHedgePercent) {
+		Assert.isTrue(maxHedgePercent >= 0.0f && maxHedgePercent <= 100.0f, "maxHedgePercent must be >= 0 and <= 100");
+		Assert.isTrue(maxHedgePercent == 0.0f || TokenBudget.isEarning(maxHedgePercent),
+			"maxHedgePercent must be 0 or >= 0.0001");
+		this.maxHedgePercent = maxHedgePercent;
+	}
+	
+	public ExecutorService getExecutor() { return executor; }
+	
+	/**
+	 * @param executor executor for the executions; defaults to an executor shared by all hedging guards
+	 */
+	public void setExecutor(ExecutorService executor) { this.executor = executor; }
+	
+	/**
+	 * @return delay in ms after which a call would be hedged now, or -1 if calls aren't being hedged yet
+	 */
+	@ManagedAttribute(description = "Current delay in ms before hedging (-1 = not enough calls seen yet)")
+	public long getCurrentHedgeDelay() {
+		long fixedDelay = hedgeDelay;
+		if (fixedDelay > 0L) { return fixedDelay; }
+		long delayNanos = computePercentileDelayNanos(System.nanoTime() / 1000000L);
+		return (delayNanos < 0L ? -1L : TimeUnit.NANOSECONDS.toMillis(delayNanos));
+	}
+	
+	@ManagedAttribute(description = "Number of hedged executions started")
+	public long getHedgeCount() { return hedgeCount.get(); }
+	
+	@ManagedAttribute(description = "Number of calls answered by the hedged execution")
+	public long getHedgeWinCount() { return hedgeWinCount.get(); }
+	
+	@ManagedAttribute(description = "Number of hedges denied by the hedge budget")
+	public long getBudgetExhaustedCount() { return budgetExhaustedCount.get(); }
+	
+	@SuppressWarnings("unchecked")
+	public <T> T execute(GuardCallback<T> action) throws Exception {
+		final ExecutorService currExecutor = (executor != null ? executor : SharedExecutor.INSTANCE);
+		final long start = System.nanoTime();
+		final long startMillis = start / 1000000L;
+		hedgeBudget.deposit(maxHedgePercent);
+		
+		// A call that can't be hedged runs in place, without the thread hop
+		final long delayNanos = currentHedgeDelayNanos(startMillis);
+		if (delayNanos < 0L) {
+			T result = action.doInGuard();
+			recordLatency(start);
+			return result;
+		}
+		
+		Race race = new Race();
+		Future<?> primary = currExecutor.submit(new Attempt(fork(action), race, 0));
+		Future<?> hedge = null;
+		try {
+			if (!race.await(delayNanos) && race.join()) {
+				if (hedgeBudget.withdraw()) {
+					hedgeCount.incrementAndGet();
+					log.debug("Call still running after {} ms; hedging", TimeUnit.NANOSECONDS.toMillis(delayNanos));
+					hedge = currExecutor.submit(new Attempt(fork(action), race, 1));
+				} else {
+					race.leave();
+					budgetExhaustedCount.incrementAndGet();
+				}
+			}
+			race.await();
+		} finally {
+			primary.cancel(true);
+			if (hedge != null) { hedge.cancel(true); }
+		}
+		
+		if (race.isSucceeded()) {
+			recordLatency(start);
+			if (race.getWinner() == 1) { hedgeWinCount.incrementAndGet(); }
+			return (T) race.getResult();
+		}
+		Throwable failure = race.getFailure();
+		if (failure instanceof Exception) { throw (Exception) failure; }
+		throw (Error) failure;
+	}
+	
+	private void recordLatency(long start) {
+		long end = System.nanoTime();
+		histogram.record((end - start) / 1000L, end / 1000000L);
+	}
+	
+	// Returns the hedge delay in ns, or -1 if calls shouldn't be hedged. Computing the percentile merges the whole
+	// histogram, so the result is cached and refreshed by one caller per interval.
+	private long currentHedgeDelayNanos(long nowMillis) {
+		long fixedDelay = hedgeDelay;
+		if (fixedDelay > 0L) { return TimeUnit.MILLISECONDS.toNanos(fixedDelay); }
+		
+		long next = nextDelayRefresh.get();
+		if (nowMillis >= next && nextDelayRefresh.compareAndSet(next, nowMillis + DELAY_REFRESH_INTERVAL)) {
+			this.percentileDelayNanos = computePercentileDelayNanos(nowMillis);
+		}
+		return percentileDelayNanos;
+	}
+	
+	private long computePercentileDelayNanos(long nowMillis) {
+		if (histogram.getCount(nowMillis) < MINIMUM_NUMBER_OF_CALLS) { return -1L; }
+		return TimeUnit.MICROSECONDS.toNanos(histogram.getValueAtPercentile(hedgePercentile, nowMillis));
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> GuardCallback<T> fork(GuardCallback<T> action) {
+		return (action instanceof ForkableGuardCallback ? ((ForkableGuardCallback<T>) action).fork() : action);
+	}
+	
+	/**
+	 * Outcome of a hedged call. The first execution to succeed wins; failures count only once no execution is left
+	 * running. The latch publishes the outcome.
+	 */
+	private static final class Race {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final AtomicInteger running = new AtomicInteger(1);
+		private final AtomicInteger winner = new AtomicInteger(-1);
+		private volatile boolean succeeded;
+		private volatile Object result;
+		private volatile Throwable failure;
+		
+		public boolean await(long timeoutNanos) throws InterruptedException {
+			return done.await(timeoutNanos, TimeUnit.NANOSECONDS);
+		}
+		
+		public void await() throws InterruptedException { done.await(); }
+		
+		// Registers another execution, unless the race is already over
+		public boolean join() {
+			while (true) {
+				int current = running.get();
+				if (current == 0 || winner.get() >= 0) { return false; }
+				if (running.compareAndSet(current, current + 1)) { return true; }
+			}
+		}
+		
+		// Withdraws an execution registered by join() that didn't start after all
+		public void leave() { finish(null, 1); }
+		
+		public void succeed(Object result, int index) {
+			if (winner.compareAndSet(-1, index)) {
+				this.result = result;
+				this.succeeded = true;
+				done.countDown();
+			}
+		}
+		
+		public void fail(Throwable failure, int index) { finish(failure, index); }
+		
+		private void finish(Throwable failure, int index) {
+			if (failure != null && this.failure == null) { this.failure = failure; }
+			if (running.decrementAndGet() == 0 && winner.compareAndSet(-1, index)) { done.countDown(); }
+		}
+		
+		public int getWinner() { return winner.get(); }
+		
+		public boolean isSucceeded() { return succeeded; }
+		
+		public Object getResult() { return result; }
+		
+		public Throwable getFailure() { return failure; }
+	}
+	
+	private static final class Attempt implements Runnable {
+		private final GuardCallback<?> action;
+		private final Race race;
+		private final int index;
+		
+		public Attempt(GuardCallback<?> action, Race race, int index) {
+			this.action = action;
+			this.race = race;
+			this.index = index;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				race.succeed(action.doInGuard(), index);
+			} catch (Throwable t) {
+				race.fail(t, index);
+			}
+		}
+	}
+	
+	/**
+	 * Executor shared by hedging guards that don't have their own, created on first use. With virtual threads each
+	 * execution gets a fresh thread; otherwise idle platform threads are kept for a minute.
+	 */
+	private static final class SharedExecutor {
+		static final ExecutorService INSTANCE = create();
+		
+		private static ExecutorService create() {
+			boolean virtual = VirtualThreads.isSupported();
+			ThreadFactory threadFactory =
+				(virtual ? VirtualThreads.newThreadFactory("kite-hedge-") : new DaemonThreadFactory("kite-hedge-"));
+			return new ThreadPoolExecutor(0, Integer.MAX_VALUE, (virtual ? 0L : 60L), TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), threadFactory);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Lock-free rolling histogram of latencies, used by {@link SlaThrottleTemplate} to track latency percentiles.
+ * </p>
+ * <p>
+ * Values are counted in log-linear buckets: exact below 16, and above that 16 buckets per power of two, so any
+ * reported percentile is within 6.25% of the true value. Each time slice holds 608 buckets of 8 bytes, just under
+ * 5 KB, so the ten-slice histograms used by the SLA throttle and the hedging guard take about 48 KB apiece. Recording
+ * is a single atomic increment.
+ * </p>
+ * <p>
+ * The histogram rolls over a window made of equal time slices. A slice that's due for reuse is cleared by the first
+ * recorder to notice; samples recorded concurrently with the clear may be lost, which doesn't matter for percentiles
+ * over thousands of samples.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1L;
+	private static final long UNUSED = Long.MIN_VALUE;
+	
+	private final long sliceMillis;
+	private final AtomicLongArray[] slices;
+	private final AtomicLong[] sliceEpochs;
+	
+	/**
+	 * @param slices number of time slices in the window
+	 * @param sliceMillis slice duration in ms
+	 */
+	LatencyHistogram(int slices, long sliceMillis) {
+		if (slices < 1) {
+			throw new IllegalArgumentException("slices must be >= 1");
+		}
+		if (sliceMillis < 1L) {
+			throw new IllegalArgumentException("sliceMillis must be >= 1");
+		}
+		this.sliceMillis = sliceMillis;
+		this.slices = new AtomicLongArray[slices];
+		this.sliceEpochs = new AtomicLong[slices];
+		for (int i = 0; i < slices; i++) {
+			this.slices[i] = new AtomicLongArray(BUCKETS);
+			this.sliceEpochs[i] = new AtomicLong(UNUSED);
+		}
+	}
+	
+	/**
+	 * @param value value to record, such as a latency in microseconds; negative values count as 0 and huge ones are
+	 * capped
+	 * @param nowMillis current time in ms
+	 */
+	void record(long value, long nowMillis) {
+		long epoch = Math.floorDiv(nowMillis, sliceMillis);
+		int index = (int) Math.floorMod(epoch, (long) slices.length);
+		AtomicLong sliceEpoch = sliceEpochs[index];
+		long currEpoch = sliceEpoch.get();
+		if (currEpoch != epoch) {
+			if (currEpoch > epoch) { return; }
+			if (sliceEpoch.compareAndSet(currEpoch, epoch)) { clear(slices[index]); }
+		}
+		slices[index].incrementAndGet(bucketOf(value));
+	}
+	
+	/**
+	 * @param nowMillis current time in ms
+	 * @return number of values recorded in the window
+	 */
+	long getCount(long nowMillis) {
+		long count = 0L;
+		long[] merged = merge(nowMillis);
+		for (long bucketCount : merged) { count += bucketCount; }
+		return count;
+	}
+	
+	/**
+	 * Returns the value at the given percentile, rounded up to the top of its bucket.
+	 * 
+	 * @param percentile percentile (0-100)
+	 * @param nowMillis current time in ms
+	 * @return value at the percentile, or 0 if the window is empty
+	 */
+	long getValueAtPercentile(double percentile, long nowMillis) {
+		long[] merged = merge(nowMillis);
+		long total = 0L;
+		for (long bucketCount : merged) { total += bucketCount; }
+		if (total == 0L) { return 0L; }
+		
+		long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0L;
+		for (int i = 0; i < merged.length; i++) {
+			seen += merged[i];
+			if (seen >= rank) { return highestValueIn(i); }
+		}
+		return highestValueIn(merged.length - 1);
+	}
+	
+	/**
+	 * Discards all recorded values.
+	 */
+	void reset() {
+		for (int i = 0; i < slices.length; i++) {
+			sliceEpochs[i].set(UNUSED);
+			clear(slices[i]);
+		}
+	}
+	
+	// Sums the slices that are still inside the window.
+	private long[] merge(long nowMillis) {
+		long epoch = Math.floorDiv(nowMillis, sliceMillis);
+		long[] merged = new long[BUCKETS];
+		for (int i = 0; i < slices.length; i++) {
+			long sliceEpoch = sliceEpochs[i].get();
+			if (sliceEpoch != UNUSED && sliceEpoch <= epoch && epoch - sliceEpoch < slices.length) {
+				AtomicLongArray slice = slices[i];
+				for (int j = 0; j < BUCKETS; j++) { merged[j] += slice.get(j); }
+			}
+		}
+		return merged;
+	}
+	
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) { return (int) Math.max(0L, value); }
+		value = Math.min(value, MAX_VALUE);
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	static long highestValueIn(int bucket) {
+		if (bucket < SUB_BUCKETS) { return bucket; }
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = bucket % SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long lowest = ((long) (SUB_BUCKETS + subBucket)) << shift;
+		return lowest + (1L << shift) - 1L;
+	}
+	
+	private static void clear(AtomicLongArray slice) {
+		for (int i = 0; i < slice.length(); i++) { slice.set(i, 0L); }
+	}
+}
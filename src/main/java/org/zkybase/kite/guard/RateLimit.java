@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.springframework.util.Assert.isTrue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A single rate limit window for {@link RateLimitingThrottleTemplate}: <code>limit</code> requests per
+ * <code>period</code> milliseconds, with bursts of up to <code>burst</code> back-to-back requests.
+ * </p>
+ * <p>
+ * Instances are immutable.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public final class RateLimit {
+	private final int limit;
+	private final long period;
+	private final int burst;
+	
+	// Derived GCRA parameters, in nanoseconds
+	private final long emissionInterval;
+	private final long tolerance;
+	
+	/**
+	 * Creates a rate limit whose burst size is the limit itself.
+	 * 
+	 * @param limit maximum number of requests per period
+	 * @param period period in milliseconds
+	 * @throws IllegalArgumentException if limit &lt; 1 or period &lt; 1
+	 */
+	public RateLimit(int limit, long period) { this(limit, period, limit); }
+	
+	/**
+	 * @param limit maximum number of requests per period
+	 * @param period period in milliseconds
+	 * @param burst maximum number of back-to-back requests
+	 * @throws IllegalArgumentException if limit, period or burst &lt; 1
+	 */
+	public RateLimit(int limit, long period, int burst) {
+		isTrue(limit >= 1, "limit must be >= 1");
+		isTrue(period >= 1L, "period must be >= 1");
+		isTrue(burst >= 1, "burst must be >= 1");
+		this.limit = limit;
+		this.period = period;
+		this.burst = burst;
+		this.emissionInterval = Math.max(1L, TimeUnit.MILLISECONDS.toNanos(period) / limit);
+		this.tolerance = emissionInterval * burst;
+	}
+	
+	public int getLimit() { return limit; }
+	
+	public long getPeriod() { return period; }
+	
+	public int getBurst() { return burst; }
+	
+	/**
+	 * Returns the time, in nanoseconds, by which each admitted request pushes back the theoretical arrival time.
+	 * 
+	 * @return emission interval in nanoseconds
+	 */
+	long getEmissionInterval() { return emissionInterval; }
+	
+	/**
+	 * Returns how far, in nanoseconds, the theoretical arrival time may run ahead of the current time.
+	 * 
+	 * @return burst tolerance in nanoseconds
+	 */
+	long getTolerance() { return tolerance; }
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() { return limit + " per " + period + " ms (burst " + burst + ")"; }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Strategy interface for storing the per-key state of a {@link RateLimitingThrottleTemplate}. Each key (usually a
+ * principal) maps to an array of theoretical arrival times, one per rate limit window, stored as primitive longs.
+ * </p>
+ * <p>
+ * Stores are free to evict keys. Evicting a key whose arrival times have all fallen behind the current time loses
+ * nothing, since such a key behaves exactly like a new one; evicting any other key forgives whatever part of its
+ * allowance it has used up.
+ * </p>
+ * <p>
+ * A store belongs to a single throttle and shouldn't be shared.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public interface RateLimitStateStore {
+	
+	/**
+	 * Returns the arrival times for the given key, creating a zeroed record if none exists.
+	 * 
+	 * @param key key, usually a principal
+	 * @param windows number of rate limit windows, i.e. the length of the record
+	 * @param now current time in the throttle's nanosecond time base, for judging which keys are idle
+	 * @return arrival times for the key
+	 */
+	AtomicLongArray getArrivalTimes(Object key, int windows, long now);
+	
+	/**
+	 * @return number of keys currently held
+	 */
+	int size();
+	
+	/**
+	 * @return number of keys evicted since the store was created
+	 */
+	long getEvictionCount();
+	
+	/**
+	 * Discards all keys.
+	 */
+	void clear();
+}
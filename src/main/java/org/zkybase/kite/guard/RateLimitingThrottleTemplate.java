@@ -1,5 +1,5 @@
 /*
- * Copyright (c) 2012 the original author or authors.
+ * Copyright (c) 2010 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,30 +15,53 @@
  */
 package org.zkybase.kite.guard;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.noNullElements;
+import static org.springframework.util.Assert.notEmpty;
+import static org.springframework.util.Assert.notNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
-import org.springframework.security.authentication.AnonymousAuthenticationToken;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContext;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.zkybase.kite.AbstractGuard;
 import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.GuardLease;
+import org.zkybase.kite.LeasableGuard;
 import org.zkybase.kite.exception.RateLimitExceededException;
-import org.zkybase.kite.exception.UnauthenticatedException;
+import org.zkybase.kite.key.KeyResolver;
+import org.zkybase.kite.key.PrincipalKeyResolver;
 
 /**
  * <p>
- * A rate-limiting throttle. Currently this guard rate-limits on an hourly basis. A future version of this guard will
- * allow a range of options with respect to the time window.
+ * A rate-limiting throttle that allows each principal <code>limit</code> requests per <code>period</code> (one hour by
+ * default), with bursts of up to <code>burst</code> requests (by default, the full limit).
+ * </p>
+ * <p>
+ * The throttle implements the generic cell rate algorithm (GCRA), which is equivalent to a token bucket refilled
+ * continuously at <code>limit / period</code>. Each principal's state is a single "theoretical arrival time" updated by
+ * compare-and-set, so enforcement is exact under contention, allowance is replenished smoothly rather than all at once
+ * at the top of the hour, and memory per principal is constant.
  * </p>
  * <p>
- * Note that all counts reset on the hour, as measured by the wall clock. This allows us to avoid tracking individual
- * client requests and their timestamps.
+ * A single throttle can enforce several {@link RateLimit windows} at once, say 10 per second, 60 per minute and 1800
+ * per hour. A request is admitted only if every window admits it. The windows share one lookup and one state record
+ * per principal (an array of arrival times), so layered quotas cost about the same as a single limit.
+ * </p>
+ * <p>
+ * Per-principal state lives in a pluggable {@link RateLimitStateStore}. The default store is bounded to
+ * {@link BoundedRateLimitStateStore#DEFAULT_CAPACITY} principals (see {@link #setMaxKeys(int)}) and evicts idle
+ * principals first, so memory stays flat no matter how many distinct principals call the service.
+ * </p>
+ * <p>
+ * By default requests are keyed by the Spring Security principal. Set a {@link KeyResolver} to limit by API key,
+ * tenant, client address or any other value derived from the method invocation instead (see
+ * {@link org.zkybase.kite.key}). Requests whose key resolves to null share a single allowance.
  * </p>
  * <p>
  * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
@@ -48,68 +71,301 @@ import org.zkybase.kite.exception.UnauthenticatedException;
  * @since 1.0
  */
 @ManagedResource
-public class RateLimitingThrottleTemplate extends AbstractGuard {
-	private static final int MILLIS_PER_HOUR = 1000 * 60 * 60;
+public class RateLimitingThrottleTemplate extends AbstractGuard implements LeasableGuard {
+	private static final long MILLIS_PER_HOUR = 1000L * 60L * 60L;
+	private static final Object NULL_KEY = new Object();
 	private static Logger log = LoggerFactory.getLogger(RateLimitingThrottleTemplate.class);
 	
-	private final int limit;
+	// The first window is the primary one, reported by getLimit() and adjusted by setPeriod() and setBurst().
+	private volatile RateLimit[] limits;
 	
-	private volatile int currentHour;
-	private final Map<Object, Integer> counts = new ConcurrentHashMap<Object, Integer>();
+	private final long origin = System.nanoTime();
+	private volatile KeyResolver keyResolver = new PrincipalKeyResolver();
+	private volatile RateLimitStateStore stateStore = new BoundedRateLimitStateStore();
 	
 	/**
-	 * @param limit maximum number of requests permitted in the time window
+	 * Creates a throttle allowing <code>limit</code> requests per hour.
+	 * 
+	 * @param limit maximum number of requests permitted per period
 	 */
 	public RateLimitingThrottleTemplate(int limit) {
 		if (limit < 1) {
 			throw new IllegalArgumentException("limit must be >= 1");
 		}
-		this.limit = limit;
-		this.currentHour = (int) (System.currentTimeMillis() / MILLIS_PER_HOUR);
+		this.limits = new RateLimit[] { new RateLimit(limit, MILLIS_PER_HOUR) };
+	}
+	
+	/**
+	 * Creates a throttle enforcing all of the given windows.
+	 * 
+	 * @param limits rate limit windows; the first is the primary window
+	 * @throws IllegalArgumentException if limits is null or empty
+	 */
+	public RateLimitingThrottleTemplate(List<RateLimit> limits) {
+		notEmpty(limits, "limits can't be empty");
+		noNullElements(limits.toArray(), "limits can't contain null elements");
+		this.limits = limits.toArray(new RateLimit[limits.size()]);
 	}
 	
-	@ManagedAttribute(description = "Hourly per-principal rate limit, after which requests are rejected")
-	public int getLimit() { return limit; }
+	@ManagedAttribute(description = "Per-principal rate limit per period, after which requests are rejected")
+	public int getLimit() { return limits[0].getLimit(); }
+	
+	@ManagedAttribute(description = "Rate limit period in ms")
+	public long getPeriod() { return limits[0].getPeriod(); }
+	
+	/**
+	 * Sets the period, in milliseconds, over which <code>limit</code> requests are allowed in the primary window. The
+	 * default is one hour.
+	 * 
+	 * @param period period in milliseconds
+	 * @throws IllegalArgumentException if period &lt; 1
+	 */
+	public void setPeriod(long period) {
+		RateLimit primary = limits[0];
+		setPrimary(new RateLimit(primary.getLimit(), period, primary.getBurst()));
+	}
+	
+	@ManagedAttribute(description = "Maximum number of requests a principal may make in a burst")
+	public int getBurst() { return limits[0].getBurst(); }
+	
+	/**
+	 * Sets the maximum number of requests a principal may make back to back in the primary window after being idle.
+	 * Lower values smooth the request rate; the default is the limit itself, allowing a principal's whole allowance to
+	 * be used at once.
+	 * 
+	 * @param burst burst size
+	 * @throws IllegalArgumentException if burst &lt; 1
+	 */
+	public void setBurst(int burst) {
+		RateLimit primary = limits[0];
+		setPrimary(new RateLimit(primary.getLimit(), primary.getPeriod(), burst));
+	}
+	
+	/**
+	 * Returns the rate limit windows this throttle enforces.
+	 * 
+	 * @return rate limit windows, primary window first
+	 */
+	public List<RateLimit> getLimits() { return Collections.unmodifiableList(Arrays.asList(limits)); }
+	
+	@ManagedAttribute(description = "Rate limit windows enforced by this throttle")
+	public String getLimitsDescription() { return Arrays.toString(limits); }
+	
+	public KeyResolver getKeyResolver() { return keyResolver; }
+	
+	/**
+	 * Sets the strategy that decides whose allowance a request draws on. The default is a {@link PrincipalKeyResolver}.
+	 * 
+	 * @param keyResolver key resolver
+	 */
+	public void setKeyResolver(KeyResolver keyResolver) {
+		notNull(keyResolver, "keyResolver can't be null");
+		this.keyResolver = keyResolver;
+	}
+	
+	public RateLimitStateStore getStateStore() { return stateStore; }
+	
+	/**
+	 * Sets the store holding per-principal state. The default is a {@link BoundedRateLimitStateStore}.
+	 * 
+	 * @param stateStore state store, not shared with any other throttle
+	 */
+	public void setStateStore(RateLimitStateStore stateStore) {
+		notNull(stateStore, "stateStore can't be null");
+		this.stateStore = stateStore;
+	}
+	
+	/**
+	 * Replaces the state store with a {@link BoundedRateLimitStateStore} holding up to the given number of principals.
+	 * 
+	 * @param maxKeys maximum number of principals to track
+	 * @throws IllegalArgumentException if maxKeys &lt; 1
+	 */
+	public void setMaxKeys(int maxKeys) { setStateStore(new BoundedRateLimitStateStore(maxKeys)); }
+	
+	@ManagedAttribute(description = "Number of principals currently tracked")
+	public int getStateStoreSize() { return stateStore.size(); }
+	
+	@ManagedAttribute(description = "Number of principals evicted from the state store")
+	public long getStateStoreEvictionCount() { return stateStore.getEvictionCount(); }
+	
+	private void setPrimary(RateLimit primary) {
+		RateLimit[] newLimits = limits.clone();
+		newLimits[0] = primary;
+		this.limits = newLimits;
+	}
 	
 	public <T> T execute(GuardCallback<T> action) throws Exception {
-		resetCountsOnTheHour();
-		Object principal = getPrincipal();
-		int count = getCount(principal);
-		
-		if (++count <= limit) {
-			log.debug("principal={}, count={}", principal, count);
-			counts.put(principal, count);
-			return action.doInGuard();
-		} else {
-			log.warn("Request rejected: rate limit {} exceeded", limit);
-			throw new RateLimitExceededException(limit);
+		admit(resolveKey(action));
+		return action.doInGuard();
+	}
+	
+	/**
+	 * Admits leased work as a single request. The lease holds nothing, since a request's allowance is spent once it's
+	 * admitted. The key is resolved without a method invocation, so argument- and expression-based key resolvers
+	 * need {@link #acquire(GuardCallback)} with an invocation callback instead.
+	 * 
+	 * @throws RateLimitExceededException if a rate limit has been exceeded
+	 */
+	public GuardLease acquire() throws Exception { return acquire(AbstractGuardLease.NO_CONTEXT); }
+	
+	public GuardLease acquire(GuardCallback<?> context) throws Exception {
+		Object key = resolveKey(context);
+		admit(key);
+		return new Lease(key, 1);
+	}
+	
+	/**
+	 * Admits as many of the given number of requests as every window allows right now, with one state lookup and one
+	 * compare-and-set per window. Permits returned unused through {@link GuardLease#release(int)} are refunded.
+	 * 
+	 * @throws RateLimitExceededException if a rate limit leaves no allowance at all
+	 */
+	public GuardLease acquire(int permits, GuardCallback<?> context) throws Exception {
+		isTrue(permits >= 1, "permits must be >= 1");
+		Object key = resolveKey(context);
+		long granted = acquireUpTo(key, permits);
+		if (granted == 0L) {
+			
+			// Throws with the window that's out of allowance, unless allowance has come free in the meantime.
+			admit(key);
+			granted = 1L;
+		}
+		return new Lease(key, (int) granted);
+	}
+	
+	private void admit(Object key) {
+		final RateLimit[] currLimits = limits;
+		final long now = currentTimeNanos();
+		AtomicLongArray times = stateStore.getArrivalTimes(key, currLimits.length, now);
+		RateLimit rejectedBy = tryAcquire(times, currLimits, now);
+		if (rejectedBy != null) {
+			log.warn("Request rejected: rate limit {} exceeded", rejectedBy);
+			throw new RateLimitExceededException(rejectedBy.getLimit(), rejectedBy.getPeriod());
+		}
+		log.debug("key={} admitted", key);
+	}
+	
+	Object resolveKey(GuardCallback<?> action) {
+		Object key = keyResolver.resolveKey(action);
+		return (key != null ? key : NULL_KEY);
+	}
+	
+	/**
+	 * Admits as many of the given number of requests as every window allows right now, without rejecting any. Used to
+	 * meter stream demand, where requests the limits don't admit yet are simply deferred.
+	 * 
+	 * @param key key returned by {@link #resolveKey(GuardCallback)}
+	 * @param permits number of requests wanted
+	 * @return number of requests admitted, between 0 and <code>permits</code>
+	 */
+	long acquireUpTo(Object key, long permits) {
+		final RateLimit[] currLimits = limits;
+		final long now = currentTimeNanos();
+		AtomicLongArray times = stateStore.getArrivalTimes(key, currLimits.length, now);
+		long granted = permits;
+		for (int i = 0; i < currLimits.length && granted > 0L; i++) {
+			long windowGranted = acquireUpTo(times, i, currLimits[i], now, granted);
+			if (windowGranted < granted) {
+				for (int j = 0; j < i; j++) {
+					times.addAndGet(j, -(granted - windowGranted) * currLimits[j].getEmissionInterval());
+				}
+				granted = windowGranted;
+			}
 		}
+		return granted;
 	}
 	
-	private void resetCountsOnTheHour() {
-		int newHour = (int) (System.currentTimeMillis() / MILLIS_PER_HOUR);
-		if (newHour > currentHour) {
-			this.currentHour = newHour;
-			counts.clear();
+	private long acquireUpTo(AtomicLongArray arrivalTimes, int index, RateLimit limit, long now, long permits) {
+		final long interval = limit.getEmissionInterval();
+		final long limitTime = now + limit.getTolerance();
+		while (true) {
+			long tat = arrivalTimes.get(index);
+			long base = Math.max(tat, now);
+			long granted = Math.min((limitTime - base) / interval, permits);
+			if (granted <= 0L) { return 0L; }
+			if (arrivalTimes.compareAndSet(index, tat, base + granted * interval)) { return granted; }
 		}
 	}
 	
-	private Object getPrincipal() {
-		SecurityContext context = SecurityContextHolder.getContext();
-		Authentication auth = context.getAuthentication();
+	/**
+	 * Gives back requests admitted by {@link #acquireUpTo(Object, long)} that won't be made after all.
+	 * 
+	 * @param key key returned by {@link #resolveKey(GuardCallback)}
+	 * @param permits number of requests to give back
+	 */
+	void refund(Object key, long permits) {
+		final RateLimit[] currLimits = limits;
+		AtomicLongArray times = stateStore.getArrivalTimes(key, currLimits.length, currentTimeNanos());
+		for (int i = 0; i < currLimits.length; i++) {
+			times.addAndGet(i, -permits * currLimits[i].getEmissionInterval());
+		}
+	}
+	
+	/**
+	 * Returns how long until every window admits another request for the given key.
+	 * 
+	 * @param key key returned by {@link #resolveKey(GuardCallback)}
+	 * @return delay in nanoseconds; 0 if a request would be admitted now
+	 */
+	long nanosUntilPermit(Object key) {
+		final RateLimit[] currLimits = limits;
+		final long now = currentTimeNanos();
+		AtomicLongArray times = stateStore.getArrivalTimes(key, currLimits.length, now);
+		long delay = 0L;
+		for (int i = 0; i < currLimits.length; i++) {
+			RateLimit limit = currLimits[i];
+			delay = Math.max(delay, times.get(i) + limit.getEmissionInterval() - limit.getTolerance() - now);
+		}
+		return delay;
+	}
+	
+	// Admits the request against each window in turn, returning the window that rejected it, if any. Windows that
+	// already admitted a rejected request are refunded, which is safe to do with a plain atomic add: it restores the
+	// credit the request took, and any arrival time left behind the current time is clamped to it on the next request.
+	private RateLimit tryAcquire(AtomicLongArray arrivalTimes, RateLimit[] currLimits, long now) {
+		for (int i = 0; i < currLimits.length; i++) {
+			if (!tryAcquire(arrivalTimes, i, currLimits[i], now)) {
+				for (int j = 0; j < i; j++) {
+					arrivalTimes.addAndGet(j, -currLimits[j].getEmissionInterval());
+				}
+				return currLimits[i];
+			}
+		}
+		return null;
+	}
+	
+	// GCRA: the request conforms if pushing the theoretical arrival time forward by one emission interval keeps it
+	// within the burst tolerance of the current time.
+	private boolean tryAcquire(AtomicLongArray arrivalTimes, int index, RateLimit limit, long now) {
+		final long interval = limit.getEmissionInterval();
+		final long limitTime = now + limit.getTolerance();
+		while (true) {
+			long tat = arrivalTimes.get(index);
+			long newTat = Math.max(tat, now) + interval;
+			if (newTat > limitTime) { return false; }
+			if (arrivalTimes.compareAndSet(index, tat, newTat)) { return true; }
+		}
+	}
+	
+	/**
+	 * Lease on admitted requests. Nothing is held once a request is admitted, but unused permits are refunded.
+	 */
+	private final class Lease extends AbstractGuardLease {
+		private final Object key;
 		
-		// FIXME There's probably a better way to detect anonymous auth.
-		if (auth == null || auth instanceof AnonymousAuthenticationToken) {
-			log.debug("Authentication required");
-			throw new UnauthenticatedException();
+		public Lease(Object key, int permits) {
+			super(permits);
+			this.key = key;
 		}
 		
-		return auth.getPrincipal();
+		@Override
+		protected void releaseUnused(int count) { refund(key, count); }
+		
+		@Override
+		protected void complete(int count, int failed, Exception failure) { }
 	}
 	
-	private int getCount(Object principal) {
-		Integer count = counts.get(principal);
-		if (count == null) { count = 0; }
-		return count;
-	}
+	// Nanoseconds since this throttle was created; overridable for testing.
+	long currentTimeNanos() { return System.nanoTime() - origin; }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.key.InvocationKeyResolver;
+import org.zkybase.kite.key.KeyResolver;
+
+/**
+ * <p>
+ * Guard that caches results and serves stale ones when calls fail. Every successful call's result is cached under the
+ * call's key (by default the method, target and arguments). When a later call with the same key fails with a
+ * {@link #setFallbackExceptions(List) fallback exception}, including a rejection by a downstream guard such as an open
+ * circuit breaker, the guard returns the cached result instead of the exception, provided it's no older than
+ * {@link #setMaxStaleness(long) maxStaleness}. This keeps read paths working during an outage and takes load off a
+ * recovering backend.
+ * </p>
+ * <p>
+ * By default every call goes to the backend and the cache is only a fallback. Set a {@link #setTtl(long) TTL} to
+ * answer calls from the cache while entries are fresh as well.
+ * </p>
+ * <p>
+ * The cache holds up to {@link #setMaxEntries(int) maxEntries} entries. When it fills, one thread runs an eviction
+ * sweep while others carry on: it drops entries too stale to serve, then, if that isn't enough to get back under 90%
+ * of capacity, the entries below a sampled last-access cutoff, which approximates LRU eviction without a lock on the
+ * read path. With {@link #setSoftValues(boolean) softValues} the cached results are softly referenced, so the garbage
+ * collector can reclaim them under memory pressure.
+ * </p>
+ * <p>
+ * Only use this guard on read-only methods whose results can be shared between callers. Put it ahead of circuit
+ * breakers and throttles in the guard list, so that their rejections fall back to the cache.
+ * </p>
+ * <p>
+ * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@ManagedResource
+public class ResponseCacheTemplate extends AbstractGuard {
+	
+	// Marks a missing or reclaimed entry, and stands in for cached nulls
+	private static final Object MISSING = new Object();
+	private static final Object NULL_VALUE = new Object();
+	private static Logger log = LoggerFactory.getLogger(ResponseCacheTemplate.class);
+	
+	// Configuration
+	private volatile KeyResolver keyResolver = new InvocationKeyResolver();
+	private volatile long ttl = 0L;
+	private volatile long maxStaleness = 0L;
+	private volatile int maxEntries = 1000;
+	private volatile boolean softValues = false;
+	private List<Class<? extends Exception>> fallbackExceptions = new ArrayList<Class<? extends Exception>>();
+	
+	// State
+	private final ConcurrentMap<Object, Entry> entries = new ConcurrentHashMap<Object, Entry>();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong staleHitCount = new AtomicLong();
+	private final SampledEviction<Entry> eviction = new SampledEviction<Entry>(entries) {
+		protected long lastAccess(Entry entry) { return entry.lastAccess; }
+		
+		protected boolean isExpired(Entry entry, long now) {
+			return entry.getValue() == MISSING || !isServable(entry, now);
+		}
+	};
+	
+	public ResponseCacheTemplate() { fallbackExceptions.add(Exception.class); }
+	
+	public KeyResolver getKeyResolver() { return keyResolver; }
+	
+	/**
+	 * @param keyResolver resolver for cache keys; defaults to an {@link InvocationKeyResolver}
+	 */
+	public void setKeyResolver(KeyResolver keyResolver) {
+		Assert.notNull(keyResolver, "keyResolver can't be null");
+		this.keyResolver = keyResolver;
+	}
+	
+	@ManagedAttribute(description = "Time in ms for which cached results are served without a call (0 = never)")
+	public long getTtl() { return ttl; }
+	
+	/**
+	 * @param ttl time in ms for which cached results are served without calling the backend, or 0 to always call it;
+	 * defaults to 0
+	 * @throws IllegalArgumentException if ttl &lt; 0
+	 */
+	@ManagedAttribute(description = "Time in ms for which cached results are served without a call (0 = never)")
+	public void setTtl(long ttl) {
+		Assert.isTrue(ttl >= 0L, "ttl must be >= 0");
+		this.ttl = ttl;
+	}
+	
+	@ManagedAttribute(description = "Maximum age in ms of results served on failure (0 = no limit)")
+	public long getMaxStaleness() { return maxStaleness; }
+	
+	/**
+	 * @param maxStaleness maximum age in ms of cached results served when a call fails, or 0 for no limit; defaults
+	 * to 0
+	 * @throws IllegalArgumentException if maxStaleness &lt; 0
+	 */
+	@ManagedAttribute(description = "Maximum age in ms of results served on failure (0 = no limit)")
+	public void setMaxStaleness(long maxStaleness) {
+		Assert.isTrue(maxStaleness >= 0L, "maxStaleness must be >= 0");
+		this.maxStaleness = maxStaleness;
+	}
+	
+	@ManagedAttribute(description = "Maximum number of cached results")
+	public int getMaxEntries() { return maxEntries; }
+	
+	/**
+	 * @param maxEntries maximum number of cached results; defaults to 1000
+	 * @throws IllegalArgumentException if maxEntries &lt; 1
+	 */
+	@ManagedAttribute(description = "Maximum number of cached results")
+	public void setMaxEntries(int maxEntries) {
+		Assert.isTrue(maxEntries >= 1, "maxEntries must be >= 1");
+		this.maxEntries = maxEntries;
+	}
+	
+	public boolean isSoftValues() { return softValues; }
+	
+	/**
+	 * @param softValues whether cached results are softly referenced, so the garbage collector can reclaim them;
+	 * defaults to false
+	 */
+	public void setSoftValues(boolean softValues) { this.softValues = softValues; }
+	
+	public List<Class<? extends Exception>> getFallbackExceptions() { return fallbackExceptions; }
+	
+	/**
+	 * @param exceptions exception types, including subclasses, on which a cached result is served; defaults to
+	 * {@link Exception}
+	 */
+	public void setFallbackExceptions(List<Class<? extends Exception>> exceptions) {
+		Assert.notNull(exceptions, "fallbackExceptions can't be null");
+		this.fallbackExceptions = exceptions;
+	}
+	
+	@ManagedAttribute(description = "Number of cached results")
+	public int getSize() { return entries.size(); }
+	
+	@ManagedAttribute(description = "Number of calls answered from fresh cache entries")
+	public long getHitCount() { return hitCount.get(); }
+	
+	@ManagedAttribute(description = "Number of calls passed to the backend")
+	public long getMissCount() { return missCount.get(); }
+	
+	@ManagedAttribute(description = "Number of failed calls answered with a stale result")
+	public long getStaleHitCount() { return staleHitCount.get(); }
+	
+	@ManagedAttribute(description = "Number of entries evicted")
+	public long getEvictionCount() { return eviction.getEvictionCount(); }
+	
+	@ManagedOperation(description = "Discards all cached results")
+	public void clear() { entries.clear(); }
+	
+	@SuppressWarnings("unchecked")
+	public <T> T execute(GuardCallback<T> action) throws Exception {
+		final Object key = keyResolver.resolveKey(action);
+		if (key == null) { return action.doInGuard(); }
+		
+		final long now = nanoTime();
+		final Entry entry = entries.get(key);
+		final Object cached = (entry != null ? entry.getValue() : MISSING);
+		if (cached != MISSING) {
+			entry.lastAccess = now;
+			long currTtl = ttl;
+			if (currTtl > 0L && now - entry.created < TimeUnit.MILLISECONDS.toNanos(currTtl)) {
+				hitCount.incrementAndGet();
+				return (T) unwrap(cached);
+			}
+		}
+		
+		missCount.incrementAndGet();
+		T result;
+		try {
+			result = action.doInGuard();
+		} catch (Exception e) {
+			if (cached != MISSING && isFallbackException(e.getClass()) && isServable(entry, now)) {
+				staleHitCount.incrementAndGet();
+				log.debug("Serving stale result for key={} after {}", key, e.toString());
+				return (T) unwrap(cached);
+			}
+			throw e;
+		}
+		
+		if (entry == null && entries.size() >= maxEntries) { eviction.evict(maxEntries, now); }
+		entries.put(key, new Entry(result == null ? NULL_VALUE : result, now, softValues));
+		return result;
+	}
+	
+	// Overridable for testing
+	long nanoTime() { return System.nanoTime(); }
+	
+	private boolean isServable(Entry entry, long now) {
+		long currMaxStaleness = maxStaleness;
+		return currMaxStaleness == 0L || now - entry.created <= TimeUnit.MILLISECONDS.toNanos(currMaxStaleness);
+	}
+	
+	private boolean isFallbackException(Class<? extends Exception> exceptionClass) {
+		for (Class<? extends Exception> fallbackClass : fallbackExceptions) {
+			if (fallbackClass.isAssignableFrom(exceptionClass)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static Object unwrap(Object value) { return (value == NULL_VALUE ? null : value); }
+	
+	/**
+	 * A cached result. The last access time is updated with a plain volatile write; racing updates are harmless since
+	 * it only steers eviction.
+	 */
+	private static final class Entry {
+		private final Object value;
+		private final boolean soft;
+		private final long created;
+		private volatile long lastAccess;
+		
+		public Entry(Object value, long created, boolean soft) {
+			this.value = (soft ? new SoftReference<Object>(value) : value);
+			this.soft = soft;
+			this.created = created;
+			this.lastAccess = created;
+		}
+		
+		public Object getValue() {
+			if (!soft) { return value; }
+			Object referent = ((SoftReference<?>) value).get();
+			return (referent != null ? referent : MISSING);
+		}
+	}
+}
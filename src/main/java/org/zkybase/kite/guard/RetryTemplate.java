@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.ForkableGuardCallback;
+import org.zkybase.kite.GuardCallback;
+
+/**
+ * <p>
+ * Guard that retries failed calls. A call that throws a {@link #setRetryableExceptions(List) retryable exception} is
+ * attempted again, up to {@link #setMaxAttempts(int) maxAttempts} times in all, after a backoff delay that grows
+ * exponentially from {@link #setInitialBackoff(long) initialBackoff} up to {@link #setMaxBackoff(long) maxBackoff}.
+ * The delay uses "full jitter": each wait is drawn at random between zero and the exponential bound, which spreads
+ * out retries from callers that failed together. Exceptions that aren't retryable, and errors, propagate at once.
+ * </p>
+ * <p>
+ * Retries are limited by a budget as well as by the attempt count. Every successful call earns
+ * {@link #setRetryBudgetPercent(float) retryBudgetPercent} hundredths of a retry token and every retry spends a whole
+ * token, so over time retries can't exceed that percentage of successful traffic; up to
+ * {@link #setRetryBudgetCapacity(int) retryBudgetCapacity} unused tokens are banked to absorb brief blips. During a
+ * partial outage, when successes dry up, the budget runs out and failures propagate immediately instead of multiplying
+ * the load on the struggling service.
+ * </p>
+ * <p>
+ * Each attempt runs the rest of the guard list and the target method again. Callbacks from the guard list interceptor
+ * are {@link ForkableGuardCallback#fork() forked} for every attempt so each one proceeds down a fresh copy of the
+ * method invocation. In a guard list, put the retry guard outside circuit breakers and throttles, so that every
+ * attempt is checked by them, and mark their rejections as non-retryable if they shouldn't be retried.
+ * </p>
+ * <p>
+ * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@ManagedResource
+public class RetryTemplate extends AbstractGuard {
+	private static Logger log = LoggerFactory.getLogger(RetryTemplate.class);
+	
+	// Configuration
+	private volatile int maxAttempts = 3;
+	private volatile long initialBackoff = 100L;
+	private volatile long maxBackoff = 10000L;
+	private volatile double backoffMultiplier = 2.0;
+	private List<Class<? extends Exception>> retryableExceptions = new ArrayList<Class<? extends Exception>>();
+	private List<Class<? extends Exception>> nonRetryableExceptions = new ArrayList<Class<? extends Exception>>();
+	private volatile float retryBudgetPercent = 20.0f;
+	
+	// State
+	private final TokenBudget retryBudget = new TokenBudget(10);
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong retriesExhaustedCount = new AtomicLong();
+	private final AtomicLong budgetExhaustedCount = new AtomicLong();
+	
+	public RetryTemplate() { retryableExceptions.add(Exception.class); }
+	
+	@ManagedAttribute(description = "Maximum number of attempts per call, including the first")
+	public int getMaxAttempts() { return maxAttempts; }
+	
+	/**
+	 * @param maxAttempts maximum number of attempts per call, including the first; defaults to 3
+	 * @throws IllegalArgumentException if maxAttempts &lt; 1
+	 */
+	@ManagedAttribute(description = "Maximum number of attempts per call, including the first")
+	public void setMaxAttempts(int maxAttempts) {
+		isTrue(maxAttempts >= 1, "maxAttempts must be >= 1");
+		this.maxAttempts = maxAttempts;
+	}
+	
+	@ManagedAttribute(description = "Upper bound in ms on the delay before the first retry")
+	public long getInitialBackoff() { return initialBackoff; }
+	
+	/**
+	 * @param initialBackoff upper bound in ms on the delay before the first retry; defaults to 100
+	 * @throws IllegalArgumentException if initialBackoff &lt; 0
+	 */
+	@ManagedAttribute(description = "Upper bound in ms on the delay before the first retry")
+	public void setInitialBackoff(long initialBackoff) {
+		isTrue(initialBackoff >= 0L, "initialBackoff must be >= 0");
+		this.initialBackoff = initialBackoff;
+	}
+	
+	@ManagedAttribute(description = "Upper bound in ms on the delay before any retry")
+	public long getMaxBackoff() { return maxBackoff; }
+	
+	/**
+	 * @param maxBackoff upper bound in ms on the delay before any retry; defaults to 10000
+	 * @throws IllegalArgumentException if maxBackoff &lt; 0
+	 */
+	@ManagedAttribute(description = "Upper bound in ms on the delay before any retry")
+	public void setMaxBackoff(long maxBackoff) {
+		isTrue(maxBackoff >= 0L, "maxBackoff must be >= 0");
+		this.maxBackoff = maxBackoff;
+	}
+	
+	@ManagedAttribute(description = "Factor by which the backoff bound grows with each retry")
+	public double getBackoffMultiplier() { return backoffMultiplier; }
+	
+	/**
+	 * @param backoffMultiplier factor by which the backoff bound grows with each retry; defaults to 2
+	 * @throws IllegalArgumentException if backoffMultiplier &lt; 1
+	 */
+	@ManagedAttribute(description = "Factor by which the backoff bound grows with each retry")
+	public void setBackoffMultiplier(double backoffMultiplier) {
+		isTrue(backoffMultiplier >= 1.0, "backoffMultiplier must be >= 1");
+		this.backoffMultiplier = backoffMultiplier;
+	}
+	
+	public List<Class<? extends Exception>> getRetryableExceptions() { return retryableExceptions; }
+	
+	/**
+	 * @param exceptions exception types that cause a retry, including subclasses; defaults to {@link Exception}
+	 */
+	public void setRetryableExceptions(List<Class<? extends Exception>> exceptions) {
+		notNull(exceptions, "retryableExceptions can't be null");
+		this.retryableExceptions = exceptions;
+	}
+	
+	public List<Class<? extends Exception>> getNonRetryableExceptions() { return nonRetryableExceptions; }
+	
+	/**
+	 * @param exceptions exception types that never cause a retry, including subclasses, even if they're also
+	 * retryable; defaults to none
+	 */
+	public void setNonRetryableExceptions(List<Class<? extends Exception>> exceptions) {
+		notNull(exceptions, "nonRetryableExceptions can't be null");
+		this.nonRetryableExceptions = exceptions;
+	}
+	
+	@ManagedAttribute(description = "Retries allowed as a percentage of successful calls (0 = unlimited)")
+	public float getRetryBudgetPercent() { return retryBudgetPercent; }
+	
+	/**
+	 * @param percent retries allowed as a percentage of successful calls, or 0 to disable the budget; defaults to 20
+	 * @throws IllegalArgumentException if percent isn't 0 or in the range [0.0001, 100]
+	 */
+	@ManagedAttribute(description = "Retries allowed as a percentage of successful calls (0 = unlimited)")
+	public void setRetryBudgetPercent(float percent) {
+		isTrue(percent >= 0.0f && percent <= 100.0f, "retryBudgetPercent must be >= 0 and <= 100");
+		// Smaller percentages would earn less than a millionth of a token per success, so the budget would never refill
+		isTrue(percent == 0.0f || TokenBudget.isEarning(percent), "retryBudgetPercent must be 0 or >= 0.0001");
+		this.retryBudgetPercent = percent;
+	}
+	
+	@ManagedAttribute(description = "Maximum number of unused retries banked by the budget")
+	public int getRetryBudgetCapacity() { return retryBudget.getCapacity(); }
+	
+	/**
+	 * Sets the maximum number of unused retries banked by the budget. The budget is refilled to the new capacity.
+	 * 
+	 * @param capacity maximum number of unused retries banked by the budget; defaults to 10
+	 * @throws IllegalArgumentException if capacity &lt; 1
+	 */
+	@ManagedAttribute(description = "Maximum number of unused retries banked by the budget")
+	public void setRetryBudgetCapacity(int capacity) {
+		isTrue(capacity >= 1, "retryBudgetCapacity must be >= 1");
+		retryBudget.setCapacity(capacity);
+	}
+	
+	@ManagedAttribute(description = "Retries currently available in the budget")
+	public double getRetryBudgetRemaining() { return retryBudget.getBalance(); }
+	
+	@ManagedAttribute(description = "Number of retries attempted")
+	public long getRetryCount() { return retryCount.get(); }
+	
+	@ManagedAttribute(description = "Number of calls that failed on their last allowed attempt")
+	public long getRetriesExhaustedCount() { return retriesExhaustedCount.get(); }
+	
+	@ManagedAttribute(description = "Number of retries denied by the retry budget")
+	public long getBudgetExhaustedCount() { return budgetExhaustedCount.get(); }
+	
+	public <T> T execute(GuardCallback<T> action) throws Exception {
+		final int currMaxAttempts = maxAttempts;
+		for (int attempt = 1; ; attempt++) {
+			GuardCallback<T> attemptAction = (currMaxAttempts > 1 ? fork(action) : action);
+			try {
+				T result = attemptAction.doInGuard();
+				retryBudget.deposit(retryBudgetPercent);
+				return result;
+			} catch (Exception e) {
+				if (!isRetryableException(e.getClass())) { throw e; }
+				if (attempt >= currMaxAttempts) {
+					if (currMaxAttempts > 1) { retriesExhaustedCount.incrementAndGet(); }
+					throw e;
+				}
+				if (retryBudgetPercent != 0.0f && !retryBudget.withdraw()) {
+					budgetExhaustedCount.incrementAndGet();
+					log.warn("Retry budget exhausted; not retrying {}", e.toString());
+					throw e;
+				}
+				retryCount.incrementAndGet();
+				long delay = backoff(attempt);
+				log.debug("Attempt {} failed with {}; retrying in {} ms", new Object[] { attempt, e, delay });
+				try {
+					if (delay > 0L) { sleep(delay); }
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> GuardCallback<T> fork(GuardCallback<T> action) {
+		return (action instanceof ForkableGuardCallback ? ((ForkableGuardCallback<T>) action).fork() : action);
+	}
+	
+	// Full jitter: a random delay between zero and the exponential bound for this attempt
+	long backoff(int attempt) {
+		double bound = initialBackoff * Math.pow(backoffMultiplier, attempt - 1);
+		long cappedBound = (long) Math.min(bound, (double) maxBackoff);
+		return (cappedBound > 0L ? ThreadLocalRandom.current().nextLong(cappedBound + 1L) : 0L);
+	}
+	
+	// Overridable for testing
+	void sleep(long millis) throws InterruptedException { Thread.sleep(millis); }
+	
+	private boolean isRetryableException(Class<? extends Exception> exceptionClass) {
+		for (Class<? extends Exception> nonRetryableClass : nonRetryableExceptions) {
+			if (nonRetryableClass.isAssignableFrom(exceptionClass)) {
+				return false;
+			}
+		}
+		for (Class<? extends Exception> retryableClass : retryableExceptions) {
+			if (retryableClass.isAssignableFrom(exceptionClass)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
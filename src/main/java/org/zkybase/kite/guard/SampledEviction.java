@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Eviction sweep shared by the bounded maps in this package. When a map reaches its capacity, one thread runs a sweep
+ * while others carry on, so the map can briefly overshoot its capacity by about the number of concurrent callers. The
+ * sweep first removes entries that have expired. If that isn't enough to get back under 90% of capacity, it samples
+ * the remaining entries' last access times and removes the entries below the cutoff, which approximates evicting the
+ * least recently used entries without a lock on the read path.
+ * </p>
+ * 
+ * @param <V> map value type
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+abstract class SampledEviction<V> {
+	private static final int SAMPLE_SIZE = 1024;
+	private static Logger log = LoggerFactory.getLogger(SampledEviction.class);
+	
+	private final ConcurrentMap<?, V> map;
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	private final AtomicLong evictionCount = new AtomicLong();
+	
+	/**
+	 * @param map map to evict from
+	 */
+	public SampledEviction(ConcurrentMap<?, V> map) { this.map = map; }
+	
+	public long getEvictionCount() { return evictionCount.get(); }
+	
+	/**
+	 * Runs an eviction sweep, unless another thread is already running one.
+	 * 
+	 * @param capacity maximum number of entries
+	 * @param now current time, in the units of {@link #lastAccess(Object)}
+	 */
+	public void evict(int capacity, long now) {
+		if (!evicting.compareAndSet(false, true)) { return; }
+		try {
+			int target = capacity - capacity / 10;
+			long evicted = 0L;
+			for (Iterator<V> it = map.values().iterator(); it.hasNext();) {
+				if (isExpired(it.next(), now)) {
+					it.remove();
+					evicted++;
+				}
+			}
+			
+			int excess = map.size() - target;
+			if (excess > 0) {
+				long cutoff = sampleCutoff(excess);
+				for (Iterator<V> it = map.values().iterator(); it.hasNext();) {
+					if (lastAccess(it.next()) <= cutoff) {
+						it.remove();
+						evicted++;
+					}
+				}
+			}
+			
+			evictionCount.addAndGet(evicted);
+			log.debug("Evicted {} entries, {} remaining", evicted, map.size());
+		} finally {
+			evicting.set(false);
+		}
+	}
+	
+	/**
+	 * @param value map value
+	 * @return time the value was last used; values used longest ago are evicted first
+	 */
+	protected abstract long lastAccess(V value);
+	
+	/**
+	 * @param value map value
+	 * @param now current time
+	 * @return true if the value carries no information and can be evicted before any others
+	 */
+	protected abstract boolean isExpired(V value, long now);
+	
+	// Estimates the last access time below which about excess entries lie.
+	private long sampleCutoff(int excess) {
+		long[] sample = new long[Math.min(SAMPLE_SIZE, map.size())];
+		int n = 0;
+		for (Iterator<V> it = map.values().iterator(); it.hasNext() && n < sample.length;) {
+			sample[n++] = lastAccess(it.next());
+		}
+		if (n == 0) { return Long.MIN_VALUE; }
+		Arrays.sort(sample, 0, n);
+		int index = (int) Math.min(n - 1, (long) excess * n / Math.max(1, map.size()));
+		return sample[index];
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.key.InvocationKeyResolver;
+import org.zkybase.kite.key.KeyResolver;
+
+/**
+ * <p>
+ * Guard that collapses concurrent identical calls into one. The first call for a key (the leader) runs; calls with an
+ * equal key that arrive while it's in flight (the followers) wait for it and receive its result, or its exception,
+ * without running themselves. Once the leader finishes, the next call for the key runs afresh: results aren't cached.
+ * </p>
+ * <p>
+ * This suits idempotent reads, where a cache expiry would otherwise send a burst of identical calls to the backend.
+ * By default calls are keyed by the whole invocation (method, target and arguments), via an
+ * {@link InvocationKeyResolver}; any {@link KeyResolver} can be used instead. When one guard serves several methods,
+ * the key must distinguish them, since followers receive the leader's result as is. Calls whose key resolves to
+ * <code>null</code> aren't collapsed.
+ * </p>
+ * <p>
+ * Followers share the leader's result object, so results should be immutable or safe to share. Put the single-flight
+ * guard first in a guard list: followers then wait here and never take throttle permits or count against rate limits.
+ * By default followers wait as long as the leader runs, so a hung leader holds up every caller with its key; set
+ * {@link #setMaxWait(long) maxWait} to bound the wait, after which a follower stops waiting and runs the call itself.
+ * In-flight calls are tracked in a concurrent map that followers find with a lock-free read.
+ * </p>
+ * <p>
+ * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@ManagedResource
+public class SingleFlightTemplate extends AbstractGuard {
+	private static Logger log = LoggerFactory.getLogger(SingleFlightTemplate.class);
+	
+	private volatile KeyResolver keyResolver = new InvocationKeyResolver();
+	private volatile long maxWait = 0L;
+	private final ConcurrentMap<Object, Flight> flights = new ConcurrentHashMap<Object, Flight>();
+	private final AtomicLong collapsedCount = new AtomicLong();
+	private final AtomicLong waitTimeoutCount = new AtomicLong();
+	
+	public KeyResolver getKeyResolver() { return keyResolver; }
+	
+	/**
+	 * @param keyResolver resolver deciding which calls are identical; defaults to an {@link InvocationKeyResolver}
+	 */
+	public void setKeyResolver(KeyResolver keyResolver) {
+		Assert.notNull(keyResolver, "keyResolver can't be null");
+		this.keyResolver = keyResolver;
+	}
+	
+	@ManagedAttribute(description = "Maximum time in ms a follower waits for the leader; 0 waits indefinitely")
+	public long getMaxWait() { return maxWait; }
+	
+	/**
+	 * @param maxWait maximum time in ms a follower waits for the leader before running the call itself. The default,
+	 * 0, waits as long as the leader runs.
+	 * @throws IllegalArgumentException if maxWait &lt; 0
+	 */
+	@ManagedAttribute(description = "Maximum time in ms a follower waits for the leader; 0 waits indefinitely")
+	public void setMaxWait(long maxWait) {
+		if (maxWait < 0L) {
+			throw new IllegalArgumentException("maxWait must be >= 0");
+		}
+		this.maxWait = maxWait;
+	}
+	
+	@ManagedAttribute(description = "Number of distinct calls in flight")
+	public int getInFlightCount() { return flights.size(); }
+	
+	@ManagedAttribute(description = "Number of calls served by another call's execution")
+	public long getCollapsedCount() { return collapsedCount.get(); }
+	
+	@ManagedAttribute(description = "Number of followers that stopped waiting and ran the call themselves")
+	public long getWaitTimeoutCount() { return waitTimeoutCount.get(); }
+	
+	@SuppressWarnings("unchecked")
+	public <T> T execute(GuardCallback<T> action) throws Exception {
+		final Object key = keyResolver.resolveKey(action);
+		if (key == null) { return action.doInGuard(); }
+		
+		Flight flight = flights.get(key);
+		if (flight == null) {
+			Flight newFlight = new Flight();
+			flight = flights.putIfAbsent(key, newFlight);
+			if (flight == null) { return (T) lead(key, newFlight, action); }
+		}
+		
+		collapsedCount.incrementAndGet();
+		log.debug("Joining call in flight for key={}", key);
+		if (flight.await(maxWait)) { return (T) flight.getResult(); }
+		
+		waitTimeoutCount.incrementAndGet();
+		log.warn("Call in flight for key={} didn't finish within {} ms; running it separately", key, maxWait);
+		return action.doInGuard();
+	}
+	
+	// The flight is removed before it completes, so callers arriving after completion start a new flight rather than
+	// reusing the result.
+	private Object lead(Object key, Flight flight, GuardCallback<?> action) throws Exception {
+		try {
+			Object result = action.doInGuard();
+			flights.remove(key, flight);
+			flight.succeed(result);
+			return result;
+		} catch (Exception e) {
+			flights.remove(key, flight);
+			flight.fail(e);
+			throw e;
+		} catch (Error e) {
+			flights.remove(key, flight);
+			flight.fail(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * A call in flight. Written once by the leader; the latch publishes the outcome to the followers.
+	 */
+	private static final class Flight {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Object result;
+		private Throwable failure;
+		
+		public void succeed(Object result) {
+			this.result = result;
+			done.countDown();
+		}
+		
+		public void fail(Throwable failure) {
+			this.failure = failure;
+			done.countDown();
+		}
+		
+		// Returns false if the leader hasn't finished within maxWait ms; 0 waits indefinitely
+		public boolean await(long maxWait) throws InterruptedException {
+			if (maxWait == 0L) {
+				done.await();
+				return true;
+			}
+			return done.await(maxWait, TimeUnit.MILLISECONDS);
+		}
+		
+		public Object getResult() throws Exception {
+			if (failure == null) { return result; }
+			if (failure instanceof Exception) { throw (Exception) failure; }
+			throw (Error) failure;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.SlaViolationException;
+
+/**
+ * <p>
+ * Throttle that protects a latency target directly. The throttle times every call it admits and keeps a rolling
+ * latency histogram over the last {@link #setWindowSize(int) few seconds}. Once per
+ * {@link #setEvaluationInterval(long) evaluation interval} it compares the latency at the configured
+ * {@link #setPercentile(double) percentile} (p99 by default) against the {@link #setLatencyTarget(long) target}:
+ * while the target is missed, the throttle sheds a growing fraction of calls with a {@link SlaViolationException}, up
+ * to a {@link #setMaxShedFraction(double) maximum}; as latency recovers, it backs the shedding off step by step.
+ * </p>
+ * <p>
+ * Shedding is probabilistic, so the calls that do get through keep feeding the histogram and the throttle can tell
+ * when the service has recovered. For the same reason the maximum shed fraction should stay below 1. No change is
+ * made until the window holds a {@link #setMinimumNumberOfCalls(int) minimum number of calls}; with too few calls to
+ * judge, the throttle backs off.
+ * </p>
+ * <p>
+ * Admitting a call costs a random draw and reading the clock twice; recording its latency is one atomic increment in
+ * a lock-free histogram. The evaluation itself runs on whichever calling thread first notices the interval has
+ * passed, so there's no background thread.
+ * </p>
+ * <p>
+ * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@ManagedResource
+public class SlaThrottleTemplate extends AbstractGuard {
+	private static final int SLICES = 10;
+	private static Logger log = LoggerFactory.getLogger(SlaThrottleTemplate.class);
+	
+	// Configuration
+	private volatile long latencyTarget = 1000L;
+	private volatile double percentile = 99.0;
+	private volatile double shedStep = 0.1;
+	private volatile double maxShedFraction = 0.9;
+	private volatile long evaluationInterval = 1000L;
+	private volatile int windowSize = 10;
+	private volatile int minimumNumberOfCalls = 100;
+	
+	// State
+	private volatile LatencyHistogram histogram = newHistogram(windowSize);
+	private final AtomicLong nextEvaluation = new AtomicLong(Long.MIN_VALUE);
+	private volatile double shedFraction = 0.0;
+	private volatile long observedLatency = 0L;
+	private final AtomicLong shedCount = new AtomicLong();
+	
+	@ManagedAttribute(description = "Latency target in ms at the configured percentile")
+	public long getLatencyTarget() { return latencyTarget; }
+	
+	/**
+	 * @param latencyTarget latency target in ms at the configured percentile; defaults to 1000
+	 * @throws IllegalArgumentException if latencyTarget &lt; 1
+	 */
+	@ManagedAttribute(description = "Latency target in ms at the configured percentile")
+	public void setLatencyTarget(long latencyTarget) {
+		if (latencyTarget < 1L) {
+			throw new IllegalArgumentException("latencyTarget must be >= 1");
+		}
+		this.latencyTarget = latencyTarget;
+	}
+	
+	@ManagedAttribute(description = "Percentile the latency target applies to")
+	public double getPercentile() { return percentile; }
+	
+	/**
+	 * @param percentile percentile the latency target applies to; defaults to 99
+	 * @throws IllegalArgumentException if percentile isn't in the range (0, 100]
+	 */
+	@ManagedAttribute(description = "Percentile the latency target applies to")
+	public void setPercentile(double percentile) {
+		if (!(percentile > 0.0 && percentile <= 100.0)) {
+			throw new IllegalArgumentException("percentile must be > 0 and <= 100");
+		}
+		this.percentile = percentile;
+	}
+	
+	@ManagedAttribute(description = "Change in shed fraction per evaluation")
+	public double getShedStep() { return shedStep; }
+	
+	/**
+	 * @param shedStep amount by which the shed fraction rises or falls per evaluation; defaults to 0.1
+	 * @throws IllegalArgumentException if shedStep isn't in the range (0, 1]
+	 */
+	@ManagedAttribute(description = "Change in shed fraction per evaluation")
+	public void setShedStep(double shedStep) {
+		if (!(shedStep > 0.0 && shedStep <= 1.0)) {
+			throw new IllegalArgumentException("shedStep must be > 0 and <= 1");
+		}
+		this.shedStep = shedStep;
+	}
+	
+	@ManagedAttribute(description = "Largest fraction of calls the throttle sheds")
+	public double getMaxShedFraction() { return maxShedFraction; }
+	
+	/**
+	 * @param maxShedFraction largest fraction of calls the throttle sheds; defaults to 0.9
+	 * @throws IllegalArgumentException if maxShedFraction isn't in the range (0, 1]
+	 */
+	@ManagedAttribute(description = "Largest fraction of calls the throttle sheds")
+	public void setMaxShedFraction(double maxShedFraction) {
+		if (!(maxShedFraction > 0.0 && maxShedFraction <= 1.0)) {
+			throw new IllegalArgumentException("maxShedFraction must be > 0 and <= 1");
+		}
+		this.maxShedFraction = maxShedFraction;
+	}
+	
+	@ManagedAttribute(description = "Delay in ms between latency evaluations")
+	public long getEvaluationInterval() { return evaluationInterval; }
+	
+	/**
+	 * @param evaluationInterval delay in ms between latency evaluations; defaults to 1000
+	 * @throws IllegalArgumentException if evaluationInterval &lt; 1
+	 */
+	@ManagedAttribute(description = "Delay in ms between latency evaluations")
+	public void setEvaluationInterval(long evaluationInterval) {
+		if (evaluationInterval < 1L) {
+			throw new IllegalArgumentException("evaluationInterval must be >= 1");
+		}
+		this.evaluationInterval = evaluationInterval;
+	}
+	
+	@ManagedAttribute(description = "Length in seconds of the latency window")
+	public int getWindowSize() { return windowSize; }
+	
+	/**
+	 * Sets the length of the rolling latency window. Changing it discards the latencies recorded so far.
+	 * 
+	 * @param windowSize length in seconds of the latency window; defaults to 10
+	 * @throws IllegalArgumentException if windowSize &lt; 1
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("windowSize must be >= 1");
+		}
+		this.windowSize = windowSize;
+		this.histogram = newHistogram(windowSize);
+	}
+	
+	@ManagedAttribute(description = "Calls needed in the window before latency is evaluated")
+	public int getMinimumNumberOfCalls() { return minimumNumberOfCalls; }
+	
+	/**
+	 * @param minimumNumberOfCalls calls needed in the window before latency is evaluated; defaults to 100
+	 * @throws IllegalArgumentException if minimumNumberOfCalls &lt; 1
+	 */
+	@ManagedAttribute(description = "Calls needed in the window before latency is evaluated")
+	public void setMinimumNumberOfCalls(int minimumNumberOfCalls) {
+		if (minimumNumberOfCalls < 1) {
+			throw new IllegalArgumentException("minimumNumberOfCalls must be >= 1");
+		}
+		this.minimumNumberOfCalls = minimumNumberOfCalls;
+	}
+	
+	/**
+	 * @return fraction of calls currently being shed
+	 */
+	@ManagedAttribute(description = "Fraction of calls currently being shed")
+	public double getShedFraction() { return shedFraction; }
+	
+	/**
+	 * @return latency in ms at the configured percentile, as of the last evaluation
+	 */
+	@ManagedAttribute(description = "Latency in ms at the configured percentile, as of the last evaluation")
+	public double getObservedLatency() { return observedLatency / 1000.0; }
+	
+	@ManagedAttribute(description = "Number of calls shed")
+	public long getShedCount() { return shedCount.get(); }
+	
+	public <T> T execute(GuardCallback<T> action) throws Exception {
+		final LatencyHistogram currHistogram = this.histogram;
+		final long start = nanoTime();
+		evaluateIfDue(currHistogram, start / 1000000L);
+		
+		double currShedFraction = shedFraction;
+		if (currShedFraction > 0.0 && ThreadLocalRandom.current().nextDouble() < currShedFraction) {
+			shedCount.incrementAndGet();
+			throw new SlaViolationException(latencyTarget, percentile);
+		}
+		
+		try {
+			return action.doInGuard();
+		} finally {
+			long end = nanoTime();
+			currHistogram.record((end - start) / 1000L, end / 1000000L);
+		}
+	}
+	
+	// Only the thread that claims the evaluation slot adjusts the shed fraction, so the read-modify-write below is
+	// safe without a lock.
+	private void evaluateIfDue(LatencyHistogram currHistogram, long nowMillis) {
+		long next = nextEvaluation.get();
+		if (next != Long.MIN_VALUE && nowMillis < next) { return; }
+		if (!nextEvaluation.compareAndSet(next, nowMillis + evaluationInterval)) { return; }
+		if (next == Long.MIN_VALUE) { return; }
+		
+		double prevShedFraction = shedFraction;
+		double newShedFraction;
+		if (currHistogram.getCount(nowMillis) < minimumNumberOfCalls) {
+			newShedFraction = Math.max(0.0, prevShedFraction - shedStep);
+		} else {
+			long latency = currHistogram.getValueAtPercentile(percentile, nowMillis);
+			this.observedLatency = latency;
+			if (latency > latencyTarget * 1000L) {
+				newShedFraction = Math.min(maxShedFraction, prevShedFraction + shedStep);
+			} else {
+				newShedFraction = Math.max(0.0, prevShedFraction - shedStep);
+			}
+		}
+		// Stepping down in floating point can leave a tiny remainder instead of zero
+		if (newShedFraction < 1e-9) { newShedFraction = 0.0; }
+		this.shedFraction = newShedFraction;
+		
+		if (prevShedFraction == 0.0 && newShedFraction > 0.0) {
+			log.warn("Latency target of {} ms at p{} missed; shedding calls", latencyTarget, percentile);
+		} else if (prevShedFraction > 0.0 && newShedFraction == 0.0) {
+			log.info("Latency back within target of {} ms at p{}; no longer shedding calls", latencyTarget, percentile);
+		}
+	}
+	
+	// The window is split into ten slices so that it rolls forward smoothly rather than emptying all at once
+	private static LatencyHistogram newHistogram(int windowSize) {
+		return new LatencyHistogram(SLICES, windowSize * 1000L / SLICES);
+	}
+	
+	// Overridable for testing
+	long nanoTime() { return System.nanoTime(); }
+}
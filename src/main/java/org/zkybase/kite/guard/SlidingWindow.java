@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+/**
+ * <p>
+ * Sliding window of call outcomes used by {@link CircuitBreakerTemplate} to compute failure and slow call rates.
+ * Implementations must make {@link #record(boolean, boolean)} constant-time, lock-free and allocation-free, since it
+ * sits on the path of every guarded call.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+abstract class SlidingWindow {
+	
+	/**
+	 * Records the outcome of a single call.
+	 * 
+	 * @param failure whether the call failed
+	 * @param slow whether the call exceeded the slow call duration threshold
+	 */
+	abstract void record(boolean failure, boolean slow);
+	
+	/**
+	 * Returns the failure rate over the window as a percentage, or -1 if the window holds fewer than the given number
+	 * of calls.
+	 * 
+	 * @param minimumCalls minimum number of calls required to compute a rate
+	 * @return failure percentage (0-100), or -1 if there aren't enough calls yet
+	 */
+	abstract float getFailureRate(int minimumCalls);
+	
+	/**
+	 * Returns the slow call rate over the window as a percentage, or -1 if the window holds fewer than the given number
+	 * of calls.
+	 * 
+	 * @param minimumCalls minimum number of calls required to compute a rate
+	 * @return slow call percentage (0-100), or -1 if there aren't enough calls yet
+	 */
+	abstract float getSlowCallRate(int minimumCalls);
+	
+	/**
+	 * Discards all recorded outcomes.
+	 */
+	abstract void reset();
+	
+	static float rate(long matches, long calls, int minimumCalls) {
+		if (calls < minimumCalls || calls == 0L) { return -1.0f; }
+		
+		// Concurrent resets can leave the counts briefly out of step; clamp rather than report nonsense.
+		matches = Math.max(0L, Math.min(matches, calls));
+		return matches * 100.0f / calls;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Sliding window over the last <em>n</em> seconds, implemented as a ring of one-second buckets. Each bucket is a
+ * single <code>long</code> packing the second it belongs to (22 bits) together with its call, failure and slow call
+ * counts (14 bits each), so recording an outcome is one compare-and-set that both rolls a stale bucket over and counts
+ * the call.
+ * </p>
+ * <p>
+ * Bucket counts saturate at 16,383 calls per second; calls beyond that are not sampled, which keeps the rates
+ * representative without overflowing the counters.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+class TimeBasedSlidingWindow extends SlidingWindow {
+	private static final int COUNT_BITS = 14;
+	private static final int FAILURE_SHIFT = COUNT_BITS;
+	private static final int CALL_SHIFT = 2 * COUNT_BITS;
+	private static final int EPOCH_SHIFT = 3 * COUNT_BITS;
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1L;
+	private static final long EPOCH_MASK = (1L << (Long.SIZE - EPOCH_SHIFT)) - 1L;
+	private static final long ONE_CALL = 1L << CALL_SHIFT;
+	private static final long ONE_FAILURE = 1L << FAILURE_SHIFT;
+	private static final long ONE_SLOW_CALL = 1L;
+	
+	private final int size;
+	private final AtomicLongArray buckets;
+	
+	/**
+	 * @param size number of seconds in the window
+	 * @throws IllegalArgumentException if size &lt; 1
+	 */
+	TimeBasedSlidingWindow(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be >= 1");
+		}
+		this.size = size;
+		this.buckets = new AtomicLongArray(size);
+	}
+	
+	@Override
+	void record(boolean failure, boolean slow) {
+		long second = currentSecond();
+		int index = (int) (second % size);
+		long epoch = second & EPOCH_MASK;
+		long increment = ONE_CALL + (failure ? ONE_FAILURE : 0L) + (slow ? ONE_SLOW_CALL : 0L);
+		
+		while (true) {
+			long bucket = buckets.get(index);
+			long update;
+			if ((bucket >>> EPOCH_SHIFT) != epoch) {
+				update = (epoch << EPOCH_SHIFT) + increment;
+			} else if (calls(bucket) == COUNT_MASK) {
+				return;
+			} else {
+				update = bucket + increment;
+			}
+			if (buckets.compareAndSet(index, bucket, update)) { return; }
+		}
+	}
+	
+	@Override
+	float getFailureRate(int minimumCalls) { return rate(FAILURE_SHIFT, minimumCalls); }
+	
+	@Override
+	float getSlowCallRate(int minimumCalls) { return rate(0, minimumCalls); }
+	
+	// Rate of the count at the given shift over the calls in all live buckets.
+	private float rate(int countShift, int minimumCalls) {
+		long epoch = currentSecond() & EPOCH_MASK;
+		long calls = 0L;
+		long matches = 0L;
+		for (int i = 0; i < size; i++) {
+			long bucket = buckets.get(i);
+			long age = (epoch - (bucket >>> EPOCH_SHIFT)) & EPOCH_MASK;
+			if (age < size) {
+				calls += calls(bucket);
+				matches += (bucket >>> countShift) & COUNT_MASK;
+			}
+		}
+		return rate(matches, calls, minimumCalls);
+	}
+	
+	@Override
+	void reset() {
+		for (int i = 0; i < size; i++) { buckets.set(i, 0L); }
+	}
+	
+	long currentSecond() { return System.currentTimeMillis() / 1000L; }
+	
+	private static long calls(long bucket) { return (bucket >>> CALL_SHIFT) & COUNT_MASK; }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.GuardTimeoutException;
+
+/**
+ * <p>
+ * Guard that puts a deadline on each call. The action runs on the calling thread; if it's still running when the
+ * deadline passes, the thread is interrupted, and the caller gets a {@link GuardTimeoutException} once the action
+ * returns, whatever its outcome. The interrupt is cleared before the exception is thrown, so it doesn't leak into the
+ * caller's code.
+ * </p>
+ * <p>
+ * Deadlines are tracked by a hashed wheel timer shared by all timeout guards, rather than by a scheduled future per
+ * call, so scheduling and cancelling a deadline is a couple of lock-free queue operations and the guard copes with
+ * tens of thousands of calls in flight. The timer ticks every 10 ms, so deadlines fire up to a tick late.
+ * </p>
+ * <p>
+ * Place the timeout guard inside throttles and circuit breakers in a guard list so that a hung call gives back its
+ * throttle permit and counts as a failure. An action that ignores interrupts (for example, one blocked in classic
+ * socket I/O) still holds the thread until it returns; to abandon such calls, use a {@link BulkheadTemplate} with a
+ * timeout instead.
+ * </p>
+ * <p>
+ * We expose this guard as a JMX MBean so it can be queried and manipulated in management contexts.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+@ManagedResource
+public class TimeoutTemplate extends AbstractGuard {
+	private static Logger log = LoggerFactory.getLogger(TimeoutTemplate.class);
+	
+	private final HashedWheelTimer timer;
+	private volatile long timeout = 1000L;
+	private final AtomicLong timeoutCount = new AtomicLong();
+	
+	public TimeoutTemplate() { this(HashedWheelTimer.getSharedInstance()); }
+	
+	TimeoutTemplate(HashedWheelTimer timer) { this.timer = timer; }
+	
+	@ManagedAttribute(description = "Deadline in ms for each call")
+	public long getTimeout() { return timeout; }
+	
+	/**
+	 * @param timeout deadline in ms for each call; defaults to 1000
+	 * @throws IllegalArgumentException if timeout &lt; 1
+	 */
+	@ManagedAttribute(description = "Deadline in ms for each call")
+	public void setTimeout(long timeout) {
+		if (timeout < 1L) {
+			throw new IllegalArgumentException("timeout must be >= 1");
+		}
+		this.timeout = timeout;
+	}
+	
+	@ManagedAttribute(description = "Number of calls that missed their deadline")
+	public long getTimeoutCount() { return timeoutCount.get(); }
+	
+	public <T> T execute(GuardCallback<T> action) throws Exception {
+		final long currTimeout = timeout;
+		final Deadline deadline = new Deadline(Thread.currentThread());
+		final HashedWheelTimer.Timeout handle = timer.newTimeout(deadline, currTimeout, TimeUnit.MILLISECONDS);
+		
+		T result;
+		try {
+			result = action.doInGuard();
+		} catch (Exception e) {
+			if (finish(deadline, handle)) { throw e; }
+			throw timedOut(currTimeout, e);
+		} catch (Error e) {
+			finish(deadline, handle);
+			throw e;
+		}
+		
+		if (finish(deadline, handle)) { return result; }
+		throw timedOut(currTimeout, null);
+	}
+	
+	// Returns true if the call finished before its deadline. Otherwise waits for the timer to deliver its interrupt
+	// and clears it, unless the thread had already been interrupted by someone else.
+	private static boolean finish(Deadline deadline, HashedWheelTimer.Timeout handle) {
+		if (deadline.complete()) {
+			handle.cancel();
+			return true;
+		}
+		deadline.awaitInterrupt();
+		Thread.interrupted();
+		if (deadline.wasAlreadyInterrupted()) { Thread.currentThread().interrupt(); }
+		return false;
+	}
+	
+	private GuardTimeoutException timedOut(long currTimeout, Exception cause) {
+		timeoutCount.incrementAndGet();
+		log.warn("Request timed out: deadline of {} ms exceeded", currTimeout);
+		return (cause == null ? new GuardTimeoutException(currTimeout) : new GuardTimeoutException(currTimeout, cause));
+	}
+	
+	/**
+	 * Per-call deadline. The caller completing the call and the timer interrupting it race to move the deadline out of
+	 * the running state; whichever loses defers to the winner.
+	 */
+	private static final class Deadline implements Runnable {
+		private static final int RUNNING = 0;
+		private static final int COMPLETED = 1;
+		private static final int INTERRUPTING = 2;
+		private static final int INTERRUPTED = 3;
+		
+		private final Thread thread;
+		private final AtomicInteger state = new AtomicInteger(RUNNING);
+		
+		// Published to the caller by the write to state that follows it
+		private boolean alreadyInterrupted;
+		
+		public Deadline(Thread thread) { this.thread = thread; }
+		
+		// Runs on the timer thread
+		@Override
+		public void run() {
+			if (state.compareAndSet(RUNNING, INTERRUPTING)) {
+				alreadyInterrupted = thread.isInterrupted();
+				thread.interrupt();
+				state.set(INTERRUPTED);
+			}
+		}
+		
+		public boolean complete() { return state.compareAndSet(RUNNING, COMPLETED); }
+		
+		public void awaitInterrupt() {
+			while (state.get() != INTERRUPTED) { Thread.yield(); }
+		}
+		
+		public boolean wasAlreadyInterrupted() { return alreadyInterrupted; }
+	}
+}
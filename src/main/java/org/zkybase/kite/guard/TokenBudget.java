@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Lock-free token bucket limiting extra work, such as retries or hedges, to a percentage of ordinary calls. Each call
+ * {@link #deposit(float) deposits} a fraction of a token and each unit of extra work {@link #withdraw() withdraws} a
+ * whole one; up to a fixed capacity of unused tokens is banked. The balance is kept in millionths of a token so that
+ * even small deposits stay integral.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+final class TokenBudget {
+	private static final long MICRO_TOKENS_PER_TOKEN = 1000000L;
+	
+	private volatile int capacity;
+	private final AtomicLong balance = new AtomicLong();
+	
+	/**
+	 * @param capacity maximum number of banked tokens; the budget starts full
+	 */
+	public TokenBudget(int capacity) { setCapacity(capacity); }
+	
+	public int getCapacity() { return capacity; }
+	
+	/**
+	 * Sets the maximum number of banked tokens and refills the budget to it.
+	 * 
+	 * @param capacity maximum number of banked tokens
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+		balance.set(capacity * MICRO_TOKENS_PER_TOKEN);
+	}
+	
+	/**
+	 * @return number of tokens currently banked
+	 */
+	public double getBalance() { return balance.get() / (double) MICRO_TOKENS_PER_TOKEN; }
+	
+	/**
+	 * @param percent percentage of a token to deposit
+	 * @return true if the percentage earns anything, i.e. it's at least 0.0001
+	 */
+	public static boolean isEarning(float percent) { return toMicroTokens(percent) > 0L; }
+	
+	/**
+	 * Deposits a percentage of a token, up to the capacity.
+	 * 
+	 * @param percent percentage of a token to deposit
+	 */
+	public void deposit(float percent) {
+		final long deposit = toMicroTokens(percent);
+		if (deposit == 0L) { return; }
+		final long max = capacity * MICRO_TOKENS_PER_TOKEN;
+		while (true) {
+			long current = balance.get();
+			// A full budget is the common case, and checking first keeps callers from contending on the CAS
+			if (current >= max) { return; }
+			if (balance.compareAndSet(current, Math.min(max, current + deposit))) { return; }
+		}
+	}
+	
+	/**
+	 * @return true if a whole token was withdrawn, or false if the budget holds less than one
+	 */
+	public boolean withdraw() {
+		while (true) {
+			long current = balance.get();
+			if (current < MICRO_TOKENS_PER_TOKEN) { return false; }
+			if (balance.compareAndSet(current, current - MICRO_TOKENS_PER_TOKEN)) { return true; }
+		}
+	}
+	
+	private static long toMicroTokens(float percent) { return Math.round(percent * (MICRO_TOKENS_PER_TOKEN / 100.0)); }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reflective access to virtual threads, which need Java 21 while Kite builds against older releases.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+final class VirtualThreads {
+	private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+	
+	private VirtualThreads() { }
+	
+	/**
+	 * @return whether the running JVM supports virtual threads
+	 */
+	public static boolean isSupported() { return OF_VIRTUAL != null; }
+	
+	/**
+	 * @param prefix thread name prefix; threads are numbered from 0
+	 * @return factory creating virtual threads
+	 * @throws IllegalStateException if the JVM doesn't support virtual threads
+	 */
+	public static ThreadFactory newThreadFactory(String prefix) {
+		if (!isSupported()) {
+			throw new IllegalStateException("Virtual threads require Java 21 or later");
+		}
+		try {
+			Object builder = OF_VIRTUAL.invoke(null);
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			throw new IllegalStateException("Couldn't create virtual thread factory", e);
+		}
+	}
+	
+	private static Method findMethod(Class<?> clazz, String name) {
+		try {
+			return clazz.getMethod(name);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
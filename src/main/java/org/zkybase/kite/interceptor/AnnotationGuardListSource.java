@@ -18,43 +18,112 @@ package org.zkybase.kite.interceptor;
 import static org.springframework.util.Assert.notNull;
 
 import java.io.Serializable;
-import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.core.BridgeMethodResolver;
 import org.springframework.util.ClassUtils;
 import org.zkybase.kite.Guard;
 import org.zkybase.kite.GuardedBy;
 
 /**
+ * <p>
  * Strategy returning a guard list sourced from the {@link GuardedBy} annotation.
+ * </p>
+ * <p>
+ * Resolved guard lists are cached by method and target class, including a negative entry for unguarded methods, so
+ * the annotation lookup and guard bean lookups happen only once per joinpoint. The cache is cleared whenever the
+ * application context is refreshed.
+ * </p>
+ * <p>
+ * The {@link GuardedBy#fallback() fallback}, if any, is resolved along with the guard list. Since the proxy creator
+ * asks for the guard list when deciding whether to proxy a bean, the fallback method is found and compiled into a
+ * method handle when the proxy is created, and a misnamed fallback fails fast.
+ * </p>
  * 
  * @author Willie Wheeler (willie.wheeler@gmail.com)
  * @since 1.0
  */
 @SuppressWarnings("serial")
-public class AnnotationGuardListSource implements GuardListSource, BeanFactoryAware, Serializable {
+public class AnnotationGuardListSource
+	implements GuardListSource, FallbackSource, BeanFactoryAware, ApplicationListener<ContextRefreshedEvent>,
+		Serializable {
+	
+	private static final Logger log = LoggerFactory.getLogger(AnnotationGuardListSource.class);
+	
+	// Marks unguarded methods in the cache, since ConcurrentHashMap doesn't allow null values.
+	private static final GuardAttribute UNGUARDED = new GuardAttribute(null, null);
+	
 	private BeanFactory beanFactory;
+	private final Map<MethodCacheKey, GuardAttribute> cache =
+		new ConcurrentHashMap<MethodCacheKey, GuardAttribute>();
 
 	/* (non-Javadoc)
 	 * @see org.springframework.beans.factory.BeanFactoryAware#setBeanFactory
 	 * (org.springframework.beans.factory.BeanFactory)
 	 */
 	@Override
-	public void setBeanFactory(BeanFactory beanFactory) throws BeansException { this.beanFactory = beanFactory; }
+	public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+		this.beanFactory = beanFactory;
+		clearCache();
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.springframework.context.ApplicationListener#onApplicationEvent
+	 * (org.springframework.context.ApplicationEvent)
+	 */
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		log.debug("Context refreshed; clearing guard list cache");
+		clearCache();
+	}
+	
+	/**
+	 * Discards all cached guard lists, forcing them to be resolved again on next use.
+	 */
+	public void clearCache() { cache.clear(); }
 
 	/* (non-Javadoc)
 	 * @see org.zkybase.kite.interceptor.GuardListSource#getGuards(java.lang.reflect.Method, java.lang.Class)
 	 */
 	@Override
 	public List<Guard> getGuards(Method method, Class<?> targetClass) {
+		return getAttribute(method, targetClass).guards;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.interceptor.FallbackSource#getFallback(java.lang.reflect.Method, java.lang.Class)
+	 */
+	@Override
+	public Fallback getFallback(Method method, Class<?> targetClass) {
+		return getAttribute(method, targetClass).fallback;
+	}
+	
+	private GuardAttribute getAttribute(Method method, Class<?> targetClass) {
 		notNull(method, "method can't be null");
 		
+		MethodCacheKey key = new MethodCacheKey(method, targetClass);
+		GuardAttribute attr = cache.get(key);
+		if (attr == null) {
+			attr = resolveAttribute(method, targetClass);
+			cache.put(key, attr);
+		}
+		return attr;
+	}
+	
+	private GuardAttribute resolveAttribute(Method method, Class<?> targetClass) {
+		
 		// Method may be on an interface, but we need annotations from the target class. If target class is null, method
 		// will be unchanged.
 		Method specificMethod = ClassUtils.getMostSpecificMethod(method, targetClass);
@@ -62,23 +131,38 @@ public class AnnotationGuardListSource implements GuardListSource, BeanFactoryAw
 		// If we are dealing with a method with generic parameters, find the original method.
 		specificMethod = BridgeMethodResolver.findBridgedMethod(specificMethod);
 		
-		List<Guard> guards = parseAnnotation(specificMethod);
-		return (guards != null ? guards : parseAnnotation(method));
+		GuardedBy ann = specificMethod.getAnnotation(GuardedBy.class);
+		if (ann == null) { ann = method.getAnnotation(GuardedBy.class); }
+		if (ann == null) { return UNGUARDED; }
+		
+		Class<?> fallbackClass = (targetClass != null ? targetClass : method.getDeclaringClass());
+		return new GuardAttribute(parseGuards(ann), parseFallback(ann, fallbackClass, specificMethod));
 	}
 	
-	private List<Guard> parseAnnotation(AnnotatedElement elem) {
-		assert (elem != null);
-		return parseAnnotation(elem.getAnnotation(GuardedBy.class));
+	// Empty names are skipped, since an annotation that only names a fallback inherits the default value of "".
+	private List<Guard> parseGuards(GuardedBy ann) {
+		List<Guard> guards = new ArrayList<Guard>();
+		for (String guardName : ann.value()) {
+			if (guardName.length() > 0) { guards.add(beanFactory.getBean(guardName, Guard.class)); }
+		}
+		return Collections.unmodifiableList(guards);
 	}
 	
-	private List<Guard> parseAnnotation(GuardedBy ann) {
-		if (ann == null) { return null; }
+	private Fallback parseFallback(GuardedBy ann, Class<?> targetClass, Method method) {
+		String name = ann.fallback();
+		if (name.length() == 0) { return null; }
+		Fallback fallback = Fallback.forMethod(targetClass, name, method, ann.fallbackOn());
+		log.debug("Resolved fallback for {}: {}", method, fallback);
+		return fallback;
+	}
+	
+	private static final class GuardAttribute {
+		private final List<Guard> guards;
+		private final Fallback fallback;
 		
-		List<Guard> guards = new ArrayList<Guard>();
-		String[] guardNames = ann.value();
-		for (String guardName : guardNames) {
-			guards.add(beanFactory.getBean(guardName, Guard.class));
+		public GuardAttribute(List<Guard> guards, Fallback fallback) {
+			this.guards = guards;
+			this.fallback = fallback;
 		}
-		return guards;
 	}
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.interceptor;
+
+import static org.springframework.util.Assert.notEmpty;
+import static org.springframework.util.Assert.notNull;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * <p>
+ * A fallback method, invoked on the target in place of a guarded method whose call failed.
+ * </p>
+ * <p>
+ * The fallback method is looked up and converted into a {@link MethodHandle} once, when the fallback is created. The
+ * handle is adapted up front to a single shape taking the target, the failure and the argument array, so invoking the
+ * fallback involves no reflective lookup, access check or argument copying, even though fallbacks run on the degraded
+ * path where most of the traffic is during an incident.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public final class Fallback {
+	private static final MethodType INVOKER_TYPE =
+		MethodType.methodType(Object.class, Object.class, Throwable.class, Object[].class);
+	
+	private final Method method;
+	private final Class<? extends Throwable>[] triggers;
+	private final Class<?> failureType;
+	private final MethodHandle invoker;
+	
+	/**
+	 * @param method
+	 *            fallback method. Its parameters are either those of the guarded method, or those followed by a single
+	 *            exception parameter receiving the failure.
+	 * @param argumentCount
+	 *            number of parameters of the guarded method
+	 * @param triggers
+	 *            exception types that trigger the fallback
+	 */
+	public Fallback(Method method, int argumentCount, Class<? extends Throwable>[] triggers) {
+		notNull(method, "method can't be null");
+		notEmpty(triggers, "triggers can't be empty");
+		Class<?>[] paramTypes = method.getParameterTypes();
+		if (Modifier.isStatic(method.getModifiers())) {
+			throw new IllegalArgumentException("Fallback " + method + " can't be static");
+		}
+		if (paramTypes.length != argumentCount && paramTypes.length != argumentCount + 1) {
+			throw new IllegalArgumentException("Fallback " + method + " must take " + argumentCount + " argument(s)");
+		}
+		
+		this.method = method;
+		this.triggers = triggers.clone();
+		this.failureType = (paramTypes.length > argumentCount ? paramTypes[argumentCount] : null);
+		if (failureType != null && !Throwable.class.isAssignableFrom(failureType)) {
+			throw new IllegalArgumentException("Last parameter of fallback " + method + " must be an exception");
+		}
+		this.invoker = createInvoker(method, argumentCount, failureType != null);
+	}
+	
+	/**
+	 * Finds the fallback method with the given name on a class or its superclasses. A fallback taking the failure as
+	 * its last parameter is preferred over one taking only the guarded method's parameters.
+	 * 
+	 * @param clazz
+	 *            class declaring the fallback
+	 * @param name
+	 *            fallback method name
+	 * @param guardedMethod
+	 *            guarded method
+	 * @param triggers
+	 *            exception types that trigger the fallback
+	 * @return fallback
+	 * @throws IllegalStateException
+	 *             if there's no suitable fallback method
+	 */
+	public static Fallback forMethod(
+			Class<?> clazz, String name, Method guardedMethod, Class<? extends Throwable>[] triggers) {
+		
+		Class<?>[] paramTypes = guardedMethod.getParameterTypes();
+		Method plain = null;
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Method candidate : c.getDeclaredMethods()) {
+				if (!candidate.getName().equals(name) || Modifier.isStatic(candidate.getModifiers())
+						|| !returnsCompatible(candidate, guardedMethod)) {
+					continue;
+				}
+				Class<?>[] candidateTypes = candidate.getParameterTypes();
+				if (candidateTypes.length == paramTypes.length + 1
+						&& Arrays.equals(Arrays.copyOf(candidateTypes, paramTypes.length), paramTypes)
+						&& Throwable.class.isAssignableFrom(candidateTypes[paramTypes.length])) {
+					return new Fallback(candidate, paramTypes.length, triggers);
+				}
+				if (plain == null && Arrays.equals(candidateTypes, paramTypes)) { plain = candidate; }
+			}
+		}
+		if (plain == null) {
+			throw new IllegalStateException("No fallback method " + clazz.getName() + "." + name +
+				" matching " + guardedMethod);
+		}
+		return new Fallback(plain, paramTypes.length, triggers);
+	}
+	
+	private static boolean returnsCompatible(Method fallback, Method guardedMethod) {
+		Class<?> returnType = guardedMethod.getReturnType();
+		return returnType == void.class || ClassUtils.isAssignable(returnType, fallback.getReturnType());
+	}
+	
+	private static MethodHandle createInvoker(Method method, int argumentCount, boolean takesFailure) {
+		ReflectionUtils.makeAccessible(method);
+		MethodHandle handle;
+		try {
+			handle = MethodHandles.lookup().unreflect(method);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Can't access fallback " + method, e);
+		}
+		
+		// Move the failure to just after the target, or add an ignored failure parameter there, so the guarded
+		// method's arguments come last and can be spread from the argument array.
+		Class<?> targetType = handle.type().parameterType(0);
+		Class<?>[] paramTypes = method.getParameterTypes();
+		if (takesFailure) {
+			MethodType permutedType = MethodType.methodType(handle.type().returnType(), targetType)
+				.appendParameterTypes(paramTypes[argumentCount])
+				.appendParameterTypes(Arrays.copyOf(paramTypes, argumentCount));
+			int[] reorder = new int[argumentCount + 2];
+			for (int i = 1; i <= argumentCount; i++) { reorder[i] = i + 1; }
+			reorder[argumentCount + 1] = 1;
+			handle = MethodHandles.permuteArguments(handle, permutedType, reorder);
+		} else {
+			handle = MethodHandles.dropArguments(handle, 1, Throwable.class);
+		}
+		return handle.asSpreader(Object[].class, argumentCount).asType(INVOKER_TYPE);
+	}
+	
+	public Method getMethod() { return method; }
+	
+	/**
+	 * Indicates whether the given failure triggers this fallback.
+	 * 
+	 * @param failure
+	 *            failure of the guarded call
+	 * @return whether to invoke the fallback
+	 */
+	public boolean handles(Throwable failure) {
+		if (failureType != null && !failureType.isInstance(failure)) { return false; }
+		for (Class<? extends Throwable> trigger : triggers) {
+			if (trigger.isInstance(failure)) { return true; }
+		}
+		return false;
+	}
+	
+	/**
+	 * Invokes the fallback.
+	 * 
+	 * @param target
+	 *            target object
+	 * @param arguments
+	 *            arguments of the guarded call
+	 * @param failure
+	 *            failure of the guarded call
+	 * @return fallback result, or <code>null</code> if the fallback is <code>void</code>
+	 * @throws Throwable
+	 *             exception thrown by the fallback
+	 */
+	public Object invoke(Object target, Object[] arguments, Throwable failure) throws Throwable {
+		return (Object) invoker.invokeExact(target, failure, arguments);
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() { return "Fallback[" + method + "]"; }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.interceptor;
+
+import java.lang.reflect.Method;
+
+/**
+ * Strategy interface to return the fallback associated with a given joinpoint. A {@link GuardListSource} may
+ * implement this as well, in which case the {@link GuardListInterceptor} invokes the fallback when the guarded call
+ * fails.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public interface FallbackSource {
+	
+	/**
+	 * Return the fallback for a method, or <code>null</code> if the method has none.
+	 * 
+	 * @param method
+	 *            method
+	 * @param targetClass
+	 *            target class. May be <code>null</code>, in which case the declaring class of the method must be used.
+	 * @return the matching fallback, or <code>null</code> if none found
+	 */
+	Fallback getFallback(Method method, Class<?> targetClass);
+}
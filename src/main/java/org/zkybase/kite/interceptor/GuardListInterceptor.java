@@ -16,136 +16,326 @@
 package org.zkybase.kite.interceptor;
 
 import java.lang.reflect.Method;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
 
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.zkybase.kite.AsyncGuard;
+import org.zkybase.kite.ForkableGuardCallback;
 import org.zkybase.kite.Guard;
 import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.GuardLease;
+import org.zkybase.kite.InvocationGuardCallback;
+import org.zkybase.kite.LeasableGuard;
 
 /**
+ * <p>
+ * Interceptor that applies a list of guards, obtained from a {@link GuardListSource}, to a method invocation.
+ * </p>
+ * <p>
+ * The guard list for each method/target class pair is compiled once into an immutable pipeline and cached, so the
+ * per-call work is a cache lookup plus a single chain object that walks the pipeline, regardless of how many guards
+ * are stacked on the method. The cache is cleared when the application context is refreshed; call {@link #clearCache()}
+ * if the underlying source changes its guard lists at any other time.
+ * </p>
+ * <p>
+ * If the source is also a {@link FallbackSource}, the method's {@link Fallback} is compiled into the pipeline as well,
+ * and is invoked on the target in place of the method when the guarded call fails with an exception the fallback
+ * handles, whether a guard rejected the call or the method itself failed.
+ * </p>
+ * <p>
+ * Methods declared to return {@link CompletionStage} or {@link CompletableFuture} are guarded asynchronously: guards
+ * implementing {@link AsyncGuard} hold their permits and record outcomes until the returned stage completes. Guard
+ * rejections are then reported through a failed stage instead of being thrown, and the fallback applies to the stage's
+ * failure and must itself return a stage.
+ * </p>
+ * <p>
+ * Methods returning streams, readers, writers or interfaces extending {@link AutoCloseable} keep the permits of guards
+ * implementing {@link LeasableGuard} until the caller closes the returned value, so that work done while reading it
+ * still counts against the guards. The value is wrapped so that closing it closes the leases.
+ * </p>
+ * 
  * @author Willie Wheeler (willie.wheeler@gmail.com)
  * @since 1.0
  */
-public class GuardListInterceptor implements MethodInterceptor {
+public class GuardListInterceptor implements MethodInterceptor, ApplicationListener<ContextRefreshedEvent> {
 	private static final Logger log = LoggerFactory.getLogger(GuardListInterceptor.class);
+	private static final Guard[] NO_GUARDS = new Guard[0];
 	
 	private GuardListSource source;
+	private final ConcurrentMap<MethodCacheKey, Pipeline> pipelineCache =
+		new ConcurrentHashMap<MethodCacheKey, Pipeline>();
 	
 	public GuardListSource getSource() { return source; }
 	
-	public void setSource(GuardListSource source) { this.source = source; }
+	public void setSource(GuardListSource source) {
+		this.source = source;
+		clearCache();
+	}
+	
+	/**
+	 * Discards the compiled guard pipelines, forcing the guard lists to be fetched from the source again.
+	 */
+	public void clearCache() { pipelineCache.clear(); }
+	
+	/* (non-Javadoc)
+	 * @see org.springframework.context.ApplicationListener#onApplicationEvent
+	 * (org.springframework.context.ApplicationEvent)
+	 */
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) { clearCache(); }
 
 	/* (non-Javadoc)
 	 * @see org.aopalliance.intercept.MethodInterceptor#invoke(org.aopalliance.intercept.MethodInvocation)
 	 */
 	@Override
 	public Object invoke(final MethodInvocation invocation) throws Throwable {
-		List<Guard> guards = getGuards(invocation);
+		Pipeline pipeline = getPipeline(invocation);
+		if (pipeline.async) { return invokeAsync(pipeline, invocation); }
 		
-		if (guards == null || guards.isEmpty()) {
-			log.debug("Executing method {} without guards", invocation.getMethod().getName());
-			return invocation.proceed();
+		Fallback fallback = pipeline.fallback;
+		if (fallback == null) { return proceed(pipeline, invocation); }
+		
+		try {
+			return proceed(pipeline, invocation);
+		} catch (Throwable t) {
+			if (!fallback.handles(t)) { throw t; }
+			log.debug("Invoking fallback for method {}: {}", invocation.getMethod().getName(), t.toString());
+			return fallback.invoke(invocation.getThis(), invocation.getArguments(), t);
 		}
+	}
+	
+	// Exceptions thrown before the target returns a stage, including guard rejections, are reported through the stage,
+	// and the fallback applies to failures of the stage.
+	@SuppressWarnings("unchecked")
+	private Object invokeAsync(Pipeline pipeline, MethodInvocation invocation) throws Throwable {
+		if (pipeline.guards.length == 0 && pipeline.fallback == null) { return invocation.proceed(); }
 		
-		// Build a chain of custom interceptors (one per guard), terminating with the invocation.
-		LinkedList<Guard> guardStack = new LinkedList<Guard>(guards);
-		Collections.reverse(guardStack);
+		CompletionStage<Object> stage;
+		try {
+			stage = (CompletionStage<Object>) proceed(pipeline, invocation);
+		} catch (Exception e) {
+			CompletableFuture<Object> failed = new CompletableFuture<Object>();
+			failed.completeExceptionally(e);
+			stage = failed;
+		}
 		
-		Guard lastGuard = guardStack.pop();
-		Interceptor interceptor = new LastInterceptor(lastGuard, invocation);
+		final Fallback fallback = pipeline.fallback;
+		if (fallback == null || stage == null) { return stage; }
 		
-		while (!guardStack.isEmpty()) {
-			Guard guard = guardStack.pop();
-			interceptor = new NotLastInterceptor(guard, interceptor);
+		final String methodName = invocation.getMethod().getName();
+		final Object target = invocation.getThis();
+		final Object[] arguments = invocation.getArguments();
+		final CompletableFuture<Object> result = new CompletableFuture<Object>();
+		stage.whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(Object value, Throwable failure) {
+				if (failure == null) {
+					result.complete(value);
+					return;
+				}
+				Throwable cause = unwrap(failure);
+				if (!fallback.handles(cause)) {
+					result.completeExceptionally(cause);
+					return;
+				}
+				log.debug("Invoking fallback for method {}: {}", methodName, cause.toString());
+				try {
+					CompletionStage<Object> fallbackStage =
+						(CompletionStage<Object>) fallback.invoke(target, arguments, cause);
+					if (fallbackStage == null) {
+						result.complete(null);
+						return;
+					}
+					fallbackStage.whenComplete(new Completer(result));
+				} catch (Throwable t) {
+					result.completeExceptionally(t);
+				}
+			}
+		});
+		return result;
+	}
+	
+	private static Throwable unwrap(Throwable failure) {
+		return (failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+	}
+	
+	private Object proceed(Pipeline pipeline, MethodInvocation invocation) throws Throwable {
+		Guard[] guards = pipeline.guards;
+		if (guards.length == 0) {
+			log.debug("Executing method {} without guards", invocation.getMethod().getName());
+			return invocation.proceed();
 		}
-		
-		return interceptor.invoke();
+		return new GuardChain(pipeline, invocation).proceed();
 	}
 	
-	private List<Guard> getGuards(MethodInvocation invocation) {
+	private Pipeline getPipeline(MethodInvocation invocation) {
 		Method method = invocation.getMethod();
 		
 		// thisObj can be null if the invocation's static part (i.e. static joinpoint) is static (i.e. class-scoped)
 		Object thisObj = invocation.getThis();
 		Class<?> clazz = (thisObj != null ? thisObj.getClass() : null);
 		
-		return source.getGuards(method, clazz);
+		MethodCacheKey key = new MethodCacheKey(method, clazz);
+		Pipeline pipeline = pipelineCache.get(key);
+		if (pipeline == null) {
+			pipeline = compilePipeline(method, clazz);
+			Pipeline existing = pipelineCache.putIfAbsent(key, pipeline);
+			if (existing != null) { pipeline = existing; }
+			log.debug("Compiled guard pipeline for {}: {} guard(s)", key, pipeline.guards.length);
+		}
+		return pipeline;
 	}
 	
-	private static interface Interceptor {
-		
-		Object invoke() throws Throwable;
+	private Pipeline compilePipeline(Method method, Class<?> clazz) {
+		List<Guard> guardList = source.getGuards(method, clazz);
+		Guard[] guards = (guardList == null || guardList.isEmpty() ?
+			NO_GUARDS : guardList.toArray(new Guard[guardList.size()]));
+		Fallback fallback = (source instanceof FallbackSource ?
+			((FallbackSource) source).getFallback(method, clazz) : null);
+		Class<?> returnType = method.getReturnType();
+		boolean async = (returnType == CompletionStage.class || returnType == CompletableFuture.class);
+		Class<?> leaseType = (LeasedResults.isLeasable(returnType) ? returnType : null);
+		return new Pipeline(guards, fallback, async, leaseType);
 	}
 	
-	private static class NotLastInterceptor implements Interceptor {
-		private Guard guard;
-		private Interceptor interceptor;
+	/**
+	 * Compiled guards and fallback for a single method/target class pair.
+	 */
+	private static final class Pipeline {
+		private final Guard[] guards;
+		private final Fallback fallback;
+		private final boolean async;
+		private final Class<?> leaseType;
 		
-		public NotLastInterceptor(Guard guard, Interceptor interceptor) {
-			this.guard = guard;
-			this.interceptor = interceptor;
+		public Pipeline(Guard[] guards, Fallback fallback, boolean async, Class<?> leaseType) {
+			this.guards = guards;
+			this.fallback = fallback;
+			this.async = async;
+			this.leaseType = leaseType;
 		}
+	}
+	
+	/**
+	 * Completes a future with the outcome of another stage.
+	 */
+	private static final class Completer implements BiConsumer<Object, Throwable> {
+		private final CompletableFuture<Object> future;
+		
+		public Completer(CompletableFuture<Object> future) { this.future = future; }
 		
 		@Override
-		public Object invoke() throws Throwable {
-			return guard.execute(new GuardCallback<Object>() {
-				
-				@Override
-				public Object doInGuard() throws Exception {
-					try {
-						log.debug("Entered guard: {}", guard.getName());
-						return interceptor.invoke();
-					} catch (Exception e) {
-						throw e;
-					} catch (Error e) {
-						throw e;
-					} catch (Throwable t) {
-						// This shouldn't happen since all Throwables are Exceptions or Errors, but being paranoid
-						throw new RuntimeException(t);
-					} finally {
-						log.debug("Exiting guard: {}", guard.getName());
-					}
-				}
-			});
+		public void accept(Object value, Throwable failure) {
+			if (failure == null) {
+				future.complete(value);
+			} else {
+				future.completeExceptionally(unwrap(failure));
+			}
 		}
 	}
 	
-	private static class LastInterceptor implements Interceptor {
-		private Guard guard;
-		private MethodInvocation invocation;
+	/**
+	 * Per-call cursor over a compiled pipeline. The same instance serves as the callback for every guard in the
+	 * pipeline: each call to {@link #doInGuard()} advances to the next guard (or to the target method after the last
+	 * guard) and restores its position on the way out, so a guard may safely invoke the callback more than once.
+	 * It also exposes the invocation so guards can key their state by method arguments. Guards that continue the chain
+	 * on another thread work on a {@link #fork() fork}, which has its own cursor and its own copy of the invocation.
+	 */
+	private static final class GuardChain implements InvocationGuardCallback<Object>, ForkableGuardCallback<Object> {
+		private final Pipeline pipeline;
+		private final Guard[] guards;
+		private final MethodInvocation invocation;
+		private int position;
 		
-		public LastInterceptor(Guard guard, MethodInvocation invocation) {
-			this.guard = guard;
+		public GuardChain(Pipeline pipeline, MethodInvocation invocation) {
+			this(pipeline, invocation, 0);
+		}
+		
+		private GuardChain(Pipeline pipeline, MethodInvocation invocation, int position) {
+			this.pipeline = pipeline;
+			this.guards = pipeline.guards;
 			this.invocation = invocation;
+			this.position = position;
 		}
 		
+		public Object proceed() throws Exception { return advance(0); }
+		
 		@Override
-		public Object invoke() throws Throwable {
-			return guard.execute(new GuardCallback<Object>() {
-
-				@Override
-				public Object doInGuard() throws Exception {
-					try {
-						log.debug("Entered guard: {}", guard.getName());
-						log.debug("Executing target method: {}", invocation.getMethod().getName());
-						return invocation.proceed();
-					} catch (Exception e) {
-						throw e;
-					} catch (Error e) {
-						throw e;
-					} catch (Throwable t) {
-						// This shouldn't happen since all Throwables are Exceptions or Errors, but being paranoid
-						throw new RuntimeException(t);
-					} finally {
-						log.debug("Exiting guard: {}", guard.getName());
-					}
-				}
-			});
+		public GuardCallback<Object> fork() {
+			MethodInvocation forkedInvocation = (invocation instanceof ProxyMethodInvocation ?
+				((ProxyMethodInvocation) invocation).invocableClone() : invocation);
+			return new GuardChain(pipeline, forkedInvocation, position);
+		}
+		
+		@Override
+		public Method getMethod() { return invocation.getMethod(); }
+		
+		@Override
+		public Object[] getArguments() { return invocation.getArguments(); }
+		
+		@Override
+		public Object getTarget() { return invocation.getThis(); }
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private Object advance(int index) throws Exception {
+			this.position = index + 1;
+			Guard guard = guards[index];
+			if (pipeline.async && guard instanceof AsyncGuard) {
+				return ((AsyncGuard) guard).executeAsync((GuardCallback) this);
+			}
+			if (pipeline.leaseType != null && guard instanceof LeasableGuard) {
+				return executeLeased((LeasableGuard) guard);
+			}
+			return guard.execute(this);
+		}
+		
+		// Holds the guard's permit until the caller closes the returned value, rather than until the method returns.
+		private Object executeLeased(LeasableGuard guard) throws Exception {
+			GuardLease lease = guard.acquire(this);
+			Object result;
+			try {
+				result = doInGuard();
+			} catch (Exception e) {
+				lease.recordFailure(e);
+				lease.close();
+				throw e;
+			} catch (Error e) {
+				lease.close();
+				throw e;
+			}
+			return LeasedResults.attach(result, pipeline.leaseType, lease);
+		}
+		
+		@Override
+		public Object doInGuard() throws Exception {
+			final int current = position;
+			final Guard guard = guards[current - 1];
+			try {
+				log.debug("Entered guard: {}", guard.getName());
+				if (current < guards.length) { return advance(current); }
+				log.debug("Executing target method: {}", invocation.getMethod().getName());
+				return invocation.proceed();
+			} catch (Exception e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				// This shouldn't happen since all Throwables are Exceptions or Errors, but being paranoid
+				throw new RuntimeException(t);
+			} finally {
+				this.position = current;
+				log.debug("Exiting guard: {}", guard.getName());
+			}
 		}
 	}
 }
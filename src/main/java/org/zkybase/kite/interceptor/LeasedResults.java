@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.interceptor;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.FilterReader;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.stream.BaseStream;
+
+import org.zkybase.kite.GuardLease;
+
+/**
+ * Ties guard leases to the closeable values returned by guarded methods, so that the lease is closed along with the
+ * value. Which values can carry a lease depends on the method's declared return type, since the value handed back
+ * must still be assignable to it.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+final class LeasedResults {
+	
+	private LeasedResults() { }
+	
+	/**
+	 * Indicates whether values of the given declared type can carry a lease: streams, the four I/O base classes, and
+	 * interfaces extending {@link AutoCloseable}.
+	 * 
+	 * @param type declared return type
+	 * @return whether {@link #attach(Object, Class, GuardLease)} can tie a lease to values of the type
+	 */
+	static boolean isLeasable(Class<?> type) {
+		return BaseStream.class.isAssignableFrom(type)
+			|| type == InputStream.class || type == OutputStream.class || type == Reader.class || type == Writer.class
+			|| (type.isInterface() && AutoCloseable.class.isAssignableFrom(type));
+	}
+	
+	/**
+	 * Returns the value with the lease tied to it, or closes the lease right away if there's no value.
+	 * 
+	 * @param value value returned by the guarded method
+	 * @param type declared return type, for which {@link #isLeasable(Class)} holds
+	 * @param lease lease to close when the value is closed
+	 * @return value to hand back to the caller in place of the original
+	 */
+	static Object attach(Object value, Class<?> type, final GuardLease lease) {
+		if (value == null) {
+			lease.close();
+			return null;
+		}
+		if (value instanceof BaseStream) {
+			return ((BaseStream<?, ?>) value).onClose(new Runnable() {
+				public void run() { lease.close(); }
+			});
+		}
+		if (type == InputStream.class) { return new LeasedInputStream((InputStream) value, lease); }
+		if (type == OutputStream.class) { return new LeasedOutputStream((OutputStream) value, lease); }
+		if (type == Reader.class) { return new LeasedReader((Reader) value, lease); }
+		if (type == Writer.class) { return new LeasedWriter((Writer) value, lease); }
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new LeasedHandler(value, lease));
+	}
+	
+	private static final class LeasedHandler implements InvocationHandler {
+		private final Object target;
+		private final GuardLease lease;
+		
+		public LeasedHandler(Object target, GuardLease lease) {
+			this.target = target;
+			this.lease = lease;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			boolean close = "close".equals(method.getName()) && method.getParameterTypes().length == 0;
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			} finally {
+				if (close) { lease.close(); }
+			}
+		}
+	}
+	
+	private static final class LeasedInputStream extends FilterInputStream {
+		private final GuardLease lease;
+		
+		public LeasedInputStream(InputStream in, GuardLease lease) {
+			super(in);
+			this.lease = lease;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				lease.close();
+			}
+		}
+	}
+	
+	private static final class LeasedOutputStream extends FilterOutputStream {
+		private final GuardLease lease;
+		
+		public LeasedOutputStream(OutputStream out, GuardLease lease) {
+			super(out);
+			this.lease = lease;
+		}
+		
+		// FilterOutputStream writes arrays a byte at a time.
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				lease.close();
+			}
+		}
+	}
+	
+	private static final class LeasedReader extends FilterReader {
+		private final GuardLease lease;
+		
+		public LeasedReader(Reader in, GuardLease lease) {
+			super(in);
+			this.lease = lease;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				lease.close();
+			}
+		}
+	}
+	
+	private static final class LeasedWriter extends FilterWriter {
+		private final GuardLease lease;
+		
+		public LeasedWriter(Writer out, GuardLease lease) {
+			super(out);
+			this.lease = lease;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				lease.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.interceptor;
+
+import java.lang.reflect.Method;
+
+/**
+ * Cache key for per-joinpoint lookups, combining a method with the target class it's invoked on. The target class may
+ * be <code>null</code>.
+ *
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+final class MethodCacheKey {
+	private final Method method;
+	private final Class<?> targetClass;
+
+	public MethodCacheKey(Method method, Class<?> targetClass) {
+		this.method = method;
+		this.targetClass = targetClass;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) { return true; }
+		if (!(other instanceof MethodCacheKey)) { return false; }
+		MethodCacheKey otherKey = (MethodCacheKey) other;
+		return method.equals(otherKey.method) && targetClass == otherKey.targetClass;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return method.hashCode() * 31 + (targetClass != null ? targetClass.hashCode() : 0);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return (targetClass != null ? targetClass.getName() : "<none>") + "." + method.getName();
+	}
+}
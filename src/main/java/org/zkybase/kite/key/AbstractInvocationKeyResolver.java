@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.key;
+
+import java.lang.reflect.Method;
+
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.InvocationGuardCallback;
+
+/**
+ * Base class for key resolvers that derive the key from the method invocation. Requires the callback to be an
+ * {@link InvocationGuardCallback}, as it is when the guard is applied through the guard list interceptor.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public abstract class AbstractInvocationKeyResolver implements KeyResolver {
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.key.KeyResolver#resolveKey(org.zkybase.kite.GuardCallback)
+	 */
+	@Override
+	public final Object resolveKey(GuardCallback<?> action) {
+		if (!(action instanceof InvocationGuardCallback)) {
+			throw new IllegalStateException(getClass().getSimpleName() + " requires an InvocationGuardCallback, got " +
+				action.getClass().getName());
+		}
+		InvocationGuardCallback<?> invocation = (InvocationGuardCallback<?>) action;
+		return resolveKey(invocation.getMethod(), invocation.getArguments(), invocation.getTarget());
+	}
+	
+	/**
+	 * @param method invoked method
+	 * @param args invocation arguments
+	 * @param target target object, or null for static invocations
+	 * @return key, or null if none applies
+	 */
+	protected abstract Object resolveKey(Method method, Object[] args, Object target);
+}
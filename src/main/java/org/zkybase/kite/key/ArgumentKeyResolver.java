@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.key;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * <p>
+ * Resolves the key to a method argument, or to a property of a method argument. For example, an index of 0 with
+ * property <code>tenantId</code> resolves <code>save(Order order)</code> to <code>order.getTenantId()</code>.
+ * </p>
+ * <p>
+ * Property getters are looked up once per argument class and cached. For nested properties or anything more involved,
+ * use an {@link ExpressionKeyResolver}.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class ArgumentKeyResolver extends AbstractInvocationKeyResolver {
+	private final int index;
+	private final String property;
+	private final ConcurrentMap<Class<?>, Method> getterCache = new ConcurrentHashMap<Class<?>, Method>();
+	
+	/**
+	 * @param index zero-based argument index
+	 */
+	public ArgumentKeyResolver(int index) { this(index, null); }
+	
+	/**
+	 * @param index zero-based argument index
+	 * @param property property of the argument to use as the key, or null to use the argument itself
+	 */
+	public ArgumentKeyResolver(int index, String property) {
+		Assert.isTrue(index >= 0, "index must be >= 0");
+		this.index = index;
+		this.property = property;
+	}
+	
+	public int getIndex() { return index; }
+	
+	public String getProperty() { return property; }
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.key.AbstractInvocationKeyResolver#resolveKey(java.lang.reflect.Method, java.lang.Object[],
+	 * java.lang.Object)
+	 */
+	@Override
+	protected Object resolveKey(Method method, Object[] args, Object target) {
+		if (index >= args.length) {
+			throw new IllegalStateException(
+				"Method " + method.getName() + " has no argument at index " + index);
+		}
+		Object arg = args[index];
+		if (property == null || arg == null) { return arg; }
+		return ReflectionUtils.invokeMethod(getGetter(arg.getClass()), arg);
+	}
+	
+	private Method getGetter(Class<?> clazz) {
+		Method getter = getterCache.get(clazz);
+		if (getter == null) {
+			PropertyDescriptor descriptor = BeanUtils.getPropertyDescriptor(clazz, property);
+			if (descriptor == null || descriptor.getReadMethod() == null) {
+				throw new IllegalStateException("No readable property " + property + " on " + clazz.getName());
+			}
+			getter = descriptor.getReadMethod();
+			ReflectionUtils.makeAccessible(getter);
+			getterCache.putIfAbsent(clazz, getter);
+		}
+		return getter;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.key;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.core.LocalVariableTableParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.util.Assert;
+
+/**
+ * <p>
+ * Resolves the key by evaluating a SpEL expression against the method invocation. The evaluation root exposes
+ * <code>method</code>, <code>args</code> and <code>target</code>; arguments are also available as variables, both
+ * positionally (<code>#p0</code>, <code>#a0</code>) and by parameter name (<code>#order</code>) when the class was
+ * compiled with debug information. For example: <code>#request.headers['X-Api-Key']</code>.
+ * </p>
+ * <p>
+ * The expression is parsed once, when the resolver is created, and the variable names for each method's arguments are
+ * worked out once per method and cached, so each call only pays for evaluating the parsed expression.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class ExpressionKeyResolver extends AbstractInvocationKeyResolver {
+	private final String expressionString;
+	private final Expression expression;
+	private final ParameterNameDiscoverer nameDiscoverer = new LocalVariableTableParameterNameDiscoverer();
+	private final ConcurrentMap<Method, String[][]> variableNameCache =
+		new ConcurrentHashMap<Method, String[][]>();
+	
+	/**
+	 * @param expression SpEL expression yielding the key
+	 * @throws org.springframework.expression.ParseException if the expression is malformed
+	 */
+	public ExpressionKeyResolver(String expression) {
+		Assert.hasText(expression, "expression can't be empty");
+		this.expressionString = expression;
+		this.expression = new SpelExpressionParser().parseExpression(expression);
+	}
+	
+	public String getExpression() { return expressionString; }
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.key.AbstractInvocationKeyResolver#resolveKey(java.lang.reflect.Method, java.lang.Object[],
+	 * java.lang.Object)
+	 */
+	@Override
+	protected Object resolveKey(Method method, Object[] args, Object target) {
+		StandardEvaluationContext context = new StandardEvaluationContext(new ExpressionRoot(method, args, target));
+		String[][] variableNames = getVariableNames(method);
+		for (int i = 0; i < args.length && i < variableNames.length; i++) {
+			for (String name : variableNames[i]) {
+				context.setVariable(name, args[i]);
+			}
+		}
+		return expression.getValue(context);
+	}
+	
+	// Variable names for each argument: p<i>, a<i> and the parameter name, if known.
+	private String[][] getVariableNames(Method method) {
+		String[][] variableNames = variableNameCache.get(method);
+		if (variableNames == null) {
+			String[] parameterNames = nameDiscoverer.getParameterNames(method);
+			int count = method.getParameterTypes().length;
+			variableNames = new String[count][];
+			for (int i = 0; i < count; i++) {
+				variableNames[i] = (parameterNames != null ?
+					new String[] { "p" + i, "a" + i, parameterNames[i] } :
+					new String[] { "p" + i, "a" + i });
+			}
+			variableNameCache.putIfAbsent(method, variableNames);
+		}
+		return variableNames;
+	}
+	
+	/**
+	 * Root object for key expressions.
+	 */
+	public static final class ExpressionRoot {
+		private final Method method;
+		private final Object[] args;
+		private final Object target;
+		
+		ExpressionRoot(Method method, Object[] args, Object target) {
+			this.method = method;
+			this.args = args;
+			this.target = target;
+		}
+		
+		public Method getMethod() { return method; }
+		
+		public Object[] getArgs() { return args; }
+		
+		public Object getTarget() { return target; }
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.key;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Resolves the key to the whole invocation: the method, the target object and the arguments. Two invocations have equal
+ * keys if they call the same method on the same target with equal arguments (compared deeply, so array arguments work).
+ * </p>
+ * <p>
+ * Arguments are compared with <code>equals()</code>, so they should have value semantics.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class InvocationKeyResolver extends AbstractInvocationKeyResolver {
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.key.AbstractInvocationKeyResolver#resolveKey(java.lang.reflect.Method, java.lang.Object[],
+	 * java.lang.Object)
+	 */
+	@Override
+	protected Object resolveKey(Method method, Object[] args, Object target) {
+		return new InvocationKey(method, target, args.clone());
+	}
+	
+	private static final class InvocationKey {
+		private final Method method;
+		private final Object target;
+		private final Object[] args;
+		private final int hashCode;
+		
+		public InvocationKey(Method method, Object target, Object[] args) {
+			this.method = method;
+			this.target = target;
+			this.args = args;
+			this.hashCode = (method.hashCode() * 31 + System.identityHashCode(target)) * 31 + Arrays.deepHashCode(args);
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) { return true; }
+			if (!(other instanceof InvocationKey)) { return false; }
+			InvocationKey otherKey = (InvocationKey) other;
+			return hashCode == otherKey.hashCode && method.equals(otherKey.method) && target == otherKey.target &&
+				Arrays.deepEquals(args, otherKey.args);
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() { return hashCode; }
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() { return method.getName() + Arrays.deepToString(args); }
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.key;
+
+import org.zkybase.kite.GuardCallback;
+
+/**
+ * Strategy interface for deriving the key a guard uses to partition its state, for instance the principal, API key,
+ * tenant or client address a rate limit applies to.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public interface KeyResolver {
+	
+	/**
+	 * @param action callback the guard is about to execute. Callbacks from the guard list interceptor implement
+	 * {@link org.zkybase.kite.InvocationGuardCallback}, giving access to the method and its arguments.
+	 * @return key, or null if none applies
+	 * @throws org.zkybase.kite.exception.GuardException if the request must be rejected for lack of a key
+	 */
+	Object resolveKey(GuardCallback<?> action);
+}
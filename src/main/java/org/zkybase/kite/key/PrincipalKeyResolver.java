@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.key;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.UnauthenticatedException;
+
+/**
+ * <p>
+ * Resolves the key to the Spring Security principal.
+ * </p>
+ * <p>
+ * By default anonymous requests are rejected with an {@link UnauthenticatedException}. Set an anonymous key to have
+ * all anonymous requests share that key instead.
+ * </p>
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class PrincipalKeyResolver implements KeyResolver {
+	private static Logger log = LoggerFactory.getLogger(PrincipalKeyResolver.class);
+	
+	private Object anonymousKey;
+	
+	public Object getAnonymousKey() { return anonymousKey; }
+	
+	/**
+	 * @param anonymousKey key shared by all anonymous requests, or null to reject them
+	 */
+	public void setAnonymousKey(Object anonymousKey) { this.anonymousKey = anonymousKey; }
+	
+	/* (non-Javadoc)
+	 * @see org.zkybase.kite.key.KeyResolver#resolveKey(org.zkybase.kite.GuardCallback)
+	 */
+	@Override
+	public Object resolveKey(GuardCallback<?> action) {
+		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+		
+		// FIXME There's probably a better way to detect anonymous auth.
+		if (auth == null || auth instanceof AnonymousAuthenticationToken) {
+			if (anonymousKey != null) { return anonymousKey; }
+			log.debug("Authentication required");
+			throw new UnauthenticatedException();
+		}
+		
+		return auth.getPrincipal();
+	}
+}
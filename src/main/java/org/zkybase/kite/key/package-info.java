@@ -0,0 +1,4 @@
+/**
+ * Strategies for deriving the key a guard partitions its state by.
+ */
+package org.zkybase.kite.key;
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.exception.CircuitOpenException;
+import org.zkybase.kite.guard.CircuitBreakerTemplate;
+import org.zkybase.kite.guard.ConcurrencyThrottleTemplate;
+import org.zkybase.kite.guard.RateLimitingThrottleTemplate;
+import org.zkybase.kite.key.KeyResolver;
+
+/**
+ * Test case for {@link GuardLeases}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class GuardLeasesTestCase {
+	private ConcurrencyThrottleTemplate throttle;
+	private RateLimitingThrottleTemplate rateLimiter;
+	private CircuitBreakerTemplate breaker;
+	private List<LeasableGuard> guards;
+	
+	@Before
+	public void setUp() {
+		this.throttle = new ConcurrencyThrottleTemplate(5);
+		this.rateLimiter = new RateLimitingThrottleTemplate(3);
+		rateLimiter.setKeyResolver(new KeyResolver() {
+			public Object resolveKey(GuardCallback<?> action) { return "batch"; }
+		});
+		this.breaker = new CircuitBreakerTemplate();
+		
+		this.guards = new ArrayList<LeasableGuard>();
+		guards.add(throttle);
+		guards.add(rateLimiter);
+		guards.add(breaker);
+	}
+	
+	@Test
+	public void testLeaseHoldsWhatEveryGuardAdmits() throws Exception {
+		GuardLease lease = GuardLeases.acquireAll(guards, 10, null);
+		assertThat(lease.getPermits(), is(3));
+		assertThat(throttle.getInFlight(), is(3));
+		
+		lease.release(1);
+		assertThat(lease.getPermits(), is(2));
+		assertThat(throttle.getInFlight(), is(2));
+		
+		lease.close();
+		assertThat(throttle.getInFlight(), is(0));
+	}
+	
+	@Test
+	public void testRejectionReturnsEarlierPermits() throws Exception {
+		breaker.trip();
+		try {
+			GuardLeases.acquireAll(guards, 2, null);
+			fail("Expected CircuitOpenException");
+		} catch (CircuitOpenException e) {
+			// Expected
+		}
+		assertThat(throttle.getInFlight(), is(0));
+		assertThat(GuardLeases.acquireAll(guards.subList(0, 2), 10, null).getPermits(), is(3));
+	}
+}
@@ -17,12 +17,21 @@ package org.zkybase.kite;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
 
 import org.aopalliance.intercept.MethodInvocation;
 import org.junit.After;
@@ -31,7 +40,15 @@ import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.BeanFactory;
+import org.zkybase.kite.exception.CircuitOpenException;
+import org.zkybase.kite.exception.ConcurrencyLimitExceededException;
+import org.zkybase.kite.exception.GuardTimeoutException;
+import org.zkybase.kite.guard.BulkheadTemplate;
 import org.zkybase.kite.guard.CircuitBreakerTemplate;
+import org.zkybase.kite.guard.ConcurrencyThrottleTemplate;
+import org.zkybase.kite.interceptor.AnnotationGuardListSource;
+import org.zkybase.kite.interceptor.DefaultGuardListSource;
 import org.zkybase.kite.interceptor.GuardListInterceptor;
 import org.zkybase.kite.interceptor.GuardListSource;
 
@@ -92,4 +109,226 @@ public class GuardListInterceptorTestCase {
 		String result = (String) interceptorNoGuards.invoke(invocation);
 		assertThat(result, is("williewheeler"));
 	}
+	
+	@Test
+	public void testGuardListIsResolvedOncePerMethod() throws Throwable {
+		interceptorWithGuards.invoke(invocation);
+		interceptorWithGuards.invoke(invocation);
+		verify(sourceWithGuards, times(1)).getGuards(isA(Method.class), isA(Class.class));
+	}
+	
+	@Test
+	public void testGuardsAreAppliedInListOrder() throws Throwable {
+		List<String> trace = new ArrayList<String>();
+		List<Guard> tracingGuards = new ArrayList<Guard>();
+		tracingGuards.add(new TracingGuard("first", trace));
+		tracingGuards.add(new TracingGuard("second", trace));
+		tracingGuards.add(new TracingGuard("third", trace));
+		
+		DefaultGuardListSource source = new DefaultGuardListSource();
+		source.setGuards(tracingGuards);
+		GuardListInterceptor interceptor = new GuardListInterceptor();
+		interceptor.setSource(source);
+		
+		String result = (String) interceptor.invoke(invocation);
+		assertThat(result, is("williewheeler"));
+		assertThat(trace.toString(), is("[first, second, third]"));
+	}
+	
+	@Test
+	public void testGuardMayInvokeCallbackMoreThanOnce() throws Throwable {
+		final List<String> trace = new ArrayList<String>();
+		List<Guard> guardList = new ArrayList<Guard>();
+		guardList.add(new AbstractGuard() {
+			public <T> T execute(GuardCallback<T> action) throws Exception {
+				action.doInGuard();
+				return action.doInGuard();
+			}
+		});
+		guardList.add(new TracingGuard("inner", trace));
+		
+		DefaultGuardListSource source = new DefaultGuardListSource();
+		source.setGuards(guardList);
+		GuardListInterceptor interceptor = new GuardListInterceptor();
+		interceptor.setSource(source);
+		
+		String result = (String) interceptor.invoke(invocation);
+		assertThat(result, is("williewheeler"));
+		assertThat(trace.toString(), is("[inner, inner]"));
+	}
+	
+	@Test
+	public void testForkedCallbackContinuesChainOnAnotherThread() throws Throwable {
+		final List<String> trace = new ArrayList<String>();
+		List<Guard> guardList = new ArrayList<Guard>();
+		guardList.add(new BulkheadTemplate());
+		guardList.add(new TracingGuard("inner", trace));
+		
+		DefaultGuardListSource source = new DefaultGuardListSource();
+		source.setGuards(guardList);
+		GuardListInterceptor interceptor = new GuardListInterceptor();
+		interceptor.setSource(source);
+		
+		String result = (String) interceptor.invoke(invocation);
+		assertThat(result, is("williewheeler"));
+		assertThat(trace.toString(), is("[inner]"));
+	}
+	
+	@Test
+	public void testFallbackIsInvokedOnRejection() throws Throwable {
+		AnnotationGuardListSource source = new AnnotationGuardListSource();
+		source.setBeanFactory(fallbackBeanFactory());
+		GuardListInterceptor interceptor = new GuardListInterceptor();
+		interceptor.setSource(source);
+		
+		String result = (String) interceptor.invoke(fallbackInvocation("getMotd", "willie"));
+		assertThat(result, is("fallback for willie: CircuitOpenException"));
+	}
+	
+	@Test(expected = CircuitOpenException.class)
+	public void testFailureNotHandledByFallbackPropagates() throws Throwable {
+		AnnotationGuardListSource source = new AnnotationGuardListSource();
+		source.setBeanFactory(fallbackBeanFactory());
+		GuardListInterceptor interceptor = new GuardListInterceptor();
+		interceptor.setSource(source);
+		
+		interceptor.invoke(fallbackInvocation("getMotdOnTimeout", "willie"));
+	}
+	
+	@Test
+	public void testAsyncMethodHoldsPermitUntilStageCompletes() throws Throwable {
+		List<Guard> guardList = new ArrayList<Guard>();
+		guardList.add(new ConcurrencyThrottleTemplate(1));
+		DefaultGuardListSource source = new DefaultGuardListSource();
+		source.setGuards(guardList);
+		GuardListInterceptor interceptor = new GuardListInterceptor();
+		interceptor.setSource(source);
+		
+		CompletableFuture<String> future = new CompletableFuture<String>();
+		MethodInvocation asyncInvocation = mock(MethodInvocation.class);
+		when(asyncInvocation.getMethod()).thenReturn(AsyncMotdService.class.getMethod("getMotd"));
+		when(asyncInvocation.getThis()).thenReturn(new AsyncMotdService());
+		when(asyncInvocation.proceed()).thenReturn(future);
+		
+		CompletableFuture<?> first = (CompletableFuture<?>) interceptor.invoke(asyncInvocation);
+		CompletableFuture<?> rejected = (CompletableFuture<?>) interceptor.invoke(asyncInvocation);
+		assertThat(first.isDone(), is(false));
+		try {
+			rejected.get();
+			fail("Expected ConcurrencyLimitExceededException");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause() instanceof ConcurrencyLimitExceededException, is(true));
+		}
+		
+		future.complete("motd");
+		assertThat((String) first.get(), is("motd"));
+		CompletableFuture<?> second = (CompletableFuture<?>) interceptor.invoke(asyncInvocation);
+		assertThat((String) second.get(), is("motd"));
+	}
+	
+	@Test
+	public void testStreamResultHoldsPermitUntilClosed() throws Throwable {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(1);
+		GuardListInterceptor interceptor = leasingInterceptor(throttle);
+		MethodInvocation streamInvocation = exportInvocation("exportStream", Stream.of("a", "b"));
+		
+		Stream<?> stream = (Stream<?>) interceptor.invoke(streamInvocation);
+		assertThat(throttle.getInFlight(), is(1));
+		assertThat(stream.count(), is(2L));
+		assertThat(throttle.getInFlight(), is(1));
+		
+		stream.close();
+		assertThat(throttle.getInFlight(), is(0));
+	}
+	
+	@Test
+	public void testInputStreamResultHoldsPermitUntilClosed() throws Throwable {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(1);
+		GuardListInterceptor interceptor = leasingInterceptor(throttle);
+		MethodInvocation streamInvocation =
+			exportInvocation("exportBytes", new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+		
+		InputStream in = (InputStream) interceptor.invoke(streamInvocation);
+		assertThat(in.read(new byte[8]), is(3));
+		assertThat(throttle.getInFlight(), is(1));
+		
+		in.close();
+		assertThat(throttle.getInFlight(), is(0));
+	}
+	
+	private GuardListInterceptor leasingInterceptor(Guard guard) {
+		List<Guard> guardList = new ArrayList<Guard>();
+		guardList.add(guard);
+		DefaultGuardListSource source = new DefaultGuardListSource();
+		source.setGuards(guardList);
+		GuardListInterceptor interceptor = new GuardListInterceptor();
+		interceptor.setSource(source);
+		return interceptor;
+	}
+	
+	private MethodInvocation exportInvocation(String methodName, Object result) throws Throwable {
+		MethodInvocation exportInvocation = mock(MethodInvocation.class);
+		when(exportInvocation.getMethod()).thenReturn(ExportService.class.getMethod(methodName));
+		when(exportInvocation.getThis()).thenReturn(new ExportService());
+		when(exportInvocation.proceed()).thenReturn(result);
+		return exportInvocation;
+	}
+	
+	private BeanFactory fallbackBeanFactory() {
+		BeanFactory beanFactory = mock(BeanFactory.class);
+		when(beanFactory.getBean("openBreaker", Guard.class)).thenReturn(new AbstractGuard() {
+			public <T> T execute(GuardCallback<T> action) throws Exception {
+				throw new CircuitOpenException();
+			}
+		});
+		return beanFactory;
+	}
+	
+	private MethodInvocation fallbackInvocation(String methodName, String arg) throws Throwable {
+		MethodInvocation fallbackInvocation = mock(MethodInvocation.class);
+		when(fallbackInvocation.getMethod()).thenReturn(MotdService.class.getMethod(methodName, String.class));
+		when(fallbackInvocation.getThis()).thenReturn(new MotdService());
+		when(fallbackInvocation.getArguments()).thenReturn(new Object[] { arg });
+		return fallbackInvocation;
+	}
+	
+	public static class MotdService {
+		
+		@GuardedBy(value = "openBreaker", fallback = "getDefaultMotd")
+		public String getMotd(String user) { return "motd for " + user; }
+		
+		@GuardedBy(value = "openBreaker", fallback = "getDefaultMotd", fallbackOn = GuardTimeoutException.class)
+		public String getMotdOnTimeout(String user) { return "motd for " + user; }
+		
+		public String getDefaultMotd(String user, Exception e) {
+			return "fallback for " + user + ": " + e.getClass().getSimpleName();
+		}
+	}
+	
+	public static class ExportService {
+		
+		public Stream<String> exportStream() { return Stream.empty(); }
+		
+		public InputStream exportBytes() { return new ByteArrayInputStream(new byte[0]); }
+	}
+	
+	public static class AsyncMotdService {
+		
+		public CompletableFuture<String> getMotd() { return CompletableFuture.completedFuture("motd"); }
+	}
+	
+	private static class TracingGuard extends AbstractGuard {
+		private final String label;
+		private final List<String> trace;
+		
+		public TracingGuard(String label, List<String> trace) {
+			this.label = label;
+			this.trace = trace;
+		}
+		
+		public <T> T execute(GuardCallback<T> action) throws Exception {
+			trace.add(label);
+			return action.doInGuard();
+		}
+	}
 }
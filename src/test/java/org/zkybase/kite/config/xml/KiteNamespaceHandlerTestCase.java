@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.config.xml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.zkybase.kite.exception.GuardException;
+import org.zkybase.kite.Guard;
+import org.zkybase.kite.guard.BatchHandler;
+import org.zkybase.kite.guard.BatchingTemplate;
+import org.zkybase.kite.guard.BoundedRateLimitStateStore;
+import org.zkybase.kite.guard.BulkheadTemplate;
+import org.zkybase.kite.guard.CircuitBreakerTemplate;
+import org.zkybase.kite.guard.ConcurrencyThrottleTemplate;
+import org.zkybase.kite.guard.HedgingTemplate;
+import org.zkybase.kite.guard.RateLimit;
+import org.zkybase.kite.guard.RateLimitingThrottleTemplate;
+import org.zkybase.kite.guard.ResponseCacheTemplate;
+import org.zkybase.kite.guard.RetryTemplate;
+import org.zkybase.kite.guard.SingleFlightTemplate;
+import org.zkybase.kite.guard.SlaThrottleTemplate;
+import org.zkybase.kite.guard.TimeoutTemplate;
+import org.zkybase.kite.key.ExpressionKeyResolver;
+import org.zkybase.kite.key.InvocationKeyResolver;
+
+/**
+ * Test case for the Kite namespace elements handled by {@link KiteNamespaceHandler}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class KiteNamespaceHandlerTestCase {
+	private ClassPathXmlApplicationContext context;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.context = new ClassPathXmlApplicationContext("kite-namespace-test.xml", getClass());
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		context.close();
+	}
+	
+	@Test
+	public void testConsecutiveExceptionBreaker() {
+		CircuitBreakerTemplate breaker = context.getBean("consecutiveBreaker", CircuitBreakerTemplate.class);
+		assertThat(breaker.getName(), is("consecutiveBreaker"));
+		assertThat(breaker.getExceptionThreshold(), is(3));
+		assertThat(breaker.getTimeout(), is(30000L));
+		assertThat(breaker.getFailureRateThreshold(), is(0.0f));
+	}
+	
+	@Test
+	public void testFailureRateBreaker() {
+		CircuitBreakerTemplate breaker = context.getBean("failureRateBreaker", CircuitBreakerTemplate.class);
+		assertThat(breaker.getFailureRateThreshold(), is(50.0f));
+		assertThat(breaker.getSlidingWindowType(), is(CircuitBreakerTemplate.SlidingWindowType.TIME_BASED));
+		assertThat(breaker.getSlidingWindowSize(), is(60));
+		assertThat(breaker.getMinimumNumberOfCalls(), is(20));
+	}
+	
+	@Test
+	public void testSlowCallCircuitBreaker() {
+		CircuitBreakerTemplate breaker = context.getBean("slowCallBreaker", CircuitBreakerTemplate.class);
+		assertThat(breaker.getSlowCallDurationThreshold(), is(2000L));
+		assertThat(breaker.getSlowCallRateThreshold(), is(80.0f));
+		assertThat(breaker.getFailureRateThreshold(), is(0.0f));
+	}
+	
+	@Test
+	public void testConcurrencyThrottle() {
+		ConcurrencyThrottleTemplate throttle = context.getBean("throttle", ConcurrencyThrottleTemplate.class);
+		assertThat(throttle.getLimit(), is(50));
+		assertThat(throttle.isAdaptive(), is(false));
+	}
+	
+	@Test
+	public void testAdaptiveConcurrencyThrottle() {
+		ConcurrencyThrottleTemplate throttle = context.getBean("adaptiveThrottle", ConcurrencyThrottleTemplate.class);
+		assertThat(throttle.isAdaptive(), is(true));
+		assertThat(throttle.getLimit(), is(20));
+		assertThat(throttle.getMinLimit(), is(5));
+		assertThat(throttle.getMaxLimit(), is(200));
+	}
+	
+	@Test
+	public void testQueueingConcurrencyThrottle() {
+		ConcurrencyThrottleTemplate throttle = context.getBean("queueingThrottle", ConcurrencyThrottleTemplate.class);
+		assertThat(throttle.getMaxQueueLength(), is(100));
+		assertThat(throttle.getMaxWaitTime(), is(250L));
+		assertThat(throttle.getQueueOrder(), is(ConcurrencyThrottleTemplate.QueueOrder.LIFO));
+	}
+	
+	@Test
+	public void testBulkhead() {
+		BulkheadTemplate bulkhead = context.getBean("bulkhead", BulkheadTemplate.class);
+		assertThat(bulkhead.getMaxThreads(), is(20));
+		assertThat(bulkhead.getQueueCapacity(), is(5));
+		assertThat(bulkhead.getTimeout(), is(2000L));
+		assertThat(bulkhead.isVirtualThreads(), is(false));
+	}
+	
+	@Test
+	public void testTimeout() {
+		assertThat(context.getBean("timeout", TimeoutTemplate.class).getTimeout(), is(750L));
+	}
+	
+	@Test
+	public void testSlaThrottle() {
+		SlaThrottleTemplate throttle = context.getBean("slaThrottle", SlaThrottleTemplate.class);
+		assertThat(throttle.getLatencyTarget(), is(200L));
+		assertThat(throttle.getPercentile(), is(99.9));
+		assertThat(throttle.getShedStep(), is(0.05));
+		assertThat(throttle.getMaxShedFraction(), is(0.5));
+		assertThat(throttle.getEvaluationInterval(), is(500L));
+		assertThat(throttle.getWindowSize(), is(30));
+		assertThat(throttle.getMinimumNumberOfCalls(), is(50));
+	}
+	
+	@Test
+	public void testRetry() {
+		RetryTemplate retry = context.getBean("retry", RetryTemplate.class);
+		assertThat(retry.getMaxAttempts(), is(4));
+		assertThat(retry.getInitialBackoff(), is(50L));
+		assertThat(retry.getMaxBackoff(), is(2000L));
+		assertThat(retry.getBackoffMultiplier(), is(3.0));
+		assertThat(retry.getRetryBudgetPercent(), is(10.0f));
+		assertThat(retry.getRetryBudgetCapacity(), is(5));
+		
+		List<Class<? extends Exception>> retryable = new ArrayList<Class<? extends Exception>>();
+		retryable.add(IOException.class);
+		retryable.add(TimeoutException.class);
+		assertThat(retry.getRetryableExceptions(), is(retryable));
+		
+		List<Class<? extends Exception>> nonRetryable = new ArrayList<Class<? extends Exception>>();
+		nonRetryable.add(GuardException.class);
+		assertThat(retry.getNonRetryableExceptions(), is(nonRetryable));
+	}
+	
+	@Test
+	public void testSingleFlight() {
+		SingleFlightTemplate singleFlight = context.getBean("singleFlight", SingleFlightTemplate.class);
+		assertThat(singleFlight.getKeyResolver() instanceof InvocationKeyResolver, is(true));
+		
+		SingleFlightTemplate motdSingleFlight = context.getBean("motdSingleFlight", SingleFlightTemplate.class);
+		assertThat(((ExpressionKeyResolver) motdSingleFlight.getKeyResolver()).getExpression(), is("method.name"));
+		assertThat(motdSingleFlight.getMaxWait(), is(2000L));
+	}
+	
+	@Test
+	public void testBatching() {
+		BatchingTemplate batching = context.getBean("batching", BatchingTemplate.class);
+		assertThat(batching.getBatchHandler() == context.getBean("echoBatchHandler"), is(true));
+		assertThat(batching.getMaxBatchSize(), is(50));
+		assertThat(batching.getMaxDelay(), is(5L));
+		assertThat(((ExpressionKeyResolver) batching.getKeyResolver()).getExpression(), is("#p0.id"));
+		
+		List<Guard> guards = batching.getGuards();
+		assertThat(guards.size(), is(2));
+		assertThat(guards.get(0) == context.getBean("throttle"), is(true));
+		assertThat(guards.get(1) == context.getBean("rateLimiter"), is(true));
+	}
+	
+	@Test
+	public void testHedging() {
+		HedgingTemplate hedging = context.getBean("hedging", HedgingTemplate.class);
+		assertThat(hedging.getHedgeDelay(), is(50L));
+		assertThat(hedging.getHedgePercentile(), is(95.0));
+		assertThat(hedging.getMaxHedgePercent(), is(5.0f));
+		assertThat(hedging.getExecutor() == null, is(true));
+		
+		HedgingTemplate percentileHedging = context.getBean("percentileHedging", HedgingTemplate.class);
+		assertThat(percentileHedging.getHedgeDelay(), is(0L));
+		assertThat(percentileHedging.getHedgePercentile(), is(99.0));
+		assertThat(percentileHedging.getExecutor() == context.getBean("hedgingExecutor"), is(true));
+	}
+	
+	@Test
+	public void testResponseCache() {
+		ResponseCacheTemplate cache = context.getBean("responseCache", ResponseCacheTemplate.class);
+		assertThat(cache.getTtl(), is(1000L));
+		assertThat(cache.getMaxStaleness(), is(600000L));
+		assertThat(cache.getMaxEntries(), is(200));
+		assertThat(cache.isSoftValues(), is(true));
+		assertThat(cache.getKeyResolver() instanceof InvocationKeyResolver, is(true));
+		
+		List<Class<? extends Exception>> fallbackExceptions = new ArrayList<Class<? extends Exception>>();
+		fallbackExceptions.add(GuardException.class);
+		assertThat(cache.getFallbackExceptions(), is(fallbackExceptions));
+	}
+	
+	@Test
+	public void testRateLimitingThrottle() {
+		RateLimitingThrottleTemplate rateLimiter = context.getBean("rateLimiter", RateLimitingThrottleTemplate.class);
+		assertThat(rateLimiter.getLimit(), is(5000));
+		assertThat(rateLimiter.getPeriod(), is(3600000L));
+		assertThat(rateLimiter.getBurst(), is(5000));
+	}
+	
+	@Test
+	public void testRateLimitingThrottleWithPeriodAndBurst() {
+		RateLimitingThrottleTemplate rateLimiter =
+			context.getBean("perMinuteRateLimiter", RateLimitingThrottleTemplate.class);
+		assertThat(rateLimiter.getLimit(), is(60));
+		assertThat(rateLimiter.getPeriod(), is(60000L));
+		assertThat(rateLimiter.getBurst(), is(10));
+		assertThat(((BoundedRateLimitStateStore) rateLimiter.getStateStore()).getCapacity(), is(500));
+	}
+	
+	@Test
+	public void testRateLimitingThrottleWithKeyExpression() {
+		RateLimitingThrottleTemplate rateLimiter =
+			context.getBean("tenantRateLimiter", RateLimitingThrottleTemplate.class);
+		assertThat(((ExpressionKeyResolver) rateLimiter.getKeyResolver()).getExpression(), is("#p0.tenantId"));
+	}
+	
+	@Test
+	public void testRateLimitingThrottleWithMultipleWindows() {
+		RateLimitingThrottleTemplate rateLimiter =
+			context.getBean("layeredRateLimiter", RateLimitingThrottleTemplate.class);
+		List<RateLimit> limits = rateLimiter.getLimits();
+		assertThat(limits.size(), is(3));
+		assertThat(limits.get(0).getLimit(), is(10));
+		assertThat(limits.get(1).getPeriod(), is(60000L));
+		assertThat(limits.get(2).getBurst(), is(100));
+	}
+	
+	public static class EchoBatchHandler implements BatchHandler<Object, Object> {
+		public List<Object> handleBatch(List<Object> items) { return items; }
+	}
+}
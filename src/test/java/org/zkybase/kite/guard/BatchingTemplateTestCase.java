@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.AbstractGuard;
+import org.zkybase.kite.Guard;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.key.KeyResolver;
+
+/**
+ * Test case for {@link BatchingTemplate}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class BatchingTemplateTestCase {
+	private ExecutorService executor;
+	private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+	
+	// Class under test
+	private BatchingTemplate batching;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.executor = Executors.newCachedThreadPool();
+		this.batching = new BatchingTemplate();
+		batching.setBeanName("userBatcher");
+		batching.setKeyResolver(new KeyResolver() {
+			public Object resolveKey(GuardCallback<?> action) { return ((ItemCallback) action).item; }
+		});
+		batching.setBatchHandler(new BatchHandler<Integer, Integer>() {
+			public List<Integer> handleBatch(List<Integer> items) {
+				batchSizes.add(items.size());
+				List<Integer> results = new ArrayList<Integer>();
+				for (Integer item : items) { results.add(item == null ? null : item * 2); }
+				return results;
+			}
+		});
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+	
+	@Test
+	public void testFullBatchesAreDispatchedAtOnce() throws Exception {
+		batching.setMaxBatchSize(5);
+		batching.setMaxDelay(60000L);
+		List<Future<Integer>> results = submitCalls(10);
+		for (int i = 0; i < 10; i++) { assertThat(results.get(i).get(5L, TimeUnit.SECONDS), is(i * 2)); }
+		assertThat(batchSizes, is(Arrays.asList(5, 5)));
+		assertThat(batching.getBatchCount(), is(2L));
+		assertThat(batching.getAverageBatchSize(), is(5.0));
+	}
+	
+	@Test
+	public void testPartialBatchIsDispatchedAfterDelay() throws Exception {
+		batching.setMaxDelay(20L);
+		long start = System.nanoTime();
+		assertThat(batching.execute(new ItemCallback(21)), is(42));
+		assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 20L, is(true));
+		assertThat(batchSizes, is(Arrays.asList(1)));
+	}
+	
+	@Test
+	public void testNullItem() throws Exception {
+		batching.setMaxBatchSize(1);
+		assertThat(batching.execute(new ItemCallback(null)), is((Integer) null));
+	}
+	
+	@Test
+	public void testBatchFailureReachesEveryCaller() throws Exception {
+		final IllegalStateException failure = new IllegalStateException("bulk API down");
+		batching.setBatchHandler(new BatchHandler<Integer, Integer>() {
+			public List<Integer> handleBatch(List<Integer> items) { throw failure; }
+		});
+		batching.setMaxBatchSize(3);
+		batching.setMaxDelay(60000L);
+		for (Future<Integer> result : submitCalls(3)) {
+			try {
+				result.get(5L, TimeUnit.SECONDS);
+				fail("Expected IllegalStateException");
+			} catch (ExecutionException e) {
+				assertThat(e.getCause() == failure, is(true));
+			}
+		}
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testMissingResultsFailTheBatch() throws Exception {
+		batching.setBatchHandler(new BatchHandler<Integer, Integer>() {
+			public List<Integer> handleBatch(List<Integer> items) { return new ArrayList<Integer>(); }
+		});
+		batching.setMaxBatchSize(1);
+		batching.execute(new ItemCallback(1));
+	}
+	
+	@Test
+	public void testGuardsApplyOncePerBatch() throws Exception {
+		final AtomicInteger guardCalls = new AtomicInteger();
+		Guard countingGuard = new AbstractGuard() {
+			public <T> T execute(GuardCallback<T> action) throws Exception {
+				guardCalls.incrementAndGet();
+				return action.doInGuard();
+			}
+		};
+		batching.setGuards(Arrays.asList(countingGuard));
+		batching.setMaxBatchSize(4);
+		batching.setMaxDelay(60000L);
+		for (Future<Integer> result : submitCalls(8)) { result.get(5L, TimeUnit.SECONDS); }
+		assertThat(guardCalls.get(), is(2));
+	}
+	
+	private List<Future<Integer>> submitCalls(int count) {
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < count; i++) {
+			final int item = i;
+			results.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception { return batching.execute(new ItemCallback(item)); }
+			}));
+		}
+		return results;
+	}
+	
+	private static class ItemCallback implements GuardCallback<Integer> {
+		private final Integer item;
+		
+		public ItemCallback(Integer item) { this.item = item; }
+		
+		public Integer doInGuard() throws Exception {
+			throw new AssertionError("Batched calls shouldn't run individually");
+		}
+	}
+}
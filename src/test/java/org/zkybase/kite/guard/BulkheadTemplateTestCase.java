@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.BulkheadFullException;
+import org.zkybase.kite.exception.GuardTimeoutException;
+
+/**
+ * Test case for {@link BulkheadTemplate}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class BulkheadTemplateTestCase {
+	
+	// Class under test
+	private BulkheadTemplate bulkhead;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.bulkhead = new BulkheadTemplate();
+		bulkhead.setBeanName("messageServiceBulkhead");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		bulkhead.destroy();
+		this.bulkhead = null;
+	}
+	
+	@Test
+	public void testActionRunsOnBulkheadThread() throws Exception {
+		String threadName = bulkhead.execute(new GuardCallback<String>() {
+			public String doInGuard() throws Exception { return Thread.currentThread().getName(); }
+		});
+		assertThat(threadName.startsWith("messageServiceBulkhead-"), is(true));
+	}
+	
+	@Test
+	public void testCallsBeyondCapacityAreRejected() throws Exception {
+		bulkhead.setMaxThreads(1);
+		bulkhead.setQueueCapacity(1);
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final GuardCallback<String> blockingAction = new GuardCallback<String>() {
+			public String doInGuard() throws Exception {
+				entered.countDown();
+				release.await();
+				return "done";
+			}
+		};
+		
+		Thread[] callers = new Thread[2];
+		for (int i = 0; i < callers.length; i++) {
+			callers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						bulkhead.execute(blockingAction);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			callers[i].start();
+			
+			// First caller takes the thread, second one the queue slot
+			if (i == 0) { entered.await(); }
+		}
+		while (bulkhead.getQueueSize() < 1) { Thread.sleep(1L); }
+		
+		try {
+			bulkhead.execute(blockingAction);
+			fail("Expected BulkheadFullException");
+		} catch (BulkheadFullException e) {
+			assertThat(e.getMaxThreads(), is(1));
+			assertThat(bulkhead.getRejectedCount(), is(1L));
+		} finally {
+			release.countDown();
+		}
+		for (Thread caller : callers) { caller.join(); }
+	}
+	
+	@Test
+	public void testSlowCallTimesOutAndIsInterrupted() throws Exception {
+		bulkhead.setTimeout(50L);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		try {
+			bulkhead.execute(new GuardCallback<String>() {
+				public String doInGuard() throws Exception {
+					try {
+						Thread.sleep(10000L);
+					} catch (InterruptedException e) {
+						interrupted.countDown();
+					}
+					return "done";
+				}
+			});
+			fail("Expected GuardTimeoutException");
+		} catch (GuardTimeoutException e) {
+			assertThat(e.getTimeout(), is(50L));
+		}
+		assertThat(interrupted.await(5L, TimeUnit.SECONDS), is(true));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testActionExceptionIsRethrownToCaller() throws Exception {
+		bulkhead.execute(new GuardCallback<String>() {
+			public String doInGuard() throws Exception { throw new IllegalArgumentException("oops"); }
+		});
+	}
+}
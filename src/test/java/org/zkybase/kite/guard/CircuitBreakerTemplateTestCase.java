@@ -23,12 +23,16 @@ import static org.junit.Assert.fail;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.GuardLease;
 import org.zkybase.kite.exception.CircuitOpenException;
 import org.zkybase.kite.test.BarrierThread;
 import org.zkybase.kite.test.KiteObjectMother;
@@ -264,6 +268,122 @@ public class CircuitBreakerTemplateTestCase {
 	}
 	
 
+	// ========================================================================
+	// Failure rate tests
+	// ========================================================================
+	
+	@Test
+	public void testFailureRateBelowThresholdDoesNotTripBreaker() throws Throwable {
+		configureFailureRate(50.0f, 10, 10);
+		
+		// 4 failures in 10 calls = 40%
+		for (int i = 0; i < 10; i++) {
+			executeQuietly(i % 5 < 2 ? badAction : goodAction);
+		}
+		assertThat(breaker.getFailureRate(), is(40.0f));
+		assertBreakerIsClosed();
+	}
+	
+	@Test
+	public void testFailureRateTripsBreakerDespiteInterleavedSuccesses() throws Throwable {
+		configureFailureRate(50.0f, 10, 10);
+		
+		// Alternating outcomes never produce more than one consecutive exception.
+		for (int i = 0; i < 10; i++) {
+			executeQuietly(i % 2 == 0 ? goodAction : badAction);
+		}
+		assertBreakerIsOpen();
+	}
+	
+	@Test
+	public void testFailureRateIsNotEvaluatedBelowMinimumNumberOfCalls() throws Throwable {
+		configureFailureRate(50.0f, 100, 20);
+		
+		for (int i = 0; i < 19; i++) {
+			executeQuietly(badAction);
+		}
+		assertThat(breaker.getFailureRate(), is(-1.0f));
+		assertBreakerIsClosed();
+		
+		executeQuietly(badAction);
+		assertBreakerIsOpen();
+	}
+	
+	@Test
+	public void testFailureRateWindowSlides() throws Throwable {
+		configureFailureRate(50.0f, 10, 10);
+		
+		for (int i = 0; i < 4; i++) { executeQuietly(badAction); }
+		for (int i = 0; i < 10; i++) { executeQuietly(goodAction); }
+		assertThat(breaker.getFailureRate(), is(0.0f));
+		assertBreakerIsClosed();
+	}
+	
+	@Test
+	public void testTimeBasedFailureRateTripsBreaker() throws Throwable {
+		breaker.setSlidingWindowType(CircuitBreakerTemplate.SlidingWindowType.TIME_BASED);
+		configureFailureRate(50.0f, 60, 10);
+		
+		for (int i = 0; i < 10; i++) {
+			executeQuietly(i % 2 == 0 ? goodAction : badAction);
+		}
+		assertBreakerIsOpen();
+	}
+	
+	@Test
+	public void testResetClearsFailureRate() throws Throwable {
+		configureFailureRate(50.0f, 10, 2);
+		executeQuietly(badAction);
+		executeQuietly(goodAction);
+		assertThat(breaker.getFailureRate(), is(50.0f));
+		
+		breaker.reset();
+		assertThat(breaker.getFailureRate(), is(-1.0f));
+	}
+	
+	@Test
+	public void testSlowCallRateTripsBreakerDespiteSuccesses() throws Throwable {
+		configureSlowCalls(5L, 50.0f, 10, 4);
+		for (int i = 0; i < 3; i++) {
+			breaker.execute(i == 0 ? slowAction(20L) : goodAction);
+		}
+		assertBreakerIsClosed();
+		
+		// Fourth call fills the minimum; two of four calls were slow
+		breaker.execute(slowAction(20L));
+		assertThat(breaker.getSlowCallRate(), is(50.0f));
+		assertBreakerIsOpen();
+	}
+	
+	@Test
+	public void testTimeBasedSlowCallRateTripsBreaker() throws Throwable {
+		breaker.setSlidingWindowType(CircuitBreakerTemplate.SlidingWindowType.TIME_BASED);
+		configureSlowCalls(5L, 100.0f, 60, 3);
+		for (int i = 0; i < 3; i++) {
+			breaker.execute(slowAction(20L));
+		}
+		assertBreakerIsOpen();
+	}
+	
+	@Test
+	public void testFastCallsDontCountAsSlow() throws Throwable {
+		configureSlowCalls(1000L, 50.0f, 10, 2);
+		for (int i = 0; i < 10; i++) {
+			breaker.execute(goodAction);
+		}
+		assertThat(breaker.getSlowCallRate(), is(0.0f));
+		assertBreakerIsClosed();
+	}
+	
+	@Test
+	public void testSlowProbeRetripsHalfOpenBreaker() throws Throwable {
+		configureSlowCalls(5L, 100.0f, 10, 10);
+		breaker.setState(CircuitBreakerTemplate.State.HALF_OPEN);
+		breaker.execute(slowAction(20L));
+		assertBreakerIsOpen();
+	}
+	
+	
 	// ========================================================================
 	// Open breaker tests
 	// ========================================================================
@@ -338,10 +458,207 @@ public class CircuitBreakerTemplateTestCase {
 	}
 	
 	
+	@Test
+	public void testHalfOpenBreakerAdmitsOnlyOneProbeAtATime() throws Throwable {
+		breaker.setState(CircuitBreakerTemplate.State.HALF_OPEN);
+		
+		final CountDownLatch probeStarted = new CountDownLatch(1);
+		final CountDownLatch finishProbe = new CountDownLatch(1);
+		Thread probe = new Thread(new Runnable() {
+			public void run() {
+				try {
+					breaker.execute(new GuardCallback<String>() {
+						public String doInGuard() throws Exception {
+							probeStarted.countDown();
+							finishProbe.await();
+							return "good";
+						}
+					});
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		probe.start();
+		probeStarted.await();
+		assertThat(breaker.getHalfOpenCallsInFlight(), is(1));
+		
+		try {
+			breaker.execute(goodAction);
+			fail("Expected CircuitOpenException");
+		} catch (CircuitOpenException e) {
+			// Good, the probe slot is taken
+		}
+		
+		finishProbe.countDown();
+		probe.join();
+		assertBreakerIsClosed();
+		assertThat(breaker.execute(goodAction), is("good"));
+	}
+	
+	@Test
+	public void testErrorThrownByProbeReleasesProbeSlot() throws Throwable {
+		breaker.setState(CircuitBreakerTemplate.State.HALF_OPEN);
+		try {
+			breaker.execute(new GuardCallback<String>() {
+				public String doInGuard() { throw new StackOverflowError(); }
+			});
+			fail("Expected StackOverflowError");
+		} catch (StackOverflowError e) {
+			// Ignore, this is what we wanted
+		}
+		
+		assertThat(breaker.getHalfOpenCallsInFlight(), is(0));
+		assertBreakerIsHalfOpen();
+		assertThat(breaker.execute(goodAction), is("good"));
+		assertBreakerIsClosed();
+	}
+	
+	@Test
+	public void testAutomaticTripDoesNotOverrideManualTripWithoutAutoReset() throws Throwable {
+		breaker.setExceptionThreshold(1);
+		try {
+			breaker.execute(new GuardCallback<String>() {
+				public String doInGuard() throws Exception {
+					breaker.tripWithoutAutoReset();
+					throw new RuntimeException("fail");
+				}
+			});
+			fail("Expected exception");
+		} catch (RuntimeException e) {
+			// Expected
+		}
+		assertBreakerIsOpen();
+		assertThat(breaker.getRetryTime(), is(Long.MAX_VALUE));
+	}
+	
+	
+	// ========================================================================
+	// Asynchronous tests
+	// ========================================================================
+	
+	@Test
+	public void testAsyncFailureIsRecordedWhenStageCompletes() throws Exception {
+		breaker.setExceptionThreshold(1);
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+		CompletionStage<String> stage = breaker.executeAsync(new GuardCallback<CompletableFuture<String>>() {
+			public CompletableFuture<String> doInGuard() { return future; }
+		});
+		assertBreakerIsClosed();
+		
+		future.completeExceptionally(new SQLException());
+		assertBreakerIsOpen();
+		assertThat(stage.toCompletableFuture().isCompletedExceptionally(), is(true));
+	}
+	
+	@Test
+	public void testAsyncProbeHoldsSlotUntilStageCompletes() throws Exception {
+		breaker.setState(CircuitBreakerTemplate.State.HALF_OPEN);
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+		breaker.executeAsync(new GuardCallback<CompletableFuture<String>>() {
+			public CompletableFuture<String> doInGuard() { return future; }
+		});
+		assertThat(breaker.getHalfOpenCallsInFlight(), is(1));
+		
+		future.complete("done");
+		assertBreakerIsClosed();
+	}
+	
+	@Test
+	public void testErrorThrownBeforeAsyncProbeReturnsStageReleasesProbeSlot() throws Exception {
+		breaker.setState(CircuitBreakerTemplate.State.HALF_OPEN);
+		try {
+			breaker.executeAsync(new GuardCallback<CompletableFuture<String>>() {
+				public CompletableFuture<String> doInGuard() { throw new StackOverflowError(); }
+			});
+			fail("Expected StackOverflowError");
+		} catch (StackOverflowError e) {
+			// Ignore, this is what we wanted
+		}
+		
+		assertThat(breaker.getHalfOpenCallsInFlight(), is(0));
+		assertBreakerIsHalfOpen();
+		assertThat(breaker.execute(goodAction), is("good"));
+	}
+	
+	@Test
+	public void testLeaseFailureIsRecordedOnClose() throws Exception {
+		breaker.setExceptionThreshold(1);
+		GuardLease lease = breaker.acquire();
+		lease.recordFailure(new SQLException());
+		assertBreakerIsClosed();
+		
+		lease.close();
+		assertBreakerIsOpen();
+		try {
+			breaker.acquire();
+			fail("Expected CircuitOpenException");
+		} catch (CircuitOpenException e) {
+			// Expected
+		}
+	}
+	
+	@Test
+	public void testBulkLeaseRecordsEachOutcome() throws Exception {
+		breaker.setFailureRateThreshold(50.0f);
+		breaker.setMinimumNumberOfCalls(10);
+		GuardLease lease = breaker.acquire(10, null);
+		assertThat(lease.getPermits(), is(10));
+		for (int i = 0; i < 5; i++) { lease.recordFailure(new SQLException()); }
+		
+		lease.close();
+		assertThat(breaker.getFailureRate(), is(50.0f));
+		assertBreakerIsOpen();
+	}
+	
+	@Test
+	public void testBulkLeaseIsLimitedToFreeProbeSlots() throws Exception {
+		breaker.setHalfOpenMaxCalls(2);
+		breaker.setState(CircuitBreakerTemplate.State.HALF_OPEN);
+		GuardLease lease = breaker.acquire(5, null);
+		assertThat(lease.getPermits(), is(2));
+		assertThat(breaker.getHalfOpenCallsInFlight(), is(2));
+		
+		lease.release(1);
+		assertThat(breaker.getHalfOpenCallsInFlight(), is(1));
+		lease.close();
+		assertBreakerIsClosed();
+	}
+	
 	// ========================================================================
 	// Helper methods
 	// ========================================================================
 
+	private void configureFailureRate(float threshold, int windowSize, int minimumCalls) {
+		breaker.setFailureRateThreshold(threshold);
+		breaker.setSlidingWindowSize(windowSize);
+		breaker.setMinimumNumberOfCalls(minimumCalls);
+	}
+	
+	private void configureSlowCalls(long durationThreshold, float rateThreshold, int windowSize, int minimumCalls) {
+		breaker.setSlowCallDurationThreshold(durationThreshold);
+		breaker.setSlowCallRateThreshold(rateThreshold);
+		breaker.setSlidingWindowSize(windowSize);
+		breaker.setMinimumNumberOfCalls(minimumCalls);
+	}
+	
+	private static GuardCallback<String> slowAction(final long millis) {
+		return new GuardCallback<String>() {
+			public String doInGuard() throws Exception {
+				Thread.sleep(millis);
+				return "slow";
+			}
+		};
+	}
+	
+	private void executeQuietly(GuardCallback<String> action) {
+		try {
+			breaker.execute(action);
+		} catch (Exception e) {
+			// Ignore
+		}
+	}
+
 	private void assertBreakerIsClosed() {
 		assertBreakerState(CircuitBreakerTemplate.State.CLOSED);
 	}
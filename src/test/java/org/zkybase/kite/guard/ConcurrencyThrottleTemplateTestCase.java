@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.GuardLease;
+import org.zkybase.kite.exception.ConcurrencyLimitExceededException;
+
+/**
+ * Test case for {@link ConcurrencyThrottleTemplate} and its adaptive {@link GradientLimit}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class ConcurrencyThrottleTemplateTestCase {
+	private static final long TEN_MS = TimeUnit.MILLISECONDS.toNanos(10L);
+	
+	@Test
+	public void testRequestsBeyondLimitAreRejected() throws Exception {
+		final ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(2);
+		final CountDownLatch entered = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final GuardCallback<String> blockingAction = new GuardCallback<String>() {
+			public String doInGuard() throws Exception {
+				entered.countDown();
+				release.await();
+				return "done";
+			}
+		};
+		
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						throttle.execute(blockingAction);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		entered.await();
+		
+		try {
+			throttle.execute(blockingAction);
+			fail("Expected ConcurrencyLimitExceededException");
+		} catch (ConcurrencyLimitExceededException e) {
+			assertThat(e.getLimit(), is(2));
+		} finally {
+			release.countDown();
+		}
+		for (Thread thread : threads) { thread.join(); }
+		assertThat(throttle.getInFlight(), is(0));
+	}
+	
+	@Test
+	public void testQueuedRequestRunsWhenPermitIsReleased() throws Exception {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(1);
+		throttle.setMaxQueueLength(1);
+		throttle.setMaxWaitTime(5000L);
+		List<String> order = new CopyOnWriteArrayList<String>();
+		
+		CountDownLatch release = new CountDownLatch(1);
+		Thread holder = start(throttle, "holder", order, release);
+		awaitInFlight(throttle, 1);
+		Thread waiter = start(throttle, "waiter", order, null);
+		awaitQueueLength(throttle, 1);
+		
+		// Queue is full, so a third request is rejected immediately.
+		try {
+			throttle.execute(recording("rejected", order, null));
+			fail("Expected ConcurrencyLimitExceededException");
+		} catch (ConcurrencyLimitExceededException e) {
+			// Expected
+		}
+		
+		release.countDown();
+		holder.join();
+		waiter.join();
+		assertThat(order, is(Arrays.asList("holder", "waiter")));
+		assertThat(throttle.getInFlight(), is(0));
+		assertThat(throttle.getQueueLength(), is(0));
+	}
+	
+	@Test
+	public void testQueuedRequestTimesOut() throws Exception {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(1);
+		throttle.setMaxQueueLength(1);
+		throttle.setMaxWaitTime(50L);
+		List<String> order = new CopyOnWriteArrayList<String>();
+		
+		CountDownLatch release = new CountDownLatch(1);
+		Thread holder = start(throttle, "holder", order, release);
+		awaitInFlight(throttle, 1);
+		try {
+			throttle.execute(recording("waiter", order, null));
+			fail("Expected ConcurrencyLimitExceededException");
+		} catch (ConcurrencyLimitExceededException e) {
+			// Expected
+		} finally {
+			release.countDown();
+			holder.join();
+		}
+		assertThat(order, is(Arrays.asList("holder")));
+		assertThat(throttle.getInFlight(), is(0));
+		assertThat(throttle.getQueueLength(), is(0));
+	}
+	
+	@Test
+	public void testLifoQueueServesNewestWaiterFirst() throws Exception {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(1);
+		throttle.setMaxQueueLength(2);
+		throttle.setMaxWaitTime(5000L);
+		throttle.setQueueOrder(ConcurrencyThrottleTemplate.QueueOrder.LIFO);
+		List<String> order = new CopyOnWriteArrayList<String>();
+		
+		CountDownLatch release = new CountDownLatch(1);
+		Thread holder = start(throttle, "holder", order, release);
+		awaitInFlight(throttle, 1);
+		Thread oldest = start(throttle, "oldest", order, null);
+		awaitQueueLength(throttle, 1);
+		Thread newest = start(throttle, "newest", order, null);
+		awaitQueueLength(throttle, 2);
+		
+		release.countDown();
+		holder.join();
+		oldest.join();
+		newest.join();
+		assertThat(order, is(Arrays.asList("holder", "newest", "oldest")));
+	}
+	
+	@Test
+	public void testAdaptiveLimitGrowsWhileLatencyIsStable() {
+		GradientLimit limit = new GradientLimit(10, 1, 100);
+		for (int i = 0; i < 200; i++) {
+			limit.onSample(TEN_MS, limit.getLimit());
+		}
+		assertThat(limit.getLimit() > 10, is(true));
+		assertThat(limit.getLimit() <= 100, is(true));
+	}
+	
+	@Test
+	public void testAdaptiveLimitDoesNotGrowWhenUnderused() {
+		GradientLimit limit = new GradientLimit(10, 1, 100);
+		for (int i = 0; i < 200; i++) {
+			limit.onSample(TEN_MS, 1);
+		}
+		assertThat(limit.getLimit(), is(10));
+	}
+	
+	@Test
+	public void testAdaptiveLimitShrinksWhenLatencyRises() {
+		GradientLimit limit = new GradientLimit(50, 5, 100);
+		for (int i = 0; i < 600; i++) {
+			limit.onSample(TEN_MS, 1);
+		}
+		assertThat(limit.getLimit(), is(50));
+		
+		for (int i = 0; i < 50; i++) {
+			limit.onSample(4 * TEN_MS, limit.getLimit());
+		}
+		assertThat(limit.getLimit() < 50, is(true));
+		assertThat(limit.getLimit() >= 5, is(true));
+	}
+	
+	private static Thread start(
+			final ConcurrencyThrottleTemplate throttle, String name, List<String> order, CountDownLatch release) {
+		
+		final GuardCallback<String> action = recording(name, order, release);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					throttle.execute(action);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		thread.start();
+		return thread;
+	}
+	
+	private static GuardCallback<String> recording(
+			final String name, final List<String> order, final CountDownLatch release) {
+		
+		return new GuardCallback<String>() {
+			public String doInGuard() throws Exception {
+				order.add(name);
+				if (release != null) { release.await(); }
+				return name;
+			}
+		};
+	}
+	
+	private static void awaitInFlight(ConcurrencyThrottleTemplate throttle, int inFlight) throws InterruptedException {
+		while (throttle.getInFlight() < inFlight) { Thread.sleep(1L); }
+	}
+	
+	private static void awaitQueueLength(ConcurrencyThrottleTemplate throttle, int length) throws InterruptedException {
+		while (throttle.getQueueLength() < length) { Thread.sleep(1L); }
+		
+		// Give the waiter time to get from reserving its slot to parking
+		Thread.sleep(20L);
+	}
+	
+	@Test
+	public void testAdaptiveThrottleReportsAdaptiveLimit() throws Exception {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(10);
+		throttle.setAdaptive(true);
+		throttle.setMaxLimit(20);
+		for (int i = 0; i < 100; i++) {
+			throttle.execute(new GuardCallback<String>() {
+				public String doInGuard() throws Exception { return "done"; }
+			});
+		}
+		assertThat(throttle.getLimit() <= 20, is(true));
+		assertThat(throttle.getShortTermRtt() > 0.0, is(true));
+	}
+	
+	@Test
+	public void testAsyncPermitIsHeldUntilStageCompletes() throws Exception {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(1);
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+		GuardCallback<CompletableFuture<String>> action = new GuardCallback<CompletableFuture<String>>() {
+			public CompletableFuture<String> doInGuard() { return future; }
+		};
+		
+		CompletionStage<String> stage = throttle.executeAsync(action);
+		assertThat(throttle.getInFlight(), is(1));
+		try {
+			throttle.executeAsync(action);
+			fail("Expected ConcurrencyLimitExceededException");
+		} catch (ConcurrencyLimitExceededException e) {
+			assertThat(e.getLimit(), is(1));
+		}
+		
+		future.complete("done");
+		assertThat(stage.toCompletableFuture().get(), is("done"));
+		assertThat(throttle.getInFlight(), is(0));
+	}
+	
+	@Test
+	public void testLeaseHoldsPermitUntilClosed() throws Exception {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(1);
+		GuardLease lease = throttle.acquire();
+		assertThat(throttle.getInFlight(), is(1));
+		try {
+			throttle.acquire();
+			fail("Expected ConcurrencyLimitExceededException");
+		} catch (ConcurrencyLimitExceededException e) {
+			assertThat(e.getLimit(), is(1));
+		}
+		
+		lease.close();
+		lease.close();
+		assertThat(throttle.getInFlight(), is(0));
+	}
+	
+	@Test
+	public void testBulkAcquireAdmitsFreePermits() throws Exception {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(5);
+		GuardLease first = throttle.acquire(3, null);
+		GuardLease second = throttle.acquire(5, null);
+		assertThat(first.getPermits(), is(3));
+		assertThat(second.getPermits(), is(2));
+		try {
+			throttle.acquire(1, null);
+			fail("Expected ConcurrencyLimitExceededException");
+		} catch (ConcurrencyLimitExceededException e) {
+			assertThat(e.getLimit(), is(5));
+		}
+		
+		second.release(1);
+		assertThat(second.getPermits(), is(1));
+		assertThat(throttle.getInFlight(), is(4));
+		first.close();
+		second.close();
+		assertThat(throttle.getInFlight(), is(0));
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.zkybase.kite.Guard;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.CircuitOpenException;
+import org.zkybase.kite.exception.ConcurrencyLimitExceededException;
+import org.zkybase.kite.key.KeyResolver;
+
+/**
+ * Test case for {@link GuardedPublisher}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class GuardedPublisherTestCase {
+	
+	@Test
+	public void testThrottlePermitIsHeldForSubscriptionLifetime() {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(1);
+		ListPublisher source = new ListPublisher(Arrays.asList("a", "b"), null);
+		GuardedPublisher<String> publisher = new GuardedPublisher<String>(source, Collections.singletonList(throttle));
+		
+		RecordingSubscriber first = new RecordingSubscriber();
+		publisher.subscribe(first);
+		first.subscription.request(1L);
+		assertThat(throttle.getInFlight(), is(1));
+		
+		RecordingSubscriber rejected = new RecordingSubscriber();
+		publisher.subscribe(rejected);
+		assertThat(rejected.error instanceof ConcurrencyLimitExceededException, is(true));
+		
+		first.subscription.request(1L);
+		assertThat(first.items.toString(), is("[a, b]"));
+		assertThat(first.completed, is(true));
+		assertThat(throttle.getInFlight(), is(0));
+	}
+	
+	@Test
+	public void testCancellationReleasesPermit() {
+		ConcurrencyThrottleTemplate throttle = new ConcurrencyThrottleTemplate(1);
+		ListPublisher source = new ListPublisher(Arrays.asList("a", "b"), null);
+		GuardedPublisher<String> publisher = new GuardedPublisher<String>(source, Collections.singletonList(throttle));
+		
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.cancel();
+		assertThat(throttle.getInFlight(), is(0));
+		assertThat(source.cancelled, is(true));
+	}
+	
+	@Test
+	public void testStreamErrorTripsBreaker() {
+		CircuitBreakerTemplate breaker = new CircuitBreakerTemplate();
+		breaker.setExceptionThreshold(1);
+		breaker.setTimeout(60000L);
+		ListPublisher source = new ListPublisher(Arrays.asList("a"), new SQLException());
+		GuardedPublisher<String> publisher = new GuardedPublisher<String>(source, Collections.singletonList(breaker));
+		
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(10L);
+		assertThat(subscriber.error instanceof SQLException, is(true));
+		assertThat(breaker.getState(), is(CircuitBreakerTemplate.State.OPEN));
+		
+		RecordingSubscriber rejected = new RecordingSubscriber();
+		publisher.subscribe(rejected);
+		assertThat(rejected.error instanceof CircuitOpenException, is(true));
+		assertThat(source.subscriptions, is(1));
+	}
+	
+	@Test
+	public void testStreamErrorOfTypeErrorRetripsHalfOpenBreaker() {
+		CircuitBreakerTemplate breaker = new CircuitBreakerTemplate();
+		breaker.setState(CircuitBreakerTemplate.State.HALF_OPEN);
+		ListPublisher source = new ListPublisher(Arrays.asList("a"), new StackOverflowError());
+		GuardedPublisher<String> publisher = new GuardedPublisher<String>(source, Collections.singletonList(breaker));
+		
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(10L);
+		assertThat(subscriber.error instanceof StackOverflowError, is(true));
+		assertThat(breaker.getState(), is(CircuitBreakerTemplate.State.OPEN));
+		assertThat(breaker.getHalfOpenCallsInFlight(), is(0));
+	}
+	
+	@Test
+	public void testRateLimiterMetersDemand() throws Exception {
+		RateLimitingThrottleTemplate limiter =
+			new RateLimitingThrottleTemplate(Collections.singletonList(new RateLimit(10, 1000L, 2)));
+		limiter.setKeyResolver(new KeyResolver() {
+			public Object resolveKey(GuardCallback<?> action) { return "client"; }
+		});
+		ListPublisher source = new ListPublisher(Arrays.asList("a", "b", "c", "d", "e"), null);
+		GuardedPublisher<String> publisher = new GuardedPublisher<String>(source, Collections.singletonList(limiter));
+		
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(5L);
+		assertThat(subscriber.items.size(), is(2));
+		assertThat(source.requested, is(2L));
+		
+		assertThat(subscriber.done.await(5L, TimeUnit.SECONDS), is(true));
+		assertThat(subscriber.items.toString(), is("[a, b, c, d, e]"));
+	}
+	
+	@Test
+	public void testDeferredDemandIsDeliveredOffTimerThread() throws Exception {
+		RateLimitingThrottleTemplate limiter =
+			new RateLimitingThrottleTemplate(Collections.singletonList(new RateLimit(10, 1000L, 2)));
+		limiter.setKeyResolver(new KeyResolver() {
+			public Object resolveKey(GuardCallback<?> action) { return "client"; }
+		});
+		ListPublisher source = new ListPublisher(Arrays.asList("a", "b", "c"), null);
+		GuardedPublisher<String> publisher = new GuardedPublisher<String>(source, Collections.singletonList(limiter));
+		
+		// The subscriber blocks on the first element delivered by a rate limit retry
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch unblock = new CountDownLatch(1);
+		RecordingSubscriber subscriber = new RecordingSubscriber() {
+			public void onNext(String item) {
+				super.onNext(item);
+				if (item.equals("c")) {
+					blocked.countDown();
+					try {
+						unblock.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		};
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(3L);
+		assertThat(blocked.await(5L, TimeUnit.SECONDS), is(true));
+		
+		// Timeouts must still fire while the subscriber is blocked
+		final CountDownLatch fired = new CountDownLatch(1);
+		HashedWheelTimer.getSharedInstance().newTimeout(new Runnable() {
+			public void run() { fired.countDown(); }
+		}, 10L, TimeUnit.MILLISECONDS);
+		try {
+			assertThat(fired.await(5L, TimeUnit.SECONDS), is(true));
+		} finally {
+			unblock.countDown();
+		}
+		assertThat(subscriber.done.await(5L, TimeUnit.SECONDS), is(true));
+		assertThat(subscriber.items.toString(), is("[a, b, c]"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedGuardIsRejected() {
+		List<Guard> guards = new ArrayList<Guard>();
+		guards.add(new TimeoutTemplate());
+		new GuardedPublisher<String>(new ListPublisher(Arrays.asList("a"), null), guards);
+	}
+	
+	/**
+	 * Publisher emitting a fixed list synchronously as it's requested, then completing or failing.
+	 */
+	private static class ListPublisher implements Flow.Publisher<String> {
+		private final List<String> items;
+		private final Throwable failure;
+		private volatile int subscriptions;
+		private volatile long requested;
+		private volatile boolean cancelled;
+		
+		public ListPublisher(List<String> items, Throwable failure) {
+			this.items = items;
+			this.failure = failure;
+		}
+		
+		public void subscribe(final Flow.Subscriber<? super String> subscriber) {
+			subscriptions++;
+			subscriber.onSubscribe(new Flow.Subscription() {
+				private int next;
+				
+				public synchronized void request(long n) {
+					requested += n;
+					for (long i = 0; i < n && next < items.size(); i++) { subscriber.onNext(items.get(next++)); }
+					if (next == items.size()) {
+						next++;
+						if (failure != null) {
+							subscriber.onError(failure);
+						} else {
+							subscriber.onComplete();
+						}
+					}
+				}
+				
+				public void cancel() { cancelled = true; }
+			});
+		}
+	}
+	
+	private static class RecordingSubscriber implements Flow.Subscriber<String> {
+		private final List<String> items = new CopyOnWriteArrayList<String>();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Flow.Subscription subscription;
+		private volatile Throwable error;
+		private volatile boolean completed;
+		
+		public void onSubscribe(Flow.Subscription subscription) { this.subscription = subscription; }
+		
+		public void onNext(String item) { items.add(item); }
+		
+		public void onError(Throwable throwable) {
+			this.error = throwable;
+			done.countDown();
+		}
+		
+		public void onComplete() {
+			this.completed = true;
+			done.countDown();
+		}
+	}
+}
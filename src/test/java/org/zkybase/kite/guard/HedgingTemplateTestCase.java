@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.GuardCallback;
+
+/**
+ * Test case for {@link HedgingTemplate}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class HedgingTemplateTestCase {
+	
+	// Class under test
+	private HedgingTemplate hedging;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.hedging = new HedgingTemplate();
+		hedging.setBeanName("replicaHedging");
+		hedging.setHedgeDelay(200L);
+	}
+	
+	@Test
+	public void testFastCallIsNotHedged() throws Exception {
+		TwoSpeedAction action = new TwoSpeedAction(0L, null);
+		assertThat(hedging.execute(action), is("execution 1"));
+		assertThat(action.executions.get(), is(1));
+		assertThat(hedging.getHedgeCount(), is(0L));
+	}
+	
+	@Test
+	public void testSlowCallIsHedgedAndLoserCancelled() throws Exception {
+		TwoSpeedAction action = new TwoSpeedAction(10000L, null);
+		assertThat(hedging.execute(action), is("execution 2"));
+		assertThat(hedging.getHedgeCount(), is(1L));
+		assertThat(hedging.getHedgeWinCount(), is(1L));
+		assertThat(action.interrupted.await(5L, TimeUnit.SECONDS), is(true));
+	}
+	
+	@Test
+	public void testFailureBeforeHedgeDelayIsNotHedged() throws Exception {
+		IllegalStateException failure = new IllegalStateException();
+		try {
+			hedging.execute(new TwoSpeedAction(0L, failure));
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			assertThat(e == failure, is(true));
+		}
+		assertThat(hedging.getHedgeCount(), is(0L));
+	}
+	
+	@Test
+	public void testCallFailsOnlyWhenAllExecutionsFail() throws Exception {
+		IllegalStateException failure = new IllegalStateException();
+		TwoSpeedAction action = new TwoSpeedAction(500L, failure);
+		try {
+			hedging.execute(action);
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			assertThat(e == failure, is(true));
+		}
+		assertThat(action.executions.get(), is(2));
+		assertThat(hedging.getHedgeWinCount(), is(0L));
+	}
+	
+	@Test
+	public void testHedgeBudgetLimitsHedges() throws Exception {
+		hedging.setHedgeDelay(1L);
+		hedging.setMaxHedgePercent(0.0f);
+		for (int i = 0; i < 12; i++) { hedging.execute(new TwoSpeedAction(30L, null)); }
+		assertThat(hedging.getHedgeCount(), is(10L));
+		assertThat(hedging.getBudgetExhaustedCount(), is(2L));
+	}
+	
+	@Test
+	public void testPercentileDelayNeedsHistory() throws Exception {
+		hedging.setHedgeDelay(0L);
+		assertThat(hedging.getCurrentHedgeDelay(), is(-1L));
+		for (int i = 0; i < 100; i++) { hedging.execute(new TwoSpeedAction(0L, null)); }
+		assertThat(hedging.getCurrentHedgeDelay() >= 0L, is(true));
+		assertThat(hedging.getHedgeCount(), is(0L));
+	}
+	
+	@Test
+	public void testCallRunsOnCallerThreadUntilItCanBeHedged() throws Exception {
+		hedging.setHedgeDelay(0L);
+		final Thread caller = Thread.currentThread();
+		String result = hedging.execute(new GuardCallback<String>() {
+			public String doInGuard() { return (Thread.currentThread() == caller ? "inline" : "executor"); }
+		});
+		assertThat(result, is("inline"));
+	}
+	
+	/**
+	 * Action whose first execution takes the given time and whose second returns at once. Both fail with the given
+	 * failure, if any.
+	 */
+	private static class TwoSpeedAction implements GuardCallback<String> {
+		private final long firstDelay;
+		private final RuntimeException failure;
+		private final AtomicInteger executions = new AtomicInteger();
+		private final CountDownLatch interrupted = new CountDownLatch(1);
+		
+		public TwoSpeedAction(long firstDelay, RuntimeException failure) {
+			this.firstDelay = firstDelay;
+			this.failure = failure;
+		}
+		
+		public String doInGuard() throws Exception {
+			int execution = executions.incrementAndGet();
+			if (execution == 1 && firstDelay > 0L) {
+				try {
+					Thread.sleep(firstDelay);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+					throw e;
+				}
+			}
+			if (failure != null) { throw failure; }
+			return "execution " + execution;
+		}
+	}
+}
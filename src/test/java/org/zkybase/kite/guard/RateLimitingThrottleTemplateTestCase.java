@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.GuardLease;
+import org.zkybase.kite.exception.RateLimitExceededException;
+import org.zkybase.kite.exception.UnauthenticatedException;
+import org.zkybase.kite.key.KeyResolver;
+import org.zkybase.kite.key.PrincipalKeyResolver;
+import org.zkybase.kite.test.KiteObjectMother;
+
+/**
+ * Test case for {@link RateLimitingThrottleTemplate}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class RateLimitingThrottleTemplateTestCase {
+	private static KiteObjectMother mom = KiteObjectMother.instance();
+	
+	// Class under test
+	private ManualClockRateLimiter throttle;
+	
+	private GuardCallback<String> action;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.action = mom.getThrottleAction();
+		
+		// 10 requests per second
+		this.throttle = new ManualClockRateLimiter(10);
+		throttle.setBeanName("messageServiceRateLimiter");
+		throttle.setPeriod(1000L);
+		
+		authenticate("willie");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		SecurityContextHolder.clearContext();
+		this.throttle = null;
+	}
+	
+	@Test
+	public void testFullBurstIsAllowedThenRejected() throws Exception {
+		assertThat(countAdmitted(10), is(10));
+		try {
+			throttle.execute(action);
+			fail("Expected RateLimitExceededException");
+		} catch (RateLimitExceededException e) {
+			assertThat(e.getLimit(), is(10));
+			assertThat(e.getPeriod(), is(1000L));
+		}
+	}
+	
+	@Test
+	public void testLeaseCountsAsRequest() throws Exception {
+		assertThat(countAdmitted(9), is(9));
+		throttle.acquire().close();
+		try {
+			throttle.acquire();
+			fail("Expected RateLimitExceededException");
+		} catch (RateLimitExceededException e) {
+			assertThat(e.getLimit(), is(10));
+		}
+	}
+	
+	@Test
+	public void testBulkAcquireAdmitsRemainingAllowance() throws Exception {
+		GuardLease lease = throttle.acquire(15, action);
+		assertThat(lease.getPermits(), is(10));
+		
+		lease.release(4);
+		lease.close();
+		assertThat(countAdmitted(10), is(4));
+	}
+	
+	@Test
+	public void testAllowanceIsReplenishedGradually() throws Exception {
+		countAdmitted(10);
+		
+		// One emission interval (100 ms) buys exactly one request.
+		throttle.advance(100L);
+		assertThat(countAdmitted(5), is(1));
+		
+		throttle.advance(500L);
+		assertThat(countAdmitted(10), is(5));
+	}
+	
+	@Test
+	public void testBurstLimitsBackToBackRequests() throws Exception {
+		throttle.setBurst(3);
+		assertThat(countAdmitted(10), is(3));
+		
+		// Idle time never accumulates more than the burst.
+		throttle.advance(10000L);
+		assertThat(countAdmitted(10), is(3));
+	}
+	
+	@Test
+	public void testPrincipalsAreLimitedIndependently() throws Exception {
+		assertThat(countAdmitted(20), is(10));
+		authenticate("lasse");
+		assertThat(countAdmitted(20), is(10));
+	}
+	
+	@Test
+	public void testLimitIsExactUnderContention() throws Exception {
+		throttle = new ManualClockRateLimiter(1000);
+		final AtomicInteger admitted = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					authenticate("willie");
+					for (int j = 0; j < 500; j++) {
+						try {
+							throttle.execute(action);
+							admitted.incrementAndGet();
+						} catch (RateLimitExceededException e) {
+							// Expected once the limit is reached
+						} catch (Exception e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) { thread.join(); }
+		assertThat(admitted.get(), is(1000));
+	}
+	
+	@Test
+	public void testAllWindowsMustAdmitRequest() throws Exception {
+		List<RateLimit> limits = new ArrayList<RateLimit>();
+		limits.add(new RateLimit(10, 1000L));
+		limits.add(new RateLimit(15, 60000L));
+		throttle = new ManualClockRateLimiter(limits);
+		
+		// The per-second window admits 10, then the per-minute window caps the total at 15.
+		assertThat(countAdmitted(20), is(10));
+		throttle.advance(1000L);
+		assertThat(countAdmitted(20), is(5));
+		throttle.advance(1000L);
+		assertThat(countAdmitted(20), is(0));
+	}
+	
+	@Test
+	public void testRejectedRequestDoesNotConsumeOtherWindows() throws Exception {
+		List<RateLimit> limits = new ArrayList<RateLimit>();
+		limits.add(new RateLimit(100, 60000L));
+		limits.add(new RateLimit(5, 1000L));
+		throttle = new ManualClockRateLimiter(limits);
+		
+		// Rejections by the per-second window must not eat into the per-minute allowance.
+		for (int i = 0; i < 10; i++) {
+			assertThat(countAdmitted(50), is(5));
+			throttle.advance(1000L);
+		}
+		assertThat(countAdmitted(100), is(5));
+	}
+	
+	@Test
+	public void testIdlePrincipalsAreEvictedFirst() throws Exception {
+		throttle.setMaxKeys(10);
+		for (int i = 0; i < 10; i++) {
+			authenticate("user" + i);
+			countAdmitted(1);
+		}
+		
+		// After a second everybody's allowance is whole again, so the sweep can drop them all without losing anything.
+		throttle.advance(1000L);
+		authenticate("newcomer");
+		countAdmitted(1);
+		assertThat(throttle.getStateStoreEvictionCount(), is(10L));
+		assertThat(throttle.getStateStoreSize(), is(1));
+	}
+	
+	@Test
+	public void testStateStoreStaysBoundedUnderKeyChurn() throws Exception {
+		throttle.setMaxKeys(100);
+		for (int i = 0; i < 5000; i++) {
+			authenticate("user" + i);
+			countAdmitted(1);
+			throttle.advance(1L);
+		}
+		assertThat(throttle.getStateStoreSize() <= 100, is(true));
+		assertThat(throttle.getStateStoreEvictionCount() >= 4900L, is(true));
+	}
+	
+	@Test
+	public void testAnonymousRequestsShareConfiguredKey() throws Exception {
+		PrincipalKeyResolver keyResolver = new PrincipalKeyResolver();
+		keyResolver.setAnonymousKey("anonymous");
+		throttle.setKeyResolver(keyResolver);
+		SecurityContextHolder.clearContext();
+		assertThat(countAdmitted(20), is(10));
+	}
+	
+	@Test
+	public void testCustomKeyResolver() throws Exception {
+		final String[] tenant = { "acme" };
+		throttle.setKeyResolver(new KeyResolver() {
+			public Object resolveKey(GuardCallback<?> action) { return tenant[0]; }
+		});
+		SecurityContextHolder.clearContext();
+		assertThat(countAdmitted(20), is(10));
+		tenant[0] = "initech";
+		assertThat(countAdmitted(20), is(10));
+	}
+	
+	@Test(expected = UnauthenticatedException.class)
+	public void testUnauthenticatedRequestIsRejected() throws Exception {
+		SecurityContextHolder.clearContext();
+		throttle.execute(action);
+	}
+	
+	private int countAdmitted(int attempts) throws Exception {
+		int admitted = 0;
+		for (int i = 0; i < attempts; i++) {
+			try {
+				throttle.execute(action);
+				admitted++;
+			} catch (RateLimitExceededException e) {
+				// Rejected
+			}
+		}
+		return admitted;
+	}
+	
+	private static void authenticate(String principal) {
+		SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken(principal, ""));
+	}
+	
+	private static class ManualClockRateLimiter extends RateLimitingThrottleTemplate {
+		private volatile long now = TimeUnit.SECONDS.toNanos(1L);
+		
+		public ManualClockRateLimiter(int limit) { super(limit); }
+		
+		public ManualClockRateLimiter(List<RateLimit> limits) { super(limits); }
+		
+		public void advance(long millis) { now += TimeUnit.MILLISECONDS.toNanos(millis); }
+		
+		@Override
+		long currentTimeNanos() { return now; }
+	}
+}
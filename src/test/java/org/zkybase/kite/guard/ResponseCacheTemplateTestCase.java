@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.CircuitOpenException;
+import org.zkybase.kite.key.KeyResolver;
+
+/**
+ * Test case for {@link ResponseCacheTemplate}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class ResponseCacheTemplateTestCase {
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicInteger backendCalls = new AtomicInteger();
+	
+	// Class under test
+	private ResponseCacheTemplate cache;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.cache = new ResponseCacheTemplate() {
+			@Override
+			long nanoTime() { return clock.get(); }
+		};
+		cache.setBeanName("motdCache");
+		cache.setKeyResolver(new KeyResolver() {
+			public Object resolveKey(GuardCallback<?> action) { return ((KeyedCallback) action).key; }
+		});
+	}
+	
+	@Test
+	public void testCallsGoToBackendByDefault() throws Exception {
+		assertThat(cache.execute(succeeding("motd", "Hello")), is("Hello"));
+		assertThat(cache.execute(succeeding("motd", "Hi")), is("Hi"));
+		assertThat(backendCalls.get(), is(2));
+		assertThat(cache.getMissCount(), is(2L));
+	}
+	
+	@Test
+	public void testFreshEntryIsServedWithinTtl() throws Exception {
+		cache.setTtl(1000L);
+		cache.execute(succeeding("motd", "Hello"));
+		advance(999L);
+		assertThat(cache.execute(succeeding("motd", "Hi")), is("Hello"));
+		advance(1L);
+		assertThat(cache.execute(succeeding("motd", "Hi")), is("Hi"));
+		assertThat(backendCalls.get(), is(2));
+		assertThat(cache.getHitCount(), is(1L));
+	}
+	
+	@Test
+	public void testStaleEntryIsServedOnRejection() throws Exception {
+		cache.execute(succeeding("motd", "Hello"));
+		advance(60000L);
+		assertThat(cache.execute(failing("motd", new CircuitOpenException())), is("Hello"));
+		assertThat(cache.getStaleHitCount(), is(1L));
+	}
+	
+	@Test
+	public void testNullResultIsCached() throws Exception {
+		cache.execute(succeeding("motd", null));
+		assertThat(cache.execute(failing("motd", new CircuitOpenException())), is((String) null));
+	}
+	
+	@Test(expected = CircuitOpenException.class)
+	public void testFailureWithoutEntryPropagates() throws Exception {
+		cache.execute(failing("motd", new CircuitOpenException()));
+	}
+	
+	@Test(expected = CircuitOpenException.class)
+	public void testEntryOlderThanMaxStalenessIsNotServed() throws Exception {
+		cache.setMaxStaleness(1000L);
+		cache.execute(succeeding("motd", "Hello"));
+		advance(1001L);
+		cache.execute(failing("motd", new CircuitOpenException()));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNonFallbackExceptionPropagates() throws Exception {
+		List<Class<? extends Exception>> fallbackExceptions = new ArrayList<Class<? extends Exception>>();
+		fallbackExceptions.add(CircuitOpenException.class);
+		cache.setFallbackExceptions(fallbackExceptions);
+		cache.execute(succeeding("motd", "Hello"));
+		cache.execute(failing("motd", new IllegalArgumentException()));
+	}
+	
+	@Test
+	public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+		cache.setMaxEntries(10);
+		for (int i = 0; i < 10; i++) {
+			cache.execute(succeeding("key" + i, "value" + i));
+			advance(1L);
+		}
+		cache.execute(succeeding("key0", "value0"));
+		advance(1L);
+		cache.execute(succeeding("key10", "value10"));
+		
+		assertThat(cache.getSize() <= 10, is(true));
+		assertThat(cache.getEvictionCount() > 0L, is(true));
+		assertThat(cache.execute(failing("key0", new CircuitOpenException())), is("value0"));
+		try {
+			cache.execute(failing("key1", new CircuitOpenException()));
+			fail("Expected key1 to be evicted");
+		} catch (CircuitOpenException e) {
+			// Expected
+		}
+	}
+	
+	private void advance(long millis) { clock.addAndGet(millis * 1000000L); }
+	
+	private KeyedCallback succeeding(String key, final String value) {
+		return new KeyedCallback(key) {
+			public String doInGuard() throws Exception {
+				backendCalls.incrementAndGet();
+				return value;
+			}
+		};
+	}
+	
+	private KeyedCallback failing(String key, final Exception failure) {
+		return new KeyedCallback(key) {
+			public String doInGuard() throws Exception {
+				backendCalls.incrementAndGet();
+				throw failure;
+			}
+		};
+	}
+	
+	private abstract static class KeyedCallback implements GuardCallback<String> {
+		private final String key;
+		
+		public KeyedCallback(String key) { this.key = key; }
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.ForkableGuardCallback;
+import org.zkybase.kite.GuardCallback;
+
+/**
+ * Test case for {@link RetryTemplate}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class RetryTemplateTestCase {
+	private final List<Long> sleeps = Collections.synchronizedList(new ArrayList<Long>());
+	
+	// Class under test
+	private RetryTemplate retry;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.retry = new RetryTemplate() {
+			@Override
+			void sleep(long millis) { sleeps.add(millis); }
+		};
+		retry.setBeanName("messageServiceRetry");
+		retry.setMaxAttempts(3);
+		retry.setInitialBackoff(100L);
+		retry.setMaxBackoff(300L);
+	}
+	
+	@Test
+	public void testSuccessIsNotRetried() throws Exception {
+		FailingAction action = new FailingAction(0, new IOException());
+		assertThat(retry.execute(action), is("done"));
+		assertThat(action.attempts.get(), is(1));
+		assertThat(retry.getRetryCount(), is(0L));
+	}
+	
+	@Test
+	public void testTransientFailureIsRetried() throws Exception {
+		FailingAction action = new FailingAction(2, new IOException());
+		assertThat(retry.execute(action), is("done"));
+		assertThat(action.attempts.get(), is(3));
+		assertThat(retry.getRetryCount(), is(2L));
+		assertThat(sleeps.size(), is(2));
+	}
+	
+	@Test
+	public void testPersistentFailureExhaustsAttempts() throws Exception {
+		IOException failure = new IOException();
+		FailingAction action = new FailingAction(Integer.MAX_VALUE, failure);
+		try {
+			retry.execute(action);
+			fail("Expected IOException");
+		} catch (IOException e) {
+			assertThat(e, is(failure));
+		}
+		assertThat(action.attempts.get(), is(3));
+		assertThat(retry.getRetriesExhaustedCount(), is(1L));
+	}
+	
+	@Test
+	public void testNonRetryableExceptionPropagatesImmediately() throws Exception {
+		List<Class<? extends Exception>> nonRetryable = new ArrayList<Class<? extends Exception>>();
+		nonRetryable.add(IllegalStateException.class);
+		retry.setNonRetryableExceptions(nonRetryable);
+		
+		FailingAction action = new FailingAction(Integer.MAX_VALUE, new IllegalStateException());
+		try {
+			retry.execute(action);
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertThat(action.attempts.get(), is(1));
+		assertThat(retry.getRetryCount(), is(0L));
+	}
+	
+	@Test
+	public void testBackoffUsesFullJitterUpToBound() {
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(retry.backoff(1) <= 100L);
+			assertTrue(retry.backoff(2) <= 200L);
+			assertTrue(retry.backoff(5) <= 300L);
+		}
+		
+		// Over many draws, full jitter covers the range rather than sitting at the bound
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < 1000; i++) { min = Math.min(min, retry.backoff(3)); }
+		assertTrue(min < 50L);
+	}
+	
+	@Test
+	public void testRetryBudgetLimitsRetries() throws Exception {
+		retry.setRetryBudgetCapacity(2);
+		retry.setRetryBudgetPercent(50.0f);
+		retry.setMaxAttempts(2);
+		
+		// Two banked retries, then the budget is spent
+		for (int i = 0; i < 3; i++) {
+			try {
+				retry.execute(new FailingAction(Integer.MAX_VALUE, new IOException()));
+				fail("Expected IOException");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+		assertThat(retry.getRetryCount(), is(2L));
+		assertThat(retry.getBudgetExhaustedCount(), is(1L));
+		
+		// Each success earns half a retry
+		retry.execute(new FailingAction(0, new IOException()));
+		retry.execute(new FailingAction(0, new IOException()));
+		assertThat(retry.getRetryBudgetRemaining(), is(1.0));
+		assertThat(retry.execute(new FailingAction(1, new IOException())), is("done"));
+		assertThat(retry.getRetryCount(), is(3L));
+	}
+	
+	@Test
+	public void testSmallRetryBudgetPercentStillRefillsBudget() throws Exception {
+		retry.setRetryBudgetCapacity(1);
+		retry.setRetryBudgetPercent(0.05f);
+		retry.setMaxAttempts(2);
+		assertThat(retry.execute(new FailingAction(1, new IOException())), is("done"));
+		
+		// Each success, including the retried one, earns a two-thousandth of a retry
+		assertThat(retry.getRetryBudgetRemaining(), is(0.0005));
+		for (int i = 0; i < 1999; i++) { retry.execute(new FailingAction(0, new IOException())); }
+		assertThat(retry.getRetryBudgetRemaining(), is(1.0));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testRetryBudgetPercentTooSmallToRefillIsRejected() {
+		retry.setRetryBudgetPercent(0.00001f);
+	}
+	
+	@Test
+	public void testForkableCallbackIsForkedPerAttempt() throws Exception {
+		final FailingAction delegate = new FailingAction(1, new IOException());
+		final AtomicInteger forks = new AtomicInteger();
+		ForkableGuardCallback<String> action = new ForkableGuardCallback<String>() {
+			public String doInGuard() throws Exception {
+				throw new AssertionError("Original callback shouldn't run");
+			}
+			
+			public GuardCallback<String> fork() {
+				forks.incrementAndGet();
+				return delegate;
+			}
+		};
+		assertThat(retry.execute(action), is("done"));
+		assertThat(forks.get(), is(2));
+	}
+	
+	private static class FailingAction implements GuardCallback<String> {
+		private final int failures;
+		private final Exception failure;
+		private final AtomicInteger attempts = new AtomicInteger();
+		
+		public FailingAction(int failures, Exception failure) {
+			this.failures = failures;
+			this.failure = failure;
+		}
+		
+		public String doInGuard() throws Exception {
+			if (attempts.incrementAndGet() <= failures) { throw failure; }
+			return "done";
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.key.KeyResolver;
+
+/**
+ * Test case for {@link SingleFlightTemplate}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class SingleFlightTemplateTestCase {
+	private static final int FOLLOWERS = 10;
+	
+	private ExecutorService executor;
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final AtomicInteger executions = new AtomicInteger();
+	
+	// Class under test
+	private SingleFlightTemplate singleFlight;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.executor = Executors.newCachedThreadPool();
+		this.singleFlight = new SingleFlightTemplate();
+		singleFlight.setBeanName("motdSingleFlight");
+		singleFlight.setKeyResolver(new KeyResolver() {
+			public Object resolveKey(GuardCallback<?> action) { return "motd"; }
+		});
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		executor.shutdownNow();
+	}
+	
+	@Test
+	public void testConcurrentCallsShareOneExecution() throws Exception {
+		GuardCallback<String> action = blockingAction("Hello", null);
+		List<Future<String>> results = startCalls(action);
+		release.countDown();
+		
+		for (Future<String> result : results) { assertThat(result.get(5L, TimeUnit.SECONDS), is("Hello")); }
+		assertThat(executions.get(), is(1));
+		assertThat(singleFlight.getCollapsedCount(), is((long) FOLLOWERS));
+		assertThat(singleFlight.getInFlightCount(), is(0));
+	}
+	
+	@Test
+	public void testConcurrentCallsShareException() throws Exception {
+		IllegalStateException failure = new IllegalStateException("backend down");
+		List<Future<String>> results = startCalls(blockingAction(null, failure));
+		release.countDown();
+		
+		for (Future<String> result : results) {
+			try {
+				result.get(5L, TimeUnit.SECONDS);
+				fail("Expected IllegalStateException");
+			} catch (ExecutionException e) {
+				assertThat(e.getCause() == failure, is(true));
+			}
+		}
+		assertThat(executions.get(), is(1));
+	}
+	
+	@Test
+	public void testSequentialCallsEachExecute() throws Exception {
+		release.countDown();
+		GuardCallback<String> action = blockingAction("Hello", null);
+		singleFlight.execute(action);
+		singleFlight.execute(action);
+		assertThat(executions.get(), is(2));
+		assertThat(singleFlight.getCollapsedCount(), is(0L));
+	}
+	
+	@Test
+	public void testNullKeyIsNotCollapsed() throws Exception {
+		singleFlight.setKeyResolver(new KeyResolver() {
+			public Object resolveKey(GuardCallback<?> action) { return null; }
+		});
+		List<Future<String>> results = startCalls(blockingAction("Hello", null));
+		awaitExecutions(FOLLOWERS + 1);
+		release.countDown();
+		
+		for (Future<String> result : results) { assertThat(result.get(5L, TimeUnit.SECONDS), is("Hello")); }
+		assertThat(singleFlight.getCollapsedCount(), is(0L));
+	}
+	
+	@Test
+	public void testFollowersStopWaitingAfterMaxWait() throws Exception {
+		singleFlight.setMaxWait(50L);
+		List<Future<String>> results = startCalls(blockingAction("Hello", null));
+		awaitExecutions(FOLLOWERS + 1);
+		release.countDown();
+		
+		for (Future<String> result : results) { assertThat(result.get(5L, TimeUnit.SECONDS), is("Hello")); }
+		assertThat(singleFlight.getWaitTimeoutCount(), is((long) FOLLOWERS));
+	}
+	
+	// Starts a leader, waits for it to begin executing, then starts the followers and waits for them to join (or, if
+	// calls aren't being collapsed, to start executing).
+	private List<Future<String>> startCalls(final GuardCallback<String> action) throws Exception {
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		results.add(submit(action));
+		awaitExecutions(1);
+		for (int i = 0; i < FOLLOWERS; i++) { results.add(submit(action)); }
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (singleFlight.getCollapsedCount() < FOLLOWERS && executions.get() <= 1) {
+			if (System.currentTimeMillis() > deadline) { fail("Followers didn't join"); }
+			Thread.sleep(1L);
+		}
+		return results;
+	}
+	
+	private Future<String> submit(final GuardCallback<String> action) {
+		return executor.submit(new Callable<String>() {
+			public String call() throws Exception { return singleFlight.execute(action); }
+		});
+	}
+	
+	private GuardCallback<String> blockingAction(final String result, final RuntimeException failure) {
+		return new GuardCallback<String>() {
+			public String doInGuard() throws Exception {
+				executions.incrementAndGet();
+				release.await();
+				if (failure != null) { throw failure; }
+				return result;
+			}
+		};
+	}
+	
+	private void awaitExecutions(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (executions.get() < count) {
+			if (System.currentTimeMillis() > deadline) { fail("Expected " + count + " executions"); }
+			Thread.sleep(1L);
+		}
+	}
+}
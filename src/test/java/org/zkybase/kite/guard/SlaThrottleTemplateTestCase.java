@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.SlaViolationException;
+
+/**
+ * Test case for {@link SlaThrottleTemplate} and the {@link LatencyHistogram} behind it.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class SlaThrottleTemplateTestCase {
+	private final AtomicLong clock = new AtomicLong();
+	
+	// Class under test
+	private SlaThrottleTemplate throttle;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.throttle = new SlaThrottleTemplate() {
+			@Override
+			long nanoTime() { return clock.get(); }
+		};
+		throttle.setBeanName("messageServiceSlaThrottle");
+		throttle.setLatencyTarget(50L);
+		throttle.setEvaluationInterval(100L);
+		throttle.setWindowSize(1);
+		throttle.setMinimumNumberOfCalls(5);
+		throttle.setShedStep(0.1);
+		throttle.setMaxShedFraction(0.5);
+	}
+	
+	@Test
+	public void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram(1, 1000L);
+		for (long i = 1L; i <= 1000L; i++) { histogram.record(i, 0L); }
+		assertThat(histogram.getCount(0L), is(1000L));
+		assertWithin(histogram.getValueAtPercentile(50.0, 0L), 500L);
+		assertWithin(histogram.getValueAtPercentile(99.0, 0L), 990L);
+		assertThat(histogram.getValueAtPercentile(100.0, 0L) >= 1000L, is(true));
+	}
+	
+	@Test
+	public void testHistogramBucketsCoverValues() {
+		for (long value = 0L; value < 100000L; value += 7L) {
+			int bucket = LatencyHistogram.bucketOf(value);
+			assertTrue(LatencyHistogram.highestValueIn(bucket) >= value);
+			assertTrue(bucket == 0 || LatencyHistogram.highestValueIn(bucket - 1) < value);
+		}
+	}
+	
+	@Test
+	public void testHistogramRollsOver() {
+		LatencyHistogram histogram = new LatencyHistogram(3, 1000L);
+		histogram.record(100L, 0L);
+		histogram.record(200L, 1500L);
+		assertThat(histogram.getCount(2999L), is(2L));
+		assertThat(histogram.getCount(3000L), is(1L));
+		assertThat(histogram.getCount(4500L), is(0L));
+		assertThat(histogram.getValueAtPercentile(99.0, 4500L), is(0L));
+	}
+	
+	@Test
+	public void testFastCallsAreNotShed() throws Exception {
+		int shed = runCalls(100, 10L);
+		assertThat(shed, is(0));
+		assertThat(throttle.getShedFraction(), is(0.0));
+		assertThat(throttle.getShedCount(), is(0L));
+	}
+	
+	@Test
+	public void testSlowCallsStartShedding() throws Exception {
+		int shed = runCalls(100, 80L);
+		assertThat(throttle.getShedFraction(), is(0.5));
+		assertTrue(shed > 0);
+		assertThat(throttle.getShedCount(), is((long) shed));
+		assertTrue(throttle.getObservedLatency() >= 80.0);
+	}
+	
+	@Test
+	public void testSheddingBacksOffAsLatencyRecovers() throws Exception {
+		runCalls(100, 80L);
+		assertThat(throttle.getShedFraction(), is(0.5));
+		
+		clock.addAndGet(2000000000L);
+		runCalls(200, 10L);
+		assertThat(throttle.getShedFraction(), is(0.0));
+		
+		// With shedding off, every call gets through
+		assertThat(runCalls(50, 10L), is(0));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testPercentileMustBePositive() {
+		throttle.setPercentile(0.0);
+	}
+	
+	// Runs calls that each take the given number of ms on the test clock, and returns the number that were shed.
+	private int runCalls(int count, final long latency) throws Exception {
+		GuardCallback<String> action = new GuardCallback<String>() {
+			public String doInGuard() throws Exception {
+				clock.addAndGet(latency * 1000000L);
+				return "done";
+			}
+		};
+		int shed = 0;
+		for (int i = 0; i < count; i++) {
+			clock.addAndGet(1000000L);
+			try {
+				throttle.execute(action);
+			} catch (SlaViolationException e) {
+				assertThat(e.getLatencyTarget(), is(50L));
+				shed++;
+			}
+		}
+		return shed;
+	}
+	
+	private static void assertWithin(long actual, long expected) {
+		assertTrue("Expected ~" + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 16L + 1L);
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.guard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.exception.GuardTimeoutException;
+
+/**
+ * Test case for {@link TimeoutTemplate} and the {@link HashedWheelTimer} behind it.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class TimeoutTemplateTestCase {
+	
+	// Class under test
+	private TimeoutTemplate timeoutGuard;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.timeoutGuard = new TimeoutTemplate();
+		timeoutGuard.setBeanName("messageServiceTimeout");
+		timeoutGuard.setTimeout(50L);
+	}
+	
+	@Test
+	public void testFastCallReturnsResult() throws Exception {
+		String result = timeoutGuard.execute(new GuardCallback<String>() {
+			public String doInGuard() throws Exception { return "done"; }
+		});
+		assertThat(result, is("done"));
+		assertThat(timeoutGuard.getTimeoutCount(), is(0L));
+		assertThat(Thread.currentThread().isInterrupted(), is(false));
+	}
+	
+	@Test
+	public void testSlowCallIsInterrupted() throws Exception {
+		try {
+			timeoutGuard.execute(new GuardCallback<String>() {
+				public String doInGuard() throws Exception {
+					Thread.sleep(10000L);
+					return "done";
+				}
+			});
+			fail("Expected GuardTimeoutException");
+		} catch (GuardTimeoutException e) {
+			assertThat(e.getTimeout(), is(50L));
+			assertThat(e.getCause() instanceof InterruptedException, is(true));
+		}
+		assertThat(timeoutGuard.getTimeoutCount(), is(1L));
+		assertThat(Thread.currentThread().isInterrupted(), is(false));
+	}
+	
+	@Test
+	public void testCallIgnoringInterruptStillTimesOut() throws Exception {
+		try {
+			timeoutGuard.execute(new GuardCallback<String>() {
+				public String doInGuard() throws Exception {
+					long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200L);
+					while (System.nanoTime() < end) { Thread.yield(); }
+					return "done";
+				}
+			});
+			fail("Expected GuardTimeoutException");
+		} catch (GuardTimeoutException e) {
+			// Expected
+		}
+		assertThat(Thread.currentThread().isInterrupted(), is(false));
+	}
+	
+	@Test
+	public void testExternalInterruptSurvivesTimeout() throws Exception {
+		try {
+			timeoutGuard.execute(new GuardCallback<String>() {
+				public String doInGuard() throws Exception {
+					Thread.currentThread().interrupt();
+					long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200L);
+					while (System.nanoTime() < end) { Thread.yield(); }
+					return "done";
+				}
+			});
+			fail("Expected GuardTimeoutException");
+		} catch (GuardTimeoutException e) {
+			// Expected
+		}
+		assertThat(Thread.interrupted(), is(true));
+	}
+	
+	@Test
+	public void testOnlyUncancelledTimeoutsFire() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(1L, TimeUnit.MILLISECONDS, 64, "test-timer");
+		try {
+			final AtomicInteger fired = new AtomicInteger();
+			final CountDownLatch survivorFired = new CountDownLatch(1);
+			Runnable task = new Runnable() {
+				public void run() { fired.incrementAndGet(); }
+			};
+			
+			List<HashedWheelTimer.Timeout> timeouts = new ArrayList<HashedWheelTimer.Timeout>();
+			for (int i = 0; i < 10000; i++) {
+				timeouts.add(timer.newTimeout(task, 200L + i % 200, TimeUnit.MILLISECONDS));
+			}
+			for (HashedWheelTimer.Timeout timeout : timeouts) {
+				assertThat(timeout.cancel(), is(true));
+			}
+			timer.newTimeout(new Runnable() {
+				public void run() { survivorFired.countDown(); }
+			}, 500L, TimeUnit.MILLISECONDS);
+			
+			// The survivor is due after all of the cancelled timeouts would have fired
+			assertThat(survivorFired.await(5L, TimeUnit.SECONDS), is(true));
+			assertThat(fired.get(), is(0));
+		} finally {
+			timer.stop();
+		}
+	}
+}
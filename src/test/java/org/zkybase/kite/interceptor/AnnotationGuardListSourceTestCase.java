@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.interceptor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.support.StaticApplicationContext;
+import org.zkybase.kite.Guard;
+import org.zkybase.kite.GuardedBy;
+import org.zkybase.kite.exception.CircuitOpenException;
+import org.zkybase.kite.exception.GuardException;
+import org.zkybase.kite.guard.ConcurrencyThrottleTemplate;
+
+/**
+ * Test case for {@link AnnotationGuardListSource}.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class AnnotationGuardListSourceTestCase {
+	
+	// Class under test
+	private AnnotationGuardListSource source;
+	
+	// Dependencies
+	private BeanFactory beanFactory;
+	
+	// Test objects
+	private Guard throttle;
+	private Method guardedMethod;
+	private Method unguardedMethod;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.throttle = new ConcurrencyThrottleTemplate(10);
+		this.beanFactory = mock(BeanFactory.class);
+		when(beanFactory.getBean("messageServiceThrottle", Guard.class)).thenReturn(throttle);
+		
+		this.source = new AnnotationGuardListSource();
+		source.setBeanFactory(beanFactory);
+		
+		this.guardedMethod = MessageService.class.getMethod("getMotd");
+		this.unguardedMethod = MessageService.class.getMethod("getMessages");
+	}
+	
+	@Test
+	public void testGuardsAreResolvedOnce() {
+		List<Guard> first = source.getGuards(guardedMethod, MessageService.class);
+		List<Guard> second = source.getGuards(guardedMethod, MessageService.class);
+		assertThat(first.size(), is(1));
+		assertThat(first.get(0), is(throttle));
+		assertThat(second, is(sameInstance(first)));
+		verify(beanFactory, times(1)).getBean("messageServiceThrottle", Guard.class);
+	}
+	
+	@Test
+	public void testUnguardedMethodReturnsNull() {
+		assertThat(source.getGuards(unguardedMethod, MessageService.class), is(nullValue()));
+		assertThat(source.getGuards(unguardedMethod, MessageService.class), is(nullValue()));
+	}
+	
+	@Test
+	public void testContextRefreshClearsCache() {
+		source.getGuards(guardedMethod, MessageService.class);
+		source.onApplicationEvent(new ContextRefreshedEvent(new StaticApplicationContext()));
+		source.getGuards(guardedMethod, MessageService.class);
+		verify(beanFactory, times(2)).getBean("messageServiceThrottle", Guard.class);
+	}
+	
+	@Test
+	public void testFallbackIsResolvedWithGuards() throws Exception {
+		Method method = FallbackService.class.getMethod("getMessage", String.class);
+		Fallback fallback = source.getFallback(method, FallbackService.class);
+		assertThat(fallback.getMethod(), is(FallbackService.class.getDeclaredMethod("getCachedMessage", String.class)));
+		assertThat(source.getFallback(method, FallbackService.class), is(sameInstance(fallback)));
+		assertThat(source.getFallback(guardedMethod, MessageService.class), is(nullValue()));
+	}
+	
+	@Test
+	public void testFallbackTakingFailureIsPreferred() throws Throwable {
+		Method method = FallbackService.class.getMethod("getCount", int.class);
+		Fallback fallback = source.getFallback(method, FallbackService.class);
+		assertThat(fallback.getMethod().getParameterTypes().length, is(2));
+		assertThat(fallback.handles(new CircuitOpenException()), is(true));
+		assertThat(fallback.handles(new IllegalStateException()), is(false));
+		
+		Object result = fallback.invoke(new FallbackService(), new Object[] { 3 }, new CircuitOpenException());
+		assertThat(result, is((Object) 4));
+	}
+	
+	@Test
+	public void testFallbackWithoutGuardsIsResolved() throws Exception {
+		Method method = FallbackService.class.getMethod("getUnguardedMessage", String.class);
+		assertThat(source.getGuards(method, FallbackService.class).isEmpty(), is(true));
+		assertThat(source.getFallback(method, FallbackService.class).getMethod(),
+			is(FallbackService.class.getDeclaredMethod("getCachedMessage", String.class)));
+		verify(beanFactory, never()).getBean("", Guard.class);
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testMissingFallbackFailsFast() throws Exception {
+		Method method = FallbackService.class.getMethod("getMissing");
+		source.getGuards(method, FallbackService.class);
+	}
+	
+	public static class MessageService {
+		
+		@GuardedBy("messageServiceThrottle")
+		public String getMotd() { return "motd"; }
+		
+		public String getMessages() { return "messages"; }
+	}
+	
+	public static class FallbackService {
+		
+		@GuardedBy(value = "messageServiceThrottle", fallback = "getCachedMessage")
+		public String getMessage(String key) { return key; }
+		
+		@GuardedBy(value = "messageServiceThrottle", fallback = "getCachedCount", fallbackOn = GuardException.class)
+		public int getCount(int base) { return base; }
+		
+		@GuardedBy(value = "messageServiceThrottle", fallback = "getNothing")
+		public String getMissing() { return "missing"; }
+		
+		@GuardedBy(fallback = "getCachedMessage")
+		public String getUnguardedMessage(String key) { return key; }
+		
+		private String getCachedMessage(String key) { return "cached " + key; }
+		
+		int getCachedCount(int base) { return -1; }
+		
+		int getCachedCount(int base, GuardException e) { return base + 1; }
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.zkybase.kite.key;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.Method;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zkybase.kite.GuardCallback;
+import org.zkybase.kite.InvocationGuardCallback;
+
+/**
+ * Test case for the built-in {@link KeyResolver}s that work off the method invocation.
+ * 
+ * @author Willie Wheeler (willie.wheeler@gmail.com)
+ * @since 1.0
+ */
+public class KeyResolverTestCase {
+	private InvocationGuardCallback<Object> action;
+	
+	@Before
+	public void setUp() throws Exception {
+		Method method = OrderService.class.getMethod("placeOrder", String.class, Order.class);
+		this.action = new StubCallback(method, new Object[] { "key-123", new Order("acme") }, new OrderService());
+	}
+	
+	@Test
+	public void testArgumentKeyResolver() {
+		assertThat(new ArgumentKeyResolver(0).resolveKey(action), is((Object) "key-123"));
+	}
+	
+	@Test
+	public void testArgumentKeyResolverWithProperty() {
+		ArgumentKeyResolver resolver = new ArgumentKeyResolver(1, "tenantId");
+		assertThat(resolver.resolveKey(action), is((Object) "acme"));
+		
+		// Second call goes through the cached getter
+		assertThat(resolver.resolveKey(action), is((Object) "acme"));
+	}
+	
+	@Test
+	public void testExpressionKeyResolverByPosition() {
+		ExpressionKeyResolver resolver = new ExpressionKeyResolver("#p1.tenantId + ':' + #a0");
+		assertThat(resolver.resolveKey(action), is((Object) "acme:key-123"));
+	}
+	
+	@Test
+	public void testExpressionKeyResolverByParameterName() {
+		assertThat(new ExpressionKeyResolver("#order.tenantId").resolveKey(action), is((Object) "acme"));
+	}
+	
+	@Test
+	public void testExpressionKeyResolverRoot() {
+		assertThat(new ExpressionKeyResolver("method.name").resolveKey(action), is((Object) "placeOrder"));
+	}
+	
+	@Test
+	public void testInvocationKeyResolver() throws Exception {
+		InvocationKeyResolver resolver = new InvocationKeyResolver();
+		Method method = OrderService.class.getMethod("placeOrder", String.class, Order.class);
+		Order order = new Order("acme");
+		OrderService target = new OrderService();
+		
+		Object key = resolver.resolveKey(new StubCallback(method, new Object[] { "key-123", order }, target));
+		Object sameKey = resolver.resolveKey(new StubCallback(method, new Object[] { "key-123", order }, target));
+		Object otherArgs = resolver.resolveKey(new StubCallback(method, new Object[] { "key-456", order }, target));
+		Object otherTarget =
+			resolver.resolveKey(new StubCallback(method, new Object[] { "key-123", order }, new OrderService()));
+		
+		assertThat(key.equals(sameKey), is(true));
+		assertThat(key.hashCode(), is(sameKey.hashCode()));
+		assertThat(key.equals(otherArgs), is(false));
+		assertThat(key.equals(otherTarget), is(false));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testInvocationKeyResolverRequiresInvocationCallback() {
+		new ArgumentKeyResolver(0).resolveKey(new GuardCallback<Object>() {
+			public Object doInGuard() throws Exception { return null; }
+		});
+	}
+	
+	public static class Order {
+		private final String tenantId;
+		
+		public Order(String tenantId) { this.tenantId = tenantId; }
+		
+		public String getTenantId() { return tenantId; }
+	}
+	
+	public static class OrderService {
+		public void placeOrder(String apiKey, Order order) { }
+	}
+	
+	private static class StubCallback implements InvocationGuardCallback<Object> {
+		private final Method method;
+		private final Object[] args;
+		private final Object target;
+		
+		public StubCallback(Method method, Object[] args, Object target) {
+			this.method = method;
+			this.args = args;
+			this.target = target;
+		}
+		
+		public Object doInGuard() throws Exception { return null; }
+		
+		public Method getMethod() { return method; }
+		
+		public Object[] getArguments() { return args; }
+		
+		public Object getTarget() { return target; }
+	}
+}